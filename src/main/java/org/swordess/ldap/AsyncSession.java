@@ -0,0 +1,112 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A session whose operations run in the background on the bounded executor of
+ * its session factory, so that independent lookups could be issued together
+ * and joined afterwards:
+ * 
+ * <pre>
+ * AsyncSession session = sessionFactory.openAsyncSession();
+ * try {
+ *     Future&lt;User&gt; user = session.read(User.class, userDn);
+ *     Future&lt;User&gt; manager = session.read(User.class, managerDn);
+ *     Future&lt;List&lt;Group&gt;&gt; groups = session.search(Group.class, filter);
+ *     render(user.get(), manager.get(), groups.get());
+ * } finally {
+ *     session.close();
+ * }
+ * </pre>
+ * 
+ * Operations are carried out by up to as many sessions as the executor has
+ * threads, each on a connection of its own. These sessions don't share their
+ * caches, so two lookups of one dn may return two instances, use
+ * <code>equals()</code> to compare them. Lazy references of the returned
+ * entities are loaded by the session which read the entity, and may be
+ * touched from any thread until this session is closed.
+ * <p/>
+ * 
+ * A failed operation fails its future with the exception the corresponding
+ * {@link Session} method throws, wrapped in an
+ * {@link java.util.concurrent.ExecutionException}. Submitting an operation
+ * while the executor is saturated throws a {@link SessionException}.
+ */
+public interface AsyncSession {
+
+    /**
+     * @see Session#read(Class, String)
+     */
+    public <T> Future<T> read(Class<T> clazz, String dn);
+    
+    /**
+     * @see Session#read(Class, String, FetchPlan)
+     */
+    public <T> Future<T> read(Class<T> clazz, String dn, FetchPlan fetchPlan);
+    
+    /**
+     * @see Session#readAll(Class, Collection)
+     */
+    public <T> Future<List<T>> readAll(Class<T> clazz, Collection<String> dns);
+    
+    /**
+     * @see Session#search(Class, String)
+     */
+    public <T> Future<List<T>> search(Class<T> clazz, String filter);
+    
+    /**
+     * @see Session#search(Class, String, FetchPlan)
+     */
+    public <T> Future<List<T>> search(Class<T> clazz, String filter, FetchPlan fetchPlan);
+    
+    /**
+     * @see Session#create(Object)
+     */
+    public Future<Void> create(Object obj);
+    
+    /**
+     * Update an entity returned by this session.
+     * 
+     * @see Session#update(Object)
+     */
+    public Future<Void> update(Object entity);
+    
+    /**
+     * @see Session#delete(String)
+     */
+    public Future<Void> delete(String dn);
+    
+    /**
+     * Delete an entity returned by this session.
+     * 
+     * @see Session#delete(Object)
+     */
+    public Future<Void> delete(Object entity);
+    
+    /**
+     * Wait for the running operations, and release the connections of this
+     * session. Operations which are still queued will fail.
+     */
+    public void close();
+    
+}
@@ -0,0 +1,60 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+/**
+ * How the session cache refers to the entities it keeps, configured per
+ * session factory.
+ */
+public enum CacheReferences {
+
+    /**
+     * Entities are kept until they are evicted, the session is cleared or
+     * closed. This is the default.
+     */
+    STRONG,
+    
+    /**
+     * Entities may be dropped by the garbage collector when the memory runs
+     * low, unless the application still refers to them.
+     */
+    SOFT,
+    
+    /**
+     * Entities are kept only as long as the application refers to them.
+     */
+    WEAK;
+    
+    /**
+     * Parse the references case insensitively, e.g. "soft".
+     * 
+     * @param references
+     * @return
+     * @throws ConfigurationException
+     *         if the references are unknown
+     */
+    public static CacheReferences parse(String references) {
+        try {
+            return valueOf(references.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("unknown cache references: " + references, e);
+        }
+    }
+    
+}
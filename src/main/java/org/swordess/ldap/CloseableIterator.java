@@ -0,0 +1,59 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator over search results which are fetched from the LDAP server
+ * lazily. Each element is constructed only when it is pulled by
+ * {@link #next()}.
+ * <p/>
+ * 
+ * The iterator closes itself once all the results have been consumed. If you
+ * stop iterating before that, call {@link #close()} to abandon the search and
+ * release the underlying resources:
+ * 
+ * <pre>
+ * CloseableIterator&lt;User&gt; users = session.iterate(User.class, filter);
+ * try {
+ *     while (users.hasNext()) {
+ *         User user = users.next();
+ *         // ...
+ *     }
+ * } finally {
+ *     users.close();
+ * }
+ * </pre>
+ * 
+ * Failures occurred while fetching results are thrown as
+ * {@link SessionException}.
+ * 
+ * @param <T>
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Abandon the search and release the underlying resources. Calling this
+     * method more than once has no effect.
+     */
+    public void close();
+    
+}
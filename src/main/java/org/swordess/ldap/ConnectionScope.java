@@ -0,0 +1,57 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+/**
+ * How long a session holds a connection, configured per session factory.
+ */
+public enum ConnectionScope {
+
+    /**
+     * A session borrows a connection when opened and gives it back when
+     * closed. This is the default.
+     */
+    SESSION,
+    
+    /**
+     * A session borrows a connection for each operation, and gives it back as
+     * soon as the operation is done, or the results of a search are closed.
+     * Idle sessions hold no connection, so that many short lived sessions
+     * could share a few pooled connections: the size of the pool caps the
+     * operations in progress, and the others wait for a free connection.
+     */
+    OPERATION;
+    
+    /**
+     * Parse a scope case insensitively, e.g. "operation".
+     * 
+     * @param scope
+     * @return
+     * @throws ConfigurationException
+     *         if the scope is unknown
+     */
+    public static ConnectionScope parse(String scope) {
+        try {
+            return valueOf(scope.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("unknown connection scope: " + scope, e);
+        }
+    }
+    
+}
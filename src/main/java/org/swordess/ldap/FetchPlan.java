@@ -0,0 +1,97 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Tells {@link Session#read(Class, String, FetchPlan)} and
+ * {@link Session#search(Class, String, FetchPlan)} which reference properties
+ * to load eagerly, in addition to those annotated with
+ * <code>@Attribute(eager = true)</code>.
+ * <p/>
+ * 
+ * The entries referenced by the eager properties of all the results are read
+ * in bulk right after the primary read or search, and put into the session
+ * cache, so that touching the references costs no further round trip:
+ * 
+ * <pre>
+ * List&lt;User&gt; users = session.search(User.class, filter, FetchPlan.eager(&quot;manager&quot;, &quot;groups&quot;));
+ * </pre>
+ * 
+ * Only the references of the results are loaded, the references of the
+ * referenced entries stay lazy. Iterated entities (see
+ * {@link Session#iterate(Class, String)}) always keep their references lazy.
+ */
+public class FetchPlan {
+
+    /**
+     * Load eagerly only the properties annotated with
+     * <code>@Attribute(eager = true)</code>.
+     */
+    public static final FetchPlan DEFAULT = new FetchPlan(true, Collections.<String>emptySet());
+    
+    /**
+     * Load nothing eagerly, not even the annotated properties.
+     */
+    public static final FetchPlan NONE = new FetchPlan(false, Collections.<String>emptySet());
+    
+    private final boolean includeAnnotated;
+    private final Set<String> propNames;
+    
+    private FetchPlan(boolean includeAnnotated, Set<String> propNames) {
+        this.includeAnnotated = includeAnnotated;
+        this.propNames = propNames;
+    }
+    
+    /**
+     * @param propNames
+     *        java bean property names of the reference properties to load
+     *        eagerly
+     * @return
+     */
+    public static FetchPlan eager(String... propNames) {
+        return new FetchPlan(true, Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(propNames))));
+    }
+    
+    /**
+     * @return whether the properties annotated with
+     *         <code>@Attribute(eager = true)</code> are loaded eagerly
+     */
+    public boolean isAnnotatedIncluded() {
+        return includeAnnotated;
+    }
+    
+    /**
+     * @return java bean property names of the reference properties to load
+     *         eagerly, besides the annotated ones
+     */
+    public Set<String> getPropNames() {
+        return propNames;
+    }
+    
+    @Override
+    public String toString() {
+        return (includeAnnotated ? "FetchPlan[annotated]" : "FetchPlan[]") + propNames;
+    }
+    
+}
@@ -18,6 +18,7 @@
  */
 package org.swordess.ldap;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -51,6 +52,11 @@ import java.util.Map;
  * }
  * </pre>
  * 
+ * Two dns naming the same entry, e.g. "CN=Foo, OU=Groups" and
+ * "cn=foo,ou=groups", are looked up as one. An entity is only returned for
+ * the class it was read as.
+ * <p/>
+ * 
  * But it may be not reliable to use <code>==</code> to compare two searches
  * directly via the given filter approach even during the same session:
  * 
@@ -93,7 +99,10 @@ import java.util.Map;
  * <b>Session Cache and Resource's Release</b>
  * <p/>
  * Each session will maintain an internal cache for accelerating the lookup
- * process.
+ * process. The cache could be bounded by the number of entities, and could
+ * refer to them softly or weakly so that they are dropped once the memory runs
+ * low or the application no longer uses them. Entities of one search result
+ * are never dropped while the search is in progress.
  * <p/>
  * Currently, there are two ways to get a session:
  * <ul>
@@ -226,6 +235,55 @@ public interface Session {
      * @return entity which carries at least all the defined attributes
      */
     public <T> T read(Class<T> clazz, String dn);
+    
+    /**
+     * Same as {@link #read(Class, String)}, and the reference properties
+     * specified by the fetch plan are loaded eagerly.
+     * 
+     * @param <T>
+     * @param clazz
+     *        an {@link Entry} annotated class
+     * @param dn
+     *        dn string
+     * @param fetchPlan
+     *        reference properties to load eagerly
+     * @return entity which carries at least all the defined attributes
+     */
+    public <T> T read(Class<T> clazz, String dn, FetchPlan fetchPlan);
+    
+    /**
+     * Lookup for entities with all the defined attributes via the specified
+     * class and dns. This is the batch version of {@link #read(Class, String)}:
+     * entries which are not in the session cache are fetched with a few
+     * searches, rather than one round trip per dn.
+     * <p/>
+     * 
+     * The returned list is in the order of the given dns, with <tt>null</tt>
+     * at the position of each dn which doesn't exist.
+     * 
+     * @param <T>
+     * @param clazz
+     *        an {@link Entry} annotated class
+     * @param dns
+     *        dn strings
+     * @return entities in the order of <tt>dns</tt>
+     */
+    public <T> List<T> readAll(Class<T> clazz, Collection<String> dns);
+    
+    /**
+     * Same as {@link #readAll(Class, Collection)}, and the reference
+     * properties specified by the fetch plan are loaded eagerly.
+     * 
+     * @param <T>
+     * @param clazz
+     *        an {@link Entry} annotated class
+     * @param dns
+     *        dn strings
+     * @param fetchPlan
+     *        reference properties to load eagerly
+     * @return entities in the order of <tt>dns</tt>
+     */
+    public <T> List<T> readAll(Class<T> clazz, Collection<String> dns, FetchPlan fetchPlan);
 
     /**
      * Lookup information via the specified clazz, dn and returning attribute
@@ -267,6 +325,41 @@ public interface Session {
      */
     public <T> List<T> search(Class<T> clazz, String filter);
     
+    /**
+     * Same as {@link #search(Class, String)}, and the reference properties
+     * specified by the fetch plan are loaded eagerly: the entries referenced by
+     * all the results are read in bulk after the search.
+     * 
+     * @param <T>
+     * @param clazz
+     *        an {@link Entry} annotated class
+     * @param filter
+     *        LDAP filter string
+     * @param fetchPlan
+     *        reference properties to load eagerly
+     * @return
+     */
+    public <T> List<T> search(Class<T> clazz, String filter, FetchPlan fetchPlan);
+    
+    /**
+     * Iterate over the entities matching the given filter. Unlike
+     * {@link #search(Class, String)}, the results are not held in a list: each
+     * entity is constructed only when it is pulled from the iterator, so that
+     * a large result could be processed with constant memory.
+     * <p/>
+     * 
+     * Entities which are already in the session cache will be reused, but the
+     * iterated entities will not be put into the cache.
+     * 
+     * @param <T>
+     * @param clazz
+     *        an {@link Entry} annotated class
+     * @param filter
+     *        LDAP filter string
+     * @return an iterator which should be closed if not iterated to the end
+     */
+    public <T> CloseableIterator<T> iterate(Class<T> clazz, String filter);
+    
     /**
      * Search for a bunch of entities via the given filter and returning
      * attribute names.
@@ -295,12 +388,47 @@ public interface Session {
      */
     public List<Map<String, Object>> search(Class<?> clazz, String filter, String[] returningAttrs);
     
+    /**
+     * Iterating version of {@link #search(Class, String, String[])}.
+     * 
+     * @param clazz
+     *        an {@link Entry} annotated class
+     * @param filter
+     *        LDAP filter string
+     * @param returningAttrs
+     *        attributes to fetch
+     * @return an iterator which should be closed if not iterated to the end
+     * @see #iterate(Class, String)
+     */
+    public CloseableIterator<Map<String, Object>> iterate(Class<?> clazz, String filter, String[] returningAttrs);
+    
     public List<Map<String, Object>> search(String context, String filter, String[] returningAttrs);
     
+    /**
+     * Iterating version of {@link #search(String, String, String[])}.
+     * 
+     * @see #iterate(Class, String)
+     */
+    public CloseableIterator<Map<String, Object>> iterate(String context, String filter, String[] returningAttrs);
+    
     public List<String> lookup(String context, String filter);
     
+    /**
+     * Iterating version of {@link #lookup(String, String)}.
+     * 
+     * @see #iterate(Class, String)
+     */
+    public CloseableIterator<String> iterateLookup(String context, String filter);
+    
     public <T> List<T> searchIndirections(Class<T> clazz, String filter);
     
+    /**
+     * Iterating version of {@link #searchIndirections(Class, String)}.
+     * 
+     * @see #iterate(Class, String)
+     */
+    public <T> CloseableIterator<T> iterateIndirections(Class<T> clazz, String filter);
+    
     /**
      * Search for a unique result via the given filter. If there are actually
      * multiple results, the first one will be returned.
@@ -345,6 +473,30 @@ public interface Session {
     
     public <T> T uniqueSearchIndirections(Class<T> clazz, String filter);
     
+    /**
+     * Remove the entity of the given dn from the session cache, so that the
+     * next lookup reads it from the LDAP server again. The evicted instance
+     * could still be updated, but it is no longer the one returned by this
+     * session.
+     * 
+     * @param dn
+     */
+    public void evict(String dn);
+    
+    /**
+     * Remove all the entities from the session cache, see
+     * {@link #evict(String)}. Unlike {@link #close()}, the session stays open.
+     */
+    public void clear();
+    
+    /**
+     * Return the usage of the session cache, which is bounded by the
+     * references and max entries configured for the session factory.
+     * 
+     * @return
+     */
+    public SessionCacheStats getCacheStats();
+    
     /**
      * Clear session cache if has and release resources this session occupies.
      * <p/>
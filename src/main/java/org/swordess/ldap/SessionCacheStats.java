@@ -0,0 +1,74 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+/**
+ * A point-in-time snapshot of the usage of a session cache.
+ */
+public class SessionCacheStats {
+
+    private final int size;
+    private final long estimatedBytes;
+    private final long evictions;
+    private final long collections;
+
+    public SessionCacheStats(int size, long estimatedBytes, long evictions, long collections) {
+        this.size = size;
+        this.estimatedBytes = estimatedBytes;
+        this.evictions = evictions;
+        this.collections = collections;
+    }
+
+    /**
+     * @return number of cached entities
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return roughly how many bytes the cached entities retain, estimated
+     *         from their property values when they were first counted
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return number of entities evicted to stay within the max entries
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of soft or weak referenced entities dropped by the
+     *         garbage collector
+     */
+    public long getCollections() {
+        return collections;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d | estimatedBytes=%d | evictions=%d | collections=%d",
+                size, estimatedBytes, evictions, collections);
+    }
+
+}
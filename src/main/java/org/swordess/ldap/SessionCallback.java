@@ -0,0 +1,37 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+/**
+ * Work done with a session whose lifetime is scoped to it, see
+ * {@link SessionFactory#execute(SessionCallback)}.
+ * 
+ * @param <T>
+ *        type of the result
+ */
+public interface SessionCallback<T> {
+
+    /**
+     * @param session
+     *        an open session, which will be closed once this method returns
+     * @return
+     */
+    public T doInSession(Session session);
+    
+}
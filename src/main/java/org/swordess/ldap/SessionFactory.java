@@ -24,6 +24,12 @@ package org.swordess.ldap;
  */
 public interface SessionFactory {
 
+    /**
+     * Whether the contexts of a session factory are pooled or not. Pooling is
+     * enabled unless this is "false".
+     */
+    public static final String POOL_ENABLED = "com.sun.jndi.ldap.connect.pool";
+
     /**
      * A list of space-separated authentication types of connections that may be
      * pooled. Valid types are "none", "simple", and "DIGEST-MD5".
@@ -71,12 +77,152 @@ public interface SessionFactory {
      */
     public static final String POOL_TIMEOUT = "com.sun.jndi.ldap.connect.pool.timeout";
     
+    /**
+     * The string representation of an integer that represents the maximum
+     * number of milliseconds to wait for a free connection when the pool is
+     * exhausted. A negative value means waiting without limit.
+     */
+    public static final String POOL_WAIT = "org.swordess.ldap.pool.wait";
+    
+    /**
+     * Whether an idle connection should be validated before it is handed out
+     * again. Valid values are "true" and "false".
+     */
+    public static final String POOL_VALIDATE = "org.swordess.ldap.pool.validate";
+    
+    /**
+     * The string representation of an integer that represents the number of
+     * entries per page when searching, using the paged results control (RFC
+     * 2696). Zero or a negative value disables paged search.
+     */
+    public static final String SEARCH_PAGE_SIZE = "org.swordess.ldap.search.pagesize";
+    
+    /**
+     * The string representation of an integer that represents the maximum
+     * number of entries fetched by one search when reading in batch, i.e. the
+     * number of terms of the OR filter.
+     */
+    public static final String BATCH_SIZE = "org.swordess.ldap.batch.size";
+    
+    /**
+     * "true" to let identical reads and searches issued at the same time by
+     * the sessions of a factory share one LDAP operation, the default is
+     * "false".
+     */
+    public static final String COALESCE_READS = "org.swordess.ldap.search.coalesce";
+    
+    /**
+     * The string representation of an integer that represents the maximum
+     * number of entries kept by the second level cache, which is shared by all
+     * the sessions of a factory. The cache is disabled if this is not
+     * positive.
+     */
+    public static final String CACHE_MAX_ENTRIES = "org.swordess.ldap.cache.maxentries";
+    
+    /**
+     * The string representation of an integer that represents the number of
+     * milliseconds an entry stays in the second level cache. Appending a class
+     * name to this key (e.g. <tt>org.swordess.ldap.cache.ttl.foo.Group</tt>)
+     * configures the time to live of that class.
+     */
+    public static final String CACHE_TTL = "org.swordess.ldap.cache.ttl";
+    
+    /**
+     * How the entities are tracked for changes, valid values are "proxy" (the
+     * default) and "snapshot". See {@link SessionMode}.
+     */
+    public static final String SESSION_MODE = "org.swordess.ldap.session.mode";
+    
+    /**
+     * How the session cache refers to the entities, valid values are "strong"
+     * (the default), "soft" and "weak". See {@link CacheReferences}.
+     */
+    public static final String SESSION_CACHE_REFERENCES = "org.swordess.ldap.session.cache.references";
+    
+    /**
+     * The string representation of an integer that represents the maximum
+     * number of entities kept by the cache of each session, the least recently
+     * used ones are evicted first. Zero or a negative value means no limit.
+     */
+    public static final String SESSION_CACHE_MAX_ENTRIES = "org.swordess.ldap.session.cache.maxentries";
+    
+    /**
+     * How long a session holds a connection, valid values are "session" (the
+     * default) and "operation". See {@link ConnectionScope}.
+     */
+    public static final String SESSION_CONNECTION_SCOPE = "org.swordess.ldap.session.connection";
+    
+    /**
+     * The string representation of an integer that represents the maximum
+     * number of operations in progress which open a connection of their own,
+     * i.e. with the "operation" connection scope or in shared sessions, when
+     * connections are not pooled. The default is 20.
+     */
+    public static final String SESSION_CONNECTION_MAX_OPERATIONS = "org.swordess.ldap.session.connection.maxoperations";
+    
+    /**
+     * The string representation of an integer that represents the number of
+     * milliseconds a session could stay open before being reported as leaked,
+     * along with where it was opened. The default is 0, which disables leak
+     * detection.
+     */
+    public static final String SESSION_LEAK_THRESHOLD = "org.swordess.ldap.session.leak.threshold";
+    
+    /**
+     * The string representation of an integer that represents the number of
+     * threads running the operations of async sessions, which is also the
+     * maximum number of connections one async session uses at a time.
+     */
+    public static final String ASYNC_THREADS = "org.swordess.ldap.async.threads";
+    
+    /**
+     * The string representation of an integer that represents the number of
+     * operations of async sessions queued when all the threads are busy.
+     */
+    public static final String ASYNC_QUEUE_SIZE = "org.swordess.ldap.async.queuesize";
+    
     /**
      * Always open a new session.
      * 
      * @return
      */
     public Session openSession();
+    
+    /**
+     * Open a read only session which keeps no state about the entities it
+     * returns, for scanning many entries.
+     * 
+     * @return
+     */
+    public StatelessSession openStatelessSession();
+    
+    /**
+     * Open a session whose operations run in the background, so that
+     * independent ones could be carried out in parallel.
+     * 
+     * @return
+     */
+    public AsyncSession openAsyncSession();
+    
+    /**
+     * Open a session which could be used by several threads at the same time,
+     * e.g. the workers of a parallel batch job. Each operation borrows a
+     * connection of its own, whatever the connection scope is, and concurrent
+     * reads of the same entry are carried out once. An entity should still be
+     * modified by one thread at a time.
+     * 
+     * @return
+     */
+    public Session openSharedSession();
+    
+    /**
+     * Open a session, do the given work with it, and close it whatever
+     * happens.
+     * 
+     * @param callback
+     * @return the result of the callback
+     */
+    public <T> T execute(SessionCallback<T> callback);
 
     /**
      * Return the current session. If not exist, a new session will be created.
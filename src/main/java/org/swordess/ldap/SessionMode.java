@@ -0,0 +1,64 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+/**
+ * How the entities of a session are tracked for changes, configured per
+ * session factory.
+ */
+public enum SessionMode {
+
+    /**
+     * Entities are cglib generated subclasses whose setters record the
+     * modified properties. This is the default.
+     */
+    PROXY,
+    
+    /**
+     * Entities are plain instances of their classes. The session keeps a
+     * snapshot of the values of each entity it loaded, and finds the changes
+     * by comparing the entity against its snapshot when updating. Entities
+     * are recognized as persistent only by the session which loaded them.
+     * <p/>
+     * 
+     * References are plain instances as well, with only their id (and dn if
+     * {@link org.swordess.ldap.odm.Distinguishable}) set, so that nothing is
+     * loaded behind the scenes, e.g. when an entity is serialized. References
+     * fetched eagerly (see {@link FetchPlan}) are replaced by the entities
+     * read, the others could be read via the session by their dns.
+     */
+    SNAPSHOT;
+    
+    /**
+     * Parse a mode case insensitively, e.g. "snapshot".
+     * 
+     * @param mode
+     * @return
+     * @throws ConfigurationException
+     *         if the mode is unknown
+     */
+    public static SessionMode parse(String mode) {
+        try {
+            return valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("unknown session mode: " + mode, e);
+        }
+    }
+    
+}
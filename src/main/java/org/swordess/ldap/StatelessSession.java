@@ -0,0 +1,99 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap;
+
+import java.util.List;
+
+/**
+ * A read only session for scanning many entries, e.g. exports. Unlike
+ * {@link Session}, it keeps nothing about the entities it returns: there is no
+ * session cache, no change tracking and no second level cache, so the heap
+ * used stays flat no matter how many entries are iterated.
+ * <p/>
+ * 
+ * Entities are plain instances of their classes. A reference property is a
+ * lazy loading proxy (or a read only list of them) which is read via this
+ * session when touched, so it must be touched before the session is closed.
+ * Multi-valued properties not present in the entry are left as the class
+ * initializes them.
+ * <p/>
+ * 
+ * Entries could also be mapped into immutable objects via a constructor
+ * annotated with {@link java.beans.ConstructorProperties}, whose names are the
+ * java bean property names of the {@link org.swordess.ldap.odm.annotation.Entry}
+ * class, or "DN" for the dn of the entry:
+ * 
+ * <pre>
+ * public class UserView {
+ *     &#064;ConstructorProperties({ &quot;DN&quot;, &quot;uid&quot;, &quot;mail&quot; })
+ *     public UserView(String dn, String uid, List&lt;String&gt; mail) {
+ *         // ...
+ *     }
+ * }
+ * 
+ * CloseableIterator&lt;UserView&gt; views = session.iterate(User.class, filter, UserView.class);
+ * </pre>
+ * 
+ * References are passed to such constructors as dns, multi-valued properties
+ * as unmodifiable lists of strings.
+ */
+public interface StatelessSession {
+
+    /**
+     * Read an entry as a plain entity.
+     * 
+     * @param clazz
+     * @param dn
+     * @return the entity, or <tt>null</tt> if not exist
+     */
+    public <T> T read(Class<T> clazz, String dn);
+    
+    public <T> List<T> search(Class<T> clazz, String filter);
+    
+    /**
+     * @return an iterator which should be closed if not iterated to the end
+     */
+    public <T> CloseableIterator<T> iterate(Class<T> clazz, String filter);
+    
+    /**
+     * Search entries of the given Entry class, each mapped into an instance of
+     * <tt>viewClass</tt> via its constructor annotated with
+     * {@link java.beans.ConstructorProperties}.
+     * 
+     * @param clazz
+     *        an Entry class
+     * @param filter
+     * @param viewClass
+     * @return
+     */
+    public <T> List<T> search(Class<?> clazz, String filter, Class<T> viewClass);
+    
+    /**
+     * @return an iterator which should be closed if not iterated to the end
+     * @see #search(Class, String, Class)
+     */
+    public <T> CloseableIterator<T> iterate(Class<?> clazz, String filter, Class<T> viewClass);
+    
+    /**
+     * Release the JNDI connection. Lazy references which have not been touched
+     * could not be loaded any more.
+     */
+    public void close();
+    
+}
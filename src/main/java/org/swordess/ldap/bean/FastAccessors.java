@@ -0,0 +1,86 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.bean;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import net.sf.cglib.reflect.FastClass;
+import net.sf.cglib.reflect.FastMethod;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.util.ComputeOnceMap;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Bytecode generated accessors of bean methods. A {@link FastMethod} invokes
+ * its method with a plain virtual call selected by index, avoiding the access
+ * checks and the native dispatch of {@link Method#invoke(Object, Object...)}.
+ * <p/>
+ * 
+ * One fast class is generated per bean class and shared by all its methods.
+ * If it could not be generated (e.g. the class is not visible to its class
+ * loader), the callers fall back to reflection.
+ */
+class FastAccessors {
+
+    private static final Log LOG = LogFactory.getLog(FastAccessors.class);
+    
+    // a class which failed to be generated is mapped to this, so that it is
+    // not tried again
+    private static final Object UNAVAILABLE = new Object();
+    
+    private static final ComputeOnceMap<Class<?>, Object> fastClasses = new ComputeOnceMap<Class<?>, Object>() {
+        protected Object compute(Class<?> clazz) {
+            try {
+                return FastClass.create(clazz);
+            } catch (Throwable e) {
+                LogUtils.debug(LOG, "Unable to generate fast class of " + clazz + ", fall back to reflection", e);
+                return UNAVAILABLE;
+            }
+        }
+    };
+    
+    private FastAccessors() {
+    }
+    
+    /**
+     * @param method
+     * @return the fast version of the given method, or <tt>null</tt> if not
+     *         available
+     */
+    static FastMethod of(Method method) {
+        if (null == method || Modifier.isPrivate(method.getModifiers())) {
+            return null;
+        }
+        
+        Object fastClass = fastClasses.get(method.getDeclaringClass());
+        if (UNAVAILABLE == fastClass) {
+            return null;
+        }
+        
+        FastClass fc = (FastClass) fastClass;
+        if (fc.getIndex(method.getName(), method.getParameterTypes()) < 0) {
+            return null;
+        }
+        return fc.getMethod(method);
+    }
+    
+}
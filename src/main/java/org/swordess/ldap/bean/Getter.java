@@ -18,8 +18,11 @@
  */
 package org.swordess.ldap.bean;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+import net.sf.cglib.reflect.FastMethod;
+
 /**
  * Getter concept in java bean specification. A standard getter should have a
  * signature like:
@@ -33,16 +36,36 @@ import java.lang.reflect.Method;
  */
 public class Getter<T> {
 
+    private static final Object[] NO_ARGS = new Object[0];
+    
     private final Method getter;
     
+    // null if the bytecode generated accessor is not available
+    private final FastMethod fastGetter;
+    
     public Getter(Method getter) {
         this.getter = getter;
+        this.fastGetter = FastAccessors.of(getter);
+    }
+    
+    /**
+     * For subclasses which access the property directly, they must override
+     * {@link #get(Object)} and {@link #getMethodName()}.
+     */
+    protected Getter() {
+        this.getter = null;
+        this.fastGetter = null;
     }
     
     @SuppressWarnings("unchecked")
 	public T get(Object target) {
         try {
+            if (null != fastGetter) {
+                return (T) fastGetter.invoke(target, NO_ARGS);
+            }
             return (T) getter.invoke(target);
+        } catch (InvocationTargetException e) {
+            throw new ReflectionException("failed to invoke getter", e.getTargetException());
         } catch (Exception e) {
             throw new ReflectionException("failed to invoke getter", e);
         }
@@ -18,8 +18,11 @@
  */
 package org.swordess.ldap.bean;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+import net.sf.cglib.reflect.FastMethod;
+
 /**
  * Setter concept in java bean specification. A standard setter should have a
  * signature like:
@@ -35,13 +38,32 @@ public class Setter {
 
     private final Method setter;
     
+    // null if the bytecode generated accessor is not available
+    private final FastMethod fastSetter;
+    
     public Setter(Method setter) {
         this.setter = setter;
+        this.fastSetter = FastAccessors.of(setter);
+    }
+    
+    /**
+     * For subclasses which access the property directly, they must override
+     * {@link #set(Object, Object)} and {@link #getMethodName()}.
+     */
+    protected Setter() {
+        this.setter = null;
+        this.fastSetter = null;
     }
     
     public void set(Object target, Object value) {
         try {
-            setter.invoke(target, value);
+            if (null != fastSetter) {
+                fastSetter.invoke(target, new Object[] { value });
+            } else {
+                setter.invoke(target, value);
+            }
+        } catch (InvocationTargetException e) {
+            throw new ReflectionException("failed to invoke setter", e.getTargetException());
         } catch (Exception e) {
             throw new ReflectionException("failed to invoke setter", e);
         }
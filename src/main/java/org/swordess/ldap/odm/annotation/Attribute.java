@@ -56,4 +56,16 @@ public @interface Attribute {
      */
     public boolean readonly() default false;
     
+    /**
+     * Indicates whether the entries this reference property points to should
+     * be loaded together with the owning entity. Eager references of all the
+     * results are read in bulk right after a read or search, instead of one
+     * read per reference when they are touched. Has no effect on
+     * non-reference properties.
+     * 
+     * @return
+     * @see org.swordess.ldap.FetchPlan
+     */
+    public boolean eager() default false;
+    
 }
@@ -48,4 +48,13 @@ public @interface Entry {
      */
     public String context();
     
+    /**
+     * Number of entries per page when searching instances of this class. If
+     * not specified, the page size of the session factory will be used. A
+     * negative value disables paged search for this class.
+     * 
+     * @return
+     */
+    public int pageSize() default 0;
+    
 }
@@ -0,0 +1,614 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.apt;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+
+import org.swordess.ldap.odm.annotation.Attribute;
+import org.swordess.ldap.odm.annotation.Entry;
+import org.swordess.ldap.odm.annotation.Id;
+import org.swordess.ldap.odm.annotation.Indirections;
+import org.swordess.ldap.odm.annotation.Indirections.Indirection;
+import org.swordess.ldap.odm.annotation.Indirections.One;
+import org.swordess.ldap.odm.annotation.Indirections.TheOther;
+import org.swordess.ldap.odm.annotation.Syntax;
+import org.swordess.ldap.odm.annotation.Transient;
+import org.swordess.ldap.odm.metadata.GeneratedMetaData;
+import org.swordess.ldap.odm.metadata.entity.EntityMapper;
+
+/**
+ * An annotation processor which generates the metadata of {@link Entry} and
+ * {@link Indirections} annotated classes at compile time, so that the runtime
+ * needs neither reflection nor annotation parsing to build them. For class
+ * <tt>com.example.User</tt>, <tt>com.example.User_MetaData</tt> is generated,
+ * which is picked up by the runtime automatically. For an {@link Entry} class,
+ * <tt>com.example.User_Mapper</tt> is generated as well, which maps the
+ * attributes of an entry to the entity with direct calls to its setters.
+ * <p/>
+ *
+ * The processor is optional and has to be enabled explicitly when compiling
+ * the annotated classes:
+ *
+ * <pre>
+ * javac -processor org.swordess.ldap.odm.apt.MetaDataProcessor ...
+ * </pre>
+ *
+ * Misconfigured classes (e.g. without an {@link Id}) are reported as compile
+ * errors. Classes whose managed methods are private are skipped with a note,
+ * their metadata is still built via reflection at runtime.
+ */
+@SupportedAnnotationTypes({ "org.swordess.ldap.odm.annotation.Entry", "org.swordess.ldap.odm.annotation.Indirections" })
+public class MetaDataProcessor extends AbstractProcessor {
+
+    private static final String ENTITY_MAPPER = "org.swordess.ldap.odm.metadata.entity.EntityMapper";
+    private static final String ENTITY_METADATA = "org.swordess.ldap.odm.metadata.entity.EntityMetaData";
+    private static final String ENTITY_PROPERTY_METADATA = "org.swordess.ldap.odm.metadata.entity.EntityPropertyMetaData";
+    private static final String INDIRECTIONS_METADATA = "org.swordess.ldap.odm.metadata.indirections.IndirectionsMetaData";
+    private static final String INDIRECTIONS_PACKAGE = "org.swordess.ldap.odm.metadata.indirections.";
+    private static final String RAW_PROPERTY_METADATA = "org.swordess.ldap.odm.metadata.RawPropertyMetaData";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(Entry.class)) {
+            if (element.getKind() == ElementKind.CLASS) {
+                generate((TypeElement) element, false);
+            }
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Indirections.class)) {
+            if (element.getKind() == ElementKind.CLASS) {
+                generate((TypeElement) element, true);
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement type, boolean indirections) {
+        if (!isAccessible(type)) {
+            note("private class, metadata will be extracted at runtime", type);
+            return;
+        }
+
+        String source;
+        String mapperSource = null;
+        try {
+            if (indirections) {
+                source = indirectionsMetaData(type);
+            } else {
+                source = entityMetaData(type);
+                mapperSource = entityMapper(type);
+            }
+        } catch (InvalidModelException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, e.getMessage(), e.element);
+            return;
+        } catch (InaccessibleModelException e) {
+            note(e.getMessage() + ", metadata will be extracted at runtime", e.element);
+            return;
+        }
+
+        write(type, GeneratedMetaData.SUFFIX, source);
+        if (null != mapperSource) {
+            write(type, EntityMapper.SUFFIX, mapperSource);
+        }
+    }
+
+    private void write(TypeElement type, String suffix, String source) {
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        try {
+            PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(binaryName + suffix, type).openWriter());
+            try {
+                out.print(source);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "Unable to generate " + binaryName + suffix + ": " + e.getMessage(), type);
+        }
+    }
+
+    private String entityMetaData(TypeElement type) {
+        Entry entry = type.getAnnotation(Entry.class);
+
+        List<String> properties = new ArrayList<String>();
+        ExecutableElement idGetter = null;
+        for (ExecutableElement getter : managedMethods(type)) {
+            Id id = getter.getAnnotation(Id.class);
+            Attribute attribute = getter.getAnnotation(Attribute.class);
+            if (null == id && null == attribute) {
+                continue;
+            }
+
+            if (null != id) {
+                if (null != idGetter) {
+                    throw new InvalidModelException(String.format("You must have only one method with the %s annotation in class %s",
+                            Id.class, type), getter);
+                }
+                idGetter = getter;
+            }
+
+            String propName = propertyName(getter);
+            String ldapPropName = ldapPropName(getter, propName);
+
+            properties.add(String.format("new %s(%s,%n                    %s, new %s(), %s, %s, %s)",
+                    ENTITY_PROPERTY_METADATA,
+                    rawProperty(type, getter, propName),
+                    literal(ldapPropName),
+                    syntaxerName(getter),
+                    null != id,
+                    null != attribute && attribute.readonly(),
+                    null != attribute && attribute.eager()));
+        }
+
+        if (null == idGetter) {
+            throw new InvalidModelException(String.format("All Entry classes must define a property with the %s annotation, error in class %s",
+                    Id.class, type), type);
+        }
+
+        StringBuilder objectClasses = new StringBuilder();
+        for (String objectClass : entry.objectClasses()) {
+            if (objectClasses.length() > 0) {
+                objectClasses.append(", ");
+            }
+            objectClasses.append(literal(objectClass));
+        }
+
+        StringBuilder create = new StringBuilder();
+        create.append(String.format("        return new %s(%s.class, %s, new String[] { %s }, %d",
+                ENTITY_METADATA, type.getQualifiedName(), literal(entry.context()), objectClasses, entry.pageSize()));
+        for (String property : properties) {
+            create.append(",\n                ").append(property);
+        }
+        create.append(");\n");
+        return compilationUnit(type, GeneratedMetaData.SUFFIX, "Metadata", GeneratedMetaData.class.getName(), ENTITY_METADATA,
+                createMethod(ENTITY_METADATA, create.toString()));
+    }
+
+    /**
+     * Source of the mapper of a valid entity class, whose metadata has been
+     * generated.
+     */
+    private String entityMapper(TypeElement type) {
+        boolean distinguishable = isAssignable(type.asType(), "org.swordess.ldap.odm.Distinguishable");
+        String context = type.getAnnotation(Entry.class).context();
+
+        StringBuilder fields = new StringBuilder();
+        StringBuilder branches = new StringBuilder();
+        StringBuilder absent = new StringBuilder();
+        StringBuilder flags = new StringBuilder();
+        int index = 0;
+        for (ExecutableElement getter : managedMethods(type)) {
+            boolean isId = null != getter.getAnnotation(Id.class);
+            if (!isId && null == getter.getAnnotation(Attribute.class)) {
+                continue;
+            }
+
+            String propName = propertyName(getter);
+            ExecutableElement setter = findSetter(type, propName, getter.getReturnType());
+            String set = "entity." + setter.getSimpleName() + "((" + castType(setter.getParameters().get(0).asType()) + ") ";
+            boolean isMultiple = isList(getter.getReturnType());
+            TypeMirror valueType = isMultiple ? valueType(getter) : getter.getReturnType();
+            Element valueElement = processingEnv.getTypeUtils().asElement(valueType);
+            boolean isReference = null != valueElement && null != valueElement.getAnnotation(Entry.class);
+
+            String syntaxer = "syntaxer" + index;
+            String present = "present" + index;
+            index++;
+
+            StringBuilder branch = new StringBuilder();
+            if (isId) {
+                branch.append(String.format("                Object value = attr.get();%n"));
+                branch.append(String.format("                %svalue);%n", set));
+                if (distinguishable) {
+                    branch.append(String.format("                entity.setDN(attr.getID() + \"=\" + value + %s);%n", literal("," + context)));
+                }
+            } else {
+                fields.append(String.format("    private final %1$s %2$s = new %1$s();%n", syntaxerName(getter), syntaxer));
+                if (!isMultiple) {
+                    String value = syntaxer + ".ldapStringToJavaString(attr.get().toString())";
+                    if (isReference) {
+                        value = String.format("values.reference(%s.class, %s)", erasure(valueType), value);
+                    }
+                    branch.append(String.format("                Object value = %s;%n", value));
+                    branch.append(String.format("                %svalue);%n", set));
+                } else {
+                    branch.append(String.format("                %s%s);%n", set, isReference
+                            ? String.format("values.references(%s.class, attr, %s)", erasure(valueType), syntaxer)
+                            : String.format("values.values(attr, %s)", syntaxer)));
+                    branch.append(String.format("                %s = true;%n", present));
+                    flags.append(String.format("        boolean %s = false;%n", present));
+                    absent.append(String.format("        if (!%s) {%n            %svalues.noValues());%n        }%n", present, set));
+                }
+            }
+
+            branches.append(branches.length() == 0 ? "            " : " else ");
+            branches.append(String.format("if (id.equalsIgnoreCase(%s)) {%n%s            }", literal(ldapPropName(getter, propName)), branch));
+        }
+        if (branches.length() > 0) {
+            branches.append(String.format("%n"));
+        }
+
+        StringBuilder members = new StringBuilder(fields);
+        if (fields.length() > 0) {
+            members.append(String.format("%n"));
+        }
+        members.append(String.format("    @Override%n"));
+        members.append(String.format("    @SuppressWarnings(\"unchecked\")%n"));
+        members.append(String.format("    public void map(%s entity, javax.naming.directory.Attributes attributes,%n"
+                + "            %s.Values values) throws javax.naming.NamingException {%n", type.getQualifiedName(), ENTITY_MAPPER));
+        members.append(flags);
+        members.append(String.format("        for (javax.naming.NamingEnumeration<? extends javax.naming.directory.Attribute> attrs = attributes.getAll(); attrs.hasMore();) {%n"));
+        members.append(String.format("            javax.naming.directory.Attribute attr = attrs.next();%n"));
+        members.append(String.format("            String id = attr.getID();%n"));
+        members.append(branches);
+        members.append(String.format("        }%n"));
+        members.append(absent);
+        members.append(String.format("    }%n%n"));
+        return compilationUnit(type, EntityMapper.SUFFIX, "Mapper", ENTITY_MAPPER, type.getQualifiedName().toString(), members.toString());
+    }
+
+    private String indirectionsMetaData(TypeElement type) {
+        String one = "null";
+        String theOther = "null";
+        for (ExecutableElement getter : managedMethods(type)) {
+            One oneAnnotation = getter.getAnnotation(One.class);
+            TheOther theOtherAnnotation = getter.getAnnotation(TheOther.class);
+            if (null != oneAnnotation) {
+                if (!"null".equals(one)) {
+                    throw new InvalidModelException(String.format("You must have only one method with the %s annotation in class %s",
+                            One.class, type), getter);
+                }
+                if (!isType(getter.getReturnType(), "java.lang.String")) {
+                    throw new InvalidModelException(String.format("%s annotation must be annotated on a method with return type %s",
+                            One.class, String.class), getter);
+                }
+                one = String.format("new %sOneMetaData(new %s(%s),%n                    %s)", INDIRECTIONS_PACKAGE, RAW_PROPERTY_METADATA,
+                        rawProperty(type, getter, propertyName(getter)), describer(oneAnnotation.value()));
+
+            } else if (null != theOtherAnnotation) {
+                if (!"null".equals(theOther)) {
+                    throw new InvalidModelException(String.format("You must have only one method with the %s annotation in class %s",
+                            TheOther.class, type), getter);
+                }
+                if (!isList(getter.getReturnType()) || !isType(valueType(getter), "java.lang.String")) {
+                    throw new InvalidModelException(String.format("%s annotation must be annotated on a method with return type List<String>",
+                            TheOther.class), getter);
+                }
+                StringBuilder describers = new StringBuilder();
+                for (Indirection indirection : theOtherAnnotation.value()) {
+                    describers.append(",\n                    ").append(describer(indirection));
+                }
+                theOther = String.format("new %sTheOtherMetaData(new %s(%s)%s)", INDIRECTIONS_PACKAGE, RAW_PROPERTY_METADATA,
+                        rawProperty(type, getter, propertyName(getter)), describers);
+            }
+        }
+
+        String create = String.format("        return new %s(%s.class,%n                %s,%n                %s);%n",
+                INDIRECTIONS_METADATA, type.getQualifiedName(), one, theOther);
+        return compilationUnit(type, GeneratedMetaData.SUFFIX, "Metadata", GeneratedMetaData.class.getName(), INDIRECTIONS_METADATA,
+                createMethod(INDIRECTIONS_METADATA, create));
+    }
+
+    private String createMethod(String metaDataType, String createBody) {
+        StringBuilder source = new StringBuilder();
+        source.append("    @Override\n");
+        source.append("    public ").append(metaDataType).append(" create() {\n");
+        source.append(createBody);
+        source.append("    }\n\n");
+        return source.toString();
+    }
+
+    private String compilationUnit(TypeElement type, String suffix, String description, String superClass, String typeArgument,
+            String members) {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = (packageName.length() == 0 ? binaryName : binaryName.substring(packageName.length() + 1)) + suffix;
+
+        StringBuilder source = new StringBuilder();
+        if (packageName.length() > 0) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n");
+        source.append(" * ").append(description).append(" of {@link ").append(type.getQualifiedName()).append("}, generated by\n");
+        source.append(" * ").append(getClass().getName()).append(", do not edit.\n");
+        source.append(" */\n");
+        source.append("public final class ").append(simpleName).append(" extends ")
+                .append(superClass).append('<').append(typeArgument).append("> {\n\n");
+        source.append(members);
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Source of the constructor arguments of a RawPropertyMetaData whose getter
+     * and setter call the property's methods directly.
+     */
+    private String rawProperty(TypeElement type, ExecutableElement getter, String propName) {
+        TypeMirror propertyType = getter.getReturnType();
+        if (isAssignable(propertyType, "java.util.Set")) {
+            throw new InvalidModelException(String.format("Only lists are allowed for multivlaued attributes, error in property %1$s in class %2$s",
+                    propName, type), getter);
+        }
+
+        ExecutableElement setter = findSetter(type, propName, propertyType);
+        if (null == setter) {
+            throw new InvalidModelException("Unable to find setter for property " + propName, getter);
+        }
+        if (setter.getModifiers().contains(Modifier.PRIVATE)) {
+            throw new InaccessibleModelException("private setter " + setter.getSimpleName(), setter);
+        }
+
+        boolean isMultiple = isList(propertyType);
+        TypeMirror valueType = isMultiple ? valueType(getter) : propertyType;
+        if (null == valueType) {
+            throw new InvalidModelException(String.format("Can't determine destination type for property %1$s in class %2$s",
+                    propName, type), getter);
+        }
+
+        String target = "((" + type.getQualifiedName() + ") target)";
+        return String.format("%s, %s.class, %s,%n"
+                + "                    new org.swordess.ldap.bean.Getter<Object>() {%n"
+                + "                        public Object get(Object target) { return %s.%s(); }%n"
+                + "                        public String getMethodName() { return %s; }%n"
+                + "                    },%n"
+                + "                    new org.swordess.ldap.bean.Setter() {%n"
+                + "                        public void set(Object target, Object value) { %s.%s((%s) value); }%n"
+                + "                        public String getMethodName() { return %s; }%n"
+                + "                    }",
+                literal(propName), erasure(valueType), isMultiple,
+                target, getter.getSimpleName(), literal(getter.getSimpleName().toString()),
+                target, setter.getSimpleName(), castType(setter.getParameters().get(0).asType()), literal(setter.getSimpleName().toString()));
+    }
+
+    /**
+     * Methods which are managed at runtime: neither static nor transient.
+     */
+    private List<ExecutableElement> managedMethods(TypeElement type) {
+        List<ExecutableElement> retVal = new ArrayList<ExecutableElement>();
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (method.getModifiers().contains(Modifier.STATIC) || null != method.getAnnotation(Transient.class)) {
+                continue;
+            }
+            if (null == method.getAnnotation(Id.class) && null == method.getAnnotation(Attribute.class)
+                    && null == method.getAnnotation(One.class) && null == method.getAnnotation(TheOther.class)) {
+                continue;
+            }
+            if (method.getModifiers().contains(Modifier.PRIVATE)) {
+                throw new InaccessibleModelException("private method " + method.getSimpleName(), method);
+            }
+            retVal.add(method);
+        }
+        return retVal;
+    }
+
+    private String ldapPropName(ExecutableElement getter, String propName) {
+        Id id = getter.getAnnotation(Id.class);
+        Attribute attribute = getter.getAnnotation(Attribute.class);
+        String ldapPropName = null;
+        if (null != id) {
+            ldapPropName = "".equals(id.name()) ? null : id.name();
+        } else if (!"".equals(attribute.name())) {
+            ldapPropName = attribute.name();
+        }
+        return null != ldapPropName ? ldapPropName : propName;
+    }
+
+    private String propertyName(ExecutableElement getter) {
+        String name = getter.getSimpleName().toString();
+        if (getter.getParameters().isEmpty() && getter.getReturnType().getKind() != TypeKind.VOID) {
+            if (name.startsWith("get")) {
+                return uncapitalize(name.substring(3));
+            } else if (name.startsWith("is")) {
+                return uncapitalize(name.substring(2));
+            }
+        }
+        throw new InvalidModelException(getter + " is not a getter", getter);
+    }
+
+    private ExecutableElement findSetter(TypeElement type, String propName, TypeMirror propertyType) {
+        String setterName = "set" + capitalize(propName);
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (method.getSimpleName().contentEquals(setterName) && method.getParameters().size() == 1
+                    && processingEnv.getTypeUtils().isSameType(
+                            processingEnv.getTypeUtils().erasure(method.getParameters().get(0).asType()),
+                            processingEnv.getTypeUtils().erasure(propertyType))) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the element type of a List property, or <tt>null</tt> if it
+     *         could not be determined
+     */
+    private TypeMirror valueType(ExecutableElement getter) {
+        TypeMirror propertyType = getter.getReturnType();
+        if (propertyType.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        List<? extends TypeMirror> typeArguments = ((DeclaredType) propertyType).getTypeArguments();
+        if (typeArguments.size() != 1) {
+            return null;
+        }
+        TypeMirror valueType = typeArguments.get(0);
+        if (valueType.getKind() != TypeKind.DECLARED && valueType.getKind() != TypeKind.ARRAY) {
+            return null;
+        }
+        return valueType;
+    }
+
+    private String syntaxerName(ExecutableElement getter) {
+        Syntax syntax = getter.getAnnotation(Syntax.class);
+        if (null == syntax) {
+            return Syntax.StringSyntaxer.class.getCanonicalName();
+        }
+        try {
+            return syntax.value().getCanonicalName();
+        } catch (MirroredTypeException e) {
+            TypeMirror syntaxerType = e.getTypeMirror();
+            Element syntaxer = processingEnv.getTypeUtils().asElement(syntaxerType);
+            if (syntaxer instanceof TypeElement && !isAccessible((TypeElement) syntaxer)) {
+                throw new InaccessibleModelException("private syntaxer " + syntaxerType, getter);
+            }
+            return erasure(syntaxerType);
+        }
+    }
+
+    private String describer(Indirection indirection) {
+        return String.format("new %sIndirectionDescriber(%s, %s, %s)", INDIRECTIONS_PACKAGE,
+                literal(indirection.context()), literal(indirection.id()), literal(indirection.attr()));
+    }
+
+    private boolean isAccessible(TypeElement type) {
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+            // an inner class can't be instantiated without its outer instance
+            return false;
+        }
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isList(TypeMirror type) {
+        return isAssignable(type, "java.util.List");
+    }
+
+    private boolean isAssignable(TypeMirror type, String className) {
+        TypeElement element = processingEnv.getElementUtils().getTypeElement(className);
+        return type.getKind() == TypeKind.DECLARED && processingEnv.getTypeUtils().isAssignable(
+                processingEnv.getTypeUtils().erasure(type), processingEnv.getTypeUtils().erasure(element.asType()));
+    }
+
+    private boolean isType(TypeMirror type, String className) {
+        return null != type && type.getKind() == TypeKind.DECLARED && erasure(type).equals(className);
+    }
+
+    private String erasure(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private String castType(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        return erasure(type);
+    }
+
+    private void note(String message, Element element) {
+        processingEnv.getMessager().printMessage(Kind.NOTE, message, element);
+    }
+
+    private static String capitalize(String str) {
+        return str.length() == 0 ? str : Character.toUpperCase(str.charAt(0)) + str.substring(1);
+    }
+
+    private static String uncapitalize(String str) {
+        return str.length() == 0 ? str : Character.toLowerCase(str.charAt(0)) + str.substring(1);
+    }
+
+    private static String literal(String value) {
+        StringBuilder retVal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+            case '"':
+                retVal.append("\\\"");
+                break;
+            case '\\':
+                retVal.append("\\\\");
+                break;
+            case '\n':
+                retVal.append("\\n");
+                break;
+            case '\r':
+                retVal.append("\\r");
+                break;
+            case '\t':
+                retVal.append("\\t");
+                break;
+            default:
+                if (c < 0x20 || c > 0x7e) {
+                    retVal.append(String.format("\\u%04x", (int) c));
+                } else {
+                    retVal.append(c);
+                }
+            }
+        }
+        return retVal.append('"').toString();
+    }
+
+    /**
+     * The annotated class is misconfigured, reported as a compile error.
+     */
+    @SuppressWarnings("serial")
+    private static class InvalidModelException extends RuntimeException {
+
+        final Element element;
+
+        InvalidModelException(String message, Element element) {
+            super(message);
+            this.element = element;
+        }
+
+    }
+
+    /**
+     * The annotated class could not be accessed by the generated code, it is
+     * left to the runtime.
+     */
+    @SuppressWarnings("serial")
+    private static class InaccessibleModelException extends RuntimeException {
+
+        final Element element;
+
+        InaccessibleModelException(String message, Element element) {
+            super(message);
+            this.element = element;
+        }
+
+    }
+
+}
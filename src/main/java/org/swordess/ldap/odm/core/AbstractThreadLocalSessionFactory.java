@@ -1,63 +1,561 @@
 package org.swordess.ldap.odm.core;
 
-import java.util.AbstractMap;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.ldap.InitialLdapContext;
 
+import org.swordess.ldap.AsyncSession;
+import org.swordess.ldap.CacheReferences;
+import org.swordess.ldap.ConfigurationException;
+import org.swordess.ldap.ConnectionScope;
 import org.swordess.ldap.Session;
+import org.swordess.ldap.SessionCallback;
 import org.swordess.ldap.SessionFactory;
+import org.swordess.ldap.SessionMode;
+import org.swordess.ldap.StatelessSession;
 import org.swordess.ldap.odm.ODMException;
+import org.swordess.ldap.odm.metadata.entity.EntityMetaData;
 
 public abstract class AbstractThreadLocalSessionFactory implements SessionFactory {
 
-	private ThreadLocal<Map.Entry<Session, InitialLdapContext>> sessions = new ThreadLocal<Map.Entry<Session, InitialLdapContext>>();
+	private ThreadLocal<SessionImpl> sessions = new ThreadLocal<SessionImpl>();
 
-	protected abstract InitialLdapContext getContext() throws NamingException;
+	private final SessionTracker sessionTracker = new SessionTracker();
+
+	/**
+	 * Contexts pool of this factory, <tt>null</tt> if pooling is disabled.
+	 */
+	private final ContextPool pool;
+
+	/**
+	 * Default number of entries per page when searching, paged search is
+	 * disabled if not positive.
+	 */
+	private int pageSize;
+
+	/**
+	 * Maximum number of entries fetched by one search when reading in batch.
+	 */
+	private int batchSize = 100;
+
+	/**
+	 * Cache shared by all sessions of this factory, <tt>null</tt> if
+	 * disabled.
+	 */
+	private volatile SecondLevelCache secondLevelCache;
+
+	/**
+	 * Shares identical reads and searches in progress, <tt>null</tt> if
+	 * disabled.
+	 */
+	private volatile ReadCoalescer readCoalescer;
+
+	/**
+	 * How the entities of the sessions of this factory are tracked for
+	 * changes.
+	 */
+	private SessionMode sessionMode = SessionMode.PROXY;
+
+	/**
+	 * How long the sessions of this factory hold a context.
+	 */
+	private ConnectionScope connectionScope = ConnectionScope.SESSION;
+
+	/**
+	 * How long an operation waits for another one to end when the operations
+	 * in progress are capped, see {@link #beginOperation()}.
+	 */
+	private static final long OPERATION_WAIT_MILLIS = 30000;
+
+	/**
+	 * Caps the operations in progress with contexts of their own when the
+	 * contexts are not pooled, otherwise the pool caps them.
+	 */
+	private int maxOperations = 20;
+	private volatile Semaphore operationPermits = new Semaphore(maxOperations, true);
+
+	/**
+	 * How the cache of each session refers to the entities.
+	 */
+	private CacheReferences sessionCacheReferences = CacheReferences.STRONG;
+
+	/**
+	 * Maximum number of entities kept by the cache of each session, no limit
+	 * if not positive.
+	 */
+	private int sessionCacheMaxEntries;
+
+	/**
+	 * Number of threads of the executor running the operations of async
+	 * sessions, and number of pending operations it queues.
+	 */
+	private int asyncThreads = 4;
+	private int asyncQueueSize = 100;
+
+	/**
+	 * Executor of the async sessions, created on demand if not set.
+	 */
+	private ExecutorService asyncExecutor;
+	private boolean ownsAsyncExecutor;
+
+	/**
+	 * Create a factory whose contexts are not pooled, i.e. each session gets a
+	 * new context.
+	 */
+	protected AbstractThreadLocalSessionFactory() {
+		this(null);
+	}
+
+	/**
+	 * @param poolConfig
+	 *        configuration of the contexts pool, or <tt>null</tt> to disable
+	 *        pooling
+	 */
+	protected AbstractThreadLocalSessionFactory(ContextPool.Config poolConfig) {
+		if (null != poolConfig) {
+			pool = new ContextPool(new ContextPool.ContextCreator() {
+				public InitialLdapContext create() throws NamingException {
+					return createContext();
+				}
+			}, poolConfig);
+		} else {
+			pool = null;
+		}
+	}
+
+	/**
+	 * Create a new physical context. This will be called by the pool only when
+	 * there is no idle context to reuse.
+	 * 
+	 * @return
+	 * @throws NamingException
+	 */
+	protected abstract InitialLdapContext createContext() throws NamingException;
+
+	/**
+	 * Borrow a context from the pool of this factory. The context should be
+	 * given back via {@link #releaseContext(InitialLdapContext)}.
+	 * 
+	 * @return
+	 * @throws NamingException
+	 */
+	protected InitialLdapContext getContext() throws NamingException {
+		return null != pool ? pool.borrow() : createContext();
+	}
 
 	@Override
 	public Session openSession() {
+		return new SessionImpl(this, newContextLease(), sessionTracker.open(), false);
+	}
+
+	@Override
+	public StatelessSession openStatelessSession() {
+		return new StatelessSessionImpl(this, newContextLease(), sessionTracker.open());
+	}
+
+	@Override
+	public <T> T execute(SessionCallback<T> callback) {
+		Session session = openSession();
 		try {
-			return new SessionImpl(this, getContext(), false);
-		} catch (NamingException e) {
-			throw new ODMException("Cannot instantiate a session");
+			return callback.doInSession(session);
+		} finally {
+			session.close();
 		}
 	}
 
+	@Override
+	public AsyncSession openAsyncSession() {
+		return new AsyncSessionImpl(this, sessionTracker.open());
+	}
+
+	@Override
+	public Session openSharedSession() {
+		return SessionImpl.shared(this, sessionTracker.open());
+	}
+
 	/**
 	 * Return the session which the current thread holds. If not exist, a new
-	 * session will be created and bind to current thread.
+	 * session will be created and bind to current thread. The same session is
+	 * returned until it is closed, either directly or through
+	 * {@link #closeCurrentSession()}.
 	 * 
 	 * @return
 	 */
 	@Override
 	public Session getCurrentSession() {
-		Map.Entry<Session, InitialLdapContext> current = sessions.get();
-		if (null == current) {
-			try {
-				InitialLdapContext ldapConnection = getContext();
-				Session session = new SessionImpl(this, ldapConnection, true);
-				current = new AbstractMap.SimpleEntry<Session, InitialLdapContext>(
-						session, ldapConnection);
-			} catch (NamingException e) {
-				throw new ODMException("Cannot instantiate a session", e);
-			}
+		SessionImpl current = sessions.get();
+		if (null != current && !current.isClosed()) {
+			sessionTracker.reused();
+			return current;
 		}
-		return current.getKey();
+
+		current = new SessionImpl(this, newContextLease(), sessionTracker.open(), true);
+		sessions.set(current);
+		return current;
 	}
 
 	@Override
 	public void closeCurrentSession() {
-		Map.Entry<Session, InitialLdapContext> current = sessions.get();
+		SessionImpl current = sessions.get();
 		if (null != current) {
-			closeLdapContext(current.getValue());
-			sessions.set(null);
+			sessions.remove();
+			current.close();
+		}
+	}
+
+	/* package */void unbindCurrentSession(SessionImpl session) {
+		if (session == sessions.get()) {
+			sessions.remove();
+		}
+	}
+
+	/**
+	 * Return the counters of the sessions opened by this factory.
+	 * 
+	 * @return
+	 */
+	public SessionTracker.Stats getSessionStats() {
+		return sessionTracker.getStats();
+	}
+
+	public long getSessionLeakThreshold() {
+		return sessionTracker.getLeakThreshold();
+	}
+
+	/**
+	 * Report each session which stays open longer than the given threshold,
+	 * together with the stack trace of where it was opened.
+	 * 
+	 * @param leakThreshold
+	 *        in milliseconds, 0 to disable leak detection
+	 */
+	public void setSessionLeakThreshold(long leakThreshold) {
+		if (leakThreshold < 0) {
+			throw new ConfigurationException("session leak threshold must not be negative: " + leakThreshold);
+		}
+		sessionTracker.setLeakThreshold(leakThreshold);
+	}
+
+	/**
+	 * Return the statistics of the contexts pool, or <tt>null</tt> if pooling
+	 * is disabled.
+	 * 
+	 * @return
+	 */
+	public ContextPool.Stats getPoolStats() {
+		return null != pool ? pool.getStats() : null;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Set the default number of entries per page when searching. Searches
+	 * will use the paged results control (RFC 2696) if this is positive, so
+	 * that large results could be fetched without hitting the size limit of
+	 * the server. The page size of an
+	 * {@link org.swordess.ldap.odm.annotation.Entry} class takes precedence
+	 * over this one.
+	 * 
+	 * @param pageSize
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Page size of the given Entry class, falling back to the one of this
+	 * factory.
+	 */
+	/* package */int pageSizeOf(Class<?> clazz) {
+		int pageSize = EntityMetaData.get(clazz).pageSize();
+		return 0 != pageSize ? pageSize : getPageSize();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set the maximum number of entries fetched by one search when reading in
+	 * batch. Keep it small enough for the filter length limit of the server.
+	 * 
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new ConfigurationException("batch size must be positive: " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	public SecondLevelCache getSecondLevelCache() {
+		return secondLevelCache;
+	}
+
+	/**
+	 * Enable a second level cache shared by all the sessions of this factory,
+	 * so that entries read by one session could be constructed by another
+	 * without asking the LDAP server again. Pass <tt>null</tt> to disable it.
+	 * 
+	 * @param secondLevelCache
+	 */
+	public void setSecondLevelCache(SecondLevelCache secondLevelCache) {
+		this.secondLevelCache = secondLevelCache;
+	}
+
+	public boolean isCoalesceReads() {
+		return null != readCoalescer;
+	}
+
+	/**
+	 * Let identical reads and searches issued at the same time by the sessions
+	 * of this factory share one LDAP operation, e.g. when many users log in at
+	 * once. Only searches returning lists are shared, iterations are not.
+	 * 
+	 * @param coalesceReads
+	 */
+	public void setCoalesceReads(boolean coalesceReads) {
+		if (coalesceReads != isCoalesceReads()) {
+			readCoalescer = coalesceReads ? new ReadCoalescer() : null;
+		}
+	}
+
+	/* package */ReadCoalescer readCoalescer() {
+		return readCoalescer;
+	}
+
+	public SessionMode getSessionMode() {
+		return sessionMode;
+	}
+
+	/**
+	 * Set how the entities of the sessions opened afterwards are tracked for
+	 * changes.
+	 * 
+	 * @param sessionMode
+	 */
+	public void setSessionMode(SessionMode sessionMode) {
+		if (null == sessionMode) {
+			throw new ConfigurationException("session mode must not be null");
+		}
+		this.sessionMode = sessionMode;
+	}
+
+	public CacheReferences getSessionCacheReferences() {
+		return sessionCacheReferences;
+	}
+
+	/**
+	 * Set how the cache of each session opened afterwards refers to the
+	 * entities. Soft or weak references let long running sessions give
+	 * memory back to the garbage collector.
+	 * 
+	 * @param sessionCacheReferences
+	 */
+	public void setSessionCacheReferences(CacheReferences sessionCacheReferences) {
+		if (null == sessionCacheReferences) {
+			throw new ConfigurationException("session cache references must not be null");
+		}
+		this.sessionCacheReferences = sessionCacheReferences;
+	}
+
+	public int getSessionCacheMaxEntries() {
+		return sessionCacheMaxEntries;
+	}
+
+	/**
+	 * Set the maximum number of entities kept by the cache of each session
+	 * opened afterwards, the least recently used ones are evicted first. Zero
+	 * or a negative value means no limit.
+	 * 
+	 * @param sessionCacheMaxEntries
+	 */
+	public void setSessionCacheMaxEntries(int sessionCacheMaxEntries) {
+		this.sessionCacheMaxEntries = sessionCacheMaxEntries;
+	}
+
+	public int getAsyncThreads() {
+		return asyncThreads;
+	}
+
+	/**
+	 * Set the number of threads of the executor of async sessions, which is
+	 * also the maximum number of connections an async session uses at a time.
+	 * Takes effect unless the executor has been created, i.e. an async
+	 * session has been opened.
+	 * 
+	 * @param asyncThreads
+	 */
+	public void setAsyncThreads(int asyncThreads) {
+		if (asyncThreads <= 0) {
+			throw new ConfigurationException("async threads must be positive: " + asyncThreads);
 		}
+		this.asyncThreads = asyncThreads;
 	}
 
-	/* package */void closeLdapContext(InitialLdapContext ctx) {
-		if (null != ctx) {
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	/**
+	 * Set the number of operations the executor of async sessions queues when
+	 * all its threads are busy, further operations are rejected. Takes effect
+	 * unless the executor has been created.
+	 * 
+	 * @param asyncQueueSize
+	 */
+	public void setAsyncQueueSize(int asyncQueueSize) {
+		if (asyncQueueSize <= 0) {
+			throw new ConfigurationException("async queue size must be positive: " + asyncQueueSize);
+		}
+		this.asyncQueueSize = asyncQueueSize;
+	}
+
+	/**
+	 * Run the operations of async sessions on the given executor rather than
+	 * the one created by this factory. The executor is not shut down when
+	 * this factory is closed.
+	 * 
+	 * @param asyncExecutor
+	 */
+	public synchronized void setAsyncExecutor(ExecutorService asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+		this.ownsAsyncExecutor = false;
+	}
+
+	/* package */synchronized ExecutorService asyncExecutor() {
+		if (null == asyncExecutor) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(asyncQueueSize), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "swordess-ldap-async-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			asyncExecutor = executor;
+			ownsAsyncExecutor = true;
+		}
+		return asyncExecutor;
+	}
+
+	public ConnectionScope getConnectionScope() {
+		return connectionScope;
+	}
+
+	/**
+	 * Set how long the sessions opened afterwards hold a context. With
+	 * {@link ConnectionScope#OPERATION}, a context is borrowed for each
+	 * operation only, so that the maximum size of the pool caps the
+	 * operations in progress rather than the sessions open. Without a pool,
+	 * {@link #setMaxOperations(int)} caps them.
+	 * 
+	 * @param connectionScope
+	 */
+	public void setConnectionScope(ConnectionScope connectionScope) {
+		if (null == connectionScope) {
+			throw new ConfigurationException("connection scope must not be null");
+		}
+		this.connectionScope = connectionScope;
+	}
+
+	public int getMaxOperations() {
+		return maxOperations;
+	}
+
+	/**
+	 * Set the maximum number of operations in progress which borrow a context
+	 * for themselves, i.e. the operations of sessions with
+	 * {@link ConnectionScope#OPERATION} or of shared sessions. Only applies
+	 * when the contexts are not pooled, as each of these operations opens a
+	 * new connection then, otherwise the maximum size of the pool caps them.
+	 * 
+	 * @param maxOperations
+	 */
+	public void setMaxOperations(int maxOperations) {
+		if (maxOperations <= 0) {
+			throw new ConfigurationException("max operations must be positive: " + maxOperations);
+		}
+		this.maxOperations = maxOperations;
+		this.operationPermits = new Semaphore(maxOperations, true);
+	}
+
+	/**
+	 * Wait until an operation with a context of its own could start, see
+	 * {@link #setMaxOperations(int)}.
+	 * 
+	 * @return the permit to give back once the operation ends, or
+	 *         <tt>null</tt> if the contexts are pooled
+	 * @throws NamingException
+	 *         if timed out or interrupted while waiting
+	 */
+	/* package */Semaphore beginOperation() throws NamingException {
+		if (null != pool) {
+			return null;
+		}
+		Semaphore permits = operationPermits;
+		try {
+			if (!permits.tryAcquire(OPERATION_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+				throw new ServiceUnavailableException(String.format(
+						"Timed out after %dms waiting for an operation to end, max operations is %d",
+						OPERATION_WAIT_MILLIS, maxOperations));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Interrupted while waiting for an operation to end");
+		}
+		return permits;
+	}
+
+	/* package */ContextLease newContextLease() {
+		if (ConnectionScope.OPERATION == connectionScope) {
+			return ContextLease.scoped(this);
+		}
+		try {
+			return ContextLease.held(this, getContext());
+		} catch (NamingException e) {
+			throw new ODMException("Cannot instantiate a session", e);
+		}
+	}
+
+	/**
+	 * Close all the idle pooled contexts of this factory, and shut down the
+	 * executor of async sessions if created by this factory. Contexts which
+	 * are still in use will be closed once their sessions are closed.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (ownsAsyncExecutor) {
+				asyncExecutor.shutdown();
+				asyncExecutor = null;
+				ownsAsyncExecutor = false;
+			}
+		}
+		if (null != pool) {
+			pool.close();
+		}
+	}
+
+	/* package */void releaseContext(InitialLdapContext ctx) {
+		if (null == ctx) {
+			return;
+		}
+		if (null != pool) {
+			pool.release(ctx);
+		} else {
 			try {
 				ctx.close();
 			} catch (NamingException e) {
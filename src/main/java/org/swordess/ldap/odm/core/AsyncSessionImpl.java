@@ -0,0 +1,347 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.swordess.ldap.AsyncSession;
+import org.swordess.ldap.FetchPlan;
+import org.swordess.ldap.Session;
+import org.swordess.ldap.SessionException;
+import org.swordess.ldap.odm.core.SessionImpl.Persistent;
+
+/**
+ * An {@link AsyncSession} which runs each operation on the executor of its
+ * factory, with one of its worker sessions. A worker session is used by one
+ * thread at a time: an operation locks it while running, and so does the
+ * loading of the lazy references of the entities it returned. A thread never
+ * waits for a worker while holding another one: references loaded during an
+ * operation are read by the worker of that operation.
+ */
+class AsyncSessionImpl implements AsyncSession {
+
+    private final AbstractThreadLocalSessionFactory sessionFactory;
+    private final ExecutorService executor;
+    private final int maxWorkers;
+    
+    // guarded by itself
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private int nextWorker;
+    
+    private volatile boolean closed;
+    
+    // the worker sessions are not tracked on their own
+    private final SessionTracker.Ticket ticket;
+    
+    AsyncSessionImpl(AbstractThreadLocalSessionFactory sessionFactory, SessionTracker.Ticket ticket) {
+        this.sessionFactory = sessionFactory;
+        this.ticket = ticket;
+        this.executor = sessionFactory.asyncExecutor();
+        this.maxWorkers = sessionFactory.getAsyncThreads();
+    }
+    
+    @Override
+    public <T> Future<T> read(Class<T> clazz, String dn) {
+        return read(clazz, dn, FetchPlan.DEFAULT);
+    }
+    
+    @Override
+    public <T> Future<T> read(final Class<T> clazz, final String dn, final FetchPlan fetchPlan) {
+        return submit(null, new Operation<T>() {
+            T run(Session session) {
+                return session.read(clazz, dn, fetchPlan);
+            }
+        });
+    }
+    
+    @Override
+    public <T> Future<List<T>> readAll(final Class<T> clazz, Collection<String> dns) {
+        // copied, as the caller may change it before the operation runs
+        final List<String> dnList = null != dns ? new ArrayList<String>(dns) : null;
+        return submit(null, new Operation<List<T>>() {
+            List<T> run(Session session) {
+                return session.readAll(clazz, dnList);
+            }
+        });
+    }
+    
+    @Override
+    public <T> Future<List<T>> search(Class<T> clazz, String filter) {
+        return search(clazz, filter, FetchPlan.DEFAULT);
+    }
+    
+    @Override
+    public <T> Future<List<T>> search(final Class<T> clazz, final String filter, final FetchPlan fetchPlan) {
+        return submit(null, new Operation<List<T>>() {
+            List<T> run(Session session) {
+                return session.search(clazz, filter, fetchPlan);
+            }
+        });
+    }
+    
+    @Override
+    public Future<Void> create(final Object obj) {
+        return submit(null, new Operation<Void>() {
+            Void run(Session session) {
+                session.create(obj);
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public Future<Void> update(final Object entity) {
+        return submit(entity, new Operation<Void>() {
+            Void run(Session session) {
+                session.update(entity);
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public Future<Void> delete(final String dn) {
+        return submit(null, new Operation<Void>() {
+            Void run(Session session) {
+                session.delete(dn);
+                return null;
+            }
+            
+            void afterwards() {
+                evict(dn);
+            }
+        });
+    }
+    
+    @Override
+    public Future<Void> delete(final Object entity) {
+        final String dn = DnHelper.build(entity);
+        return submit(entity, new Operation<Void>() {
+            Void run(Session session) {
+                session.delete(entity);
+                return null;
+            }
+            
+            void afterwards() {
+                evict(dn);
+            }
+        });
+    }
+    
+    @Override
+    public void close() {
+        closed = true;
+        ticket.close();
+        
+        List<Worker> toClose;
+        synchronized (workers) {
+            toClose = new ArrayList<Worker>(workers);
+            workers.clear();
+        }
+        for (Worker worker : toClose) {
+            // wait for the running operation, if any
+            worker.lock.lock();
+            try {
+                worker.session.close();
+            } finally {
+                worker.lock.unlock();
+            }
+        }
+    }
+    
+    private <T> Future<T> submit(final Object entity, final Operation<T> operation) {
+        if (closed) {
+            throw new SessionException("Session is closed");
+        }
+        
+        try {
+            return executor.submit(new Callable<T>() {
+                public T call() {
+                    T result;
+                    Worker worker = acquire(entity);
+                    Worker.HELD.set(worker);
+                    try {
+                        result = operation.run(worker.session);
+                    } finally {
+                        Worker.HELD.remove();
+                        worker.lock.unlock();
+                    }
+                    operation.afterwards();
+                    return result;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new SessionException("Too many pending operations", e);
+        }
+    }
+    
+    /**
+     * Lock a worker to run an operation on the given entity, which is
+     * <tt>null</tt> if the operation doesn't involve one.
+     */
+    private Worker acquire(Object entity) {
+        Worker worker = null;
+        if (null != entity && !(entity instanceof Persistent)) {
+            // a plain entity is recognized only by the session which loaded it
+            worker = lockWorkerOf(entity);
+        }
+        if (null == worker) {
+            worker = lockAnyWorker();
+        }
+        
+        if (closed) {
+            worker.lock.unlock();
+            throw new SessionException("Session is closed");
+        }
+        return worker;
+    }
+    
+    private Worker lockWorkerOf(Object entity) {
+        for (Worker worker : snapshotOfWorkers()) {
+            worker.lock.lock();
+            if (worker.session.isPersistent(entity)) {
+                return worker;
+            }
+            worker.lock.unlock();
+        }
+        return null;
+    }
+    
+    private Worker lockAnyWorker() {
+        Worker busy;
+        synchronized (workers) {
+            for (Worker worker : workers) {
+                if (worker.lock.tryLock()) {
+                    return worker;
+                }
+            }
+            if (workers.size() < maxWorkers) {
+                Worker worker = new Worker(sessionFactory, openSession());
+                worker.lock.lock();
+                workers.add(worker);
+                return worker;
+            }
+            busy = workers.get(nextWorker++ % workers.size());
+        }
+        busy.lock.lock();
+        return busy;
+    }
+    
+    /**
+     * Remove the given dn from the cache of every worker. Each worker is
+     * locked in turn, never two at a time.
+     */
+    private void evict(String dn) {
+        for (Worker worker : snapshotOfWorkers()) {
+            worker.lock.lock();
+            try {
+                worker.session.evict(dn);
+            } finally {
+                worker.lock.unlock();
+            }
+        }
+    }
+    
+    private List<Worker> snapshotOfWorkers() {
+        synchronized (workers) {
+            return new ArrayList<Worker>(workers);
+        }
+    }
+    
+    private SessionImpl openSession() {
+        return new SessionImpl(sessionFactory, sessionFactory.newContextLease(), null, false);
+    }
+    
+    private static abstract class Operation<T> {
+        
+        abstract T run(Session session);
+        
+        /**
+         * Called once the operation succeeded and its worker is unlocked.
+         */
+        void afterwards() {
+        }
+        
+    }
+    
+    private static class Worker {
+        
+        // the worker locked by the current thread to run an operation or a load
+        static final ThreadLocal<Worker> HELD = new ThreadLocal<Worker>();
+        
+        final AbstractThreadLocalSessionFactory sessionFactory;
+        final ReentrantLock lock = new ReentrantLock();
+        final SessionImpl session;
+        
+        Worker(AbstractThreadLocalSessionFactory sessionFactory, SessionImpl session) {
+            this.sessionFactory = sessionFactory;
+            this.session = session;
+            session.setLoadingSession(guarded());
+        }
+        
+        /**
+         * A view of the session which holds the lock during each call, so that
+         * lazy references could be loaded from any thread. A thread already
+         * holding another worker of the same factory loads with that one
+         * instead, as waiting for this worker while its owner may be waiting
+         * for ours would deadlock.
+         */
+        private Session guarded() {
+            return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            Worker held = HELD.get();
+                            if (null != held && held != Worker.this && held.sessionFactory == sessionFactory) {
+                                return call(held.session, method, args);
+                            }
+                            
+                            lock.lock();
+                            HELD.set(Worker.this);
+                            try {
+                                return call(session, method, args);
+                            } finally {
+                                HELD.set(held);
+                                lock.unlock();
+                            }
+                        }
+                    });
+        }
+        
+        private static Object call(Session session, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(session, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,50 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.List;
+
+/**
+ * A list which tracks the elements added to and removed from it, so that the
+ * values of a multi-valued attribute could be updated with ADD and REMOVE
+ * modifications instead of replacing all of them.
+ *
+ * @param <E>
+ */
+interface ChangeTrackingList<E> extends List<E> {
+
+    List<E> getAddedElements();
+
+    List<E> getRemovedElements();
+
+    /**
+     * Tell whether any element has been added or removed, without copying
+     * them.
+     */
+    boolean hasChanges();
+
+    /**
+     * This method will be called once an entity has been updated
+     * successfully. The changes must be cleared because we want to reuse the
+     * entity this list belongs to. The reason is, if not cleared, the changes
+     * will be gathered the next time when updating.
+     */
+    void clearChanges();
+
+}
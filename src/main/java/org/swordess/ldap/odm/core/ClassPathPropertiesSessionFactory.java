@@ -20,9 +20,7 @@ package org.swordess.ldap.odm.core;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Map;
 import java.util.Properties;
 
 import javax.naming.Context;
@@ -30,17 +28,27 @@ import javax.naming.NamingException;
 import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 
+import org.apache.commons.lang.StringUtils;
+import org.swordess.ldap.CacheReferences;
+import org.swordess.ldap.ConfigurationException;
+import org.swordess.ldap.ConnectionScope;
 import org.swordess.ldap.Session;
+import org.swordess.ldap.SessionMode;
 import org.swordess.ldap.odm.ODMException;
+import org.swordess.ldap.util.ComputeOnceMap;
 
 
 /**
  * Factory for providing {@link Session}s.
  * <p/>
  * 
- * Currently, only one factory is supported in an application. And it should be
- * configured by providing a properties file named <b>odm.properties</b> under
- * classpath.
+ * Each factory is configured by providing a properties file under classpath,
+ * the default factory uses the one named <b>odm.properties</b>.
+ * <p/>
+ * 
+ * The connection pool keys configure a pool owned by the factory, so that
+ * factories don't share their pool settings with each other. Pooling could be
+ * turned off by setting <tt>com.sun.jndi.ldap.connect.pool</tt> to false.
  * <p/>
  * 
  * A sample properties file is:
@@ -61,7 +69,63 @@ import org.swordess.ldap.odm.ODMException;
  * # idle connection in pool which exceed 5mins will be closed and removed
  * com.sun.jndi.ldap.connect.pool.timeout = 3000000
  * 
- * com.sun.jndi.ldap.connect.pool.debug = all
+ * # wait at most 30s for a free connection when the pool is exhausted
+ * org.swordess.ldap.pool.wait = 30000
+ * 
+ * # validate idle connections before reusing them
+ * org.swordess.ldap.pool.validate = true
+ * 
+ * ############
+ * ## search ##
+ * ############
+ * 
+ * # fetch search results 500 entries per page
+ * org.swordess.ldap.search.pagesize = 500
+ * 
+ * # read at most 100 entries per search when reading in batch
+ * org.swordess.ldap.batch.size = 100
+ * 
+ * # share the identical reads and searches in progress
+ * org.swordess.ldap.search.coalesce = true
+ * 
+ * #############
+ * ## session ##
+ * #############
+ * 
+ * # return plain objects and find changes by comparing against snapshots
+ * org.swordess.ldap.session.mode = snapshot
+ * 
+ * # let the garbage collector reclaim cached entities, at most 10000 per session
+ * org.swordess.ldap.session.cache.references = soft
+ * org.swordess.ldap.session.cache.maxentries = 10000
+ * 
+ * # hold a connection only while an operation is in progress
+ * org.swordess.ldap.session.connection = operation
+ * 
+ * # at most 20 operations at a time when connections are not pooled
+ * org.swordess.ldap.session.connection.maxoperations = 20
+ * 
+ * # report sessions still open after a minute
+ * org.swordess.ldap.session.leak.threshold = 60000
+ * 
+ * ###########
+ * ## async ##
+ * ###########
+ * 
+ * # run async operations on 8 threads, queueing up to 200 of them
+ * org.swordess.ldap.async.threads = 8
+ * org.swordess.ldap.async.queuesize = 200
+ * 
+ * ###########
+ * ## cache ##
+ * ###########
+ * 
+ * # share up to 10000 entries among all the sessions, each for 1min
+ * org.swordess.ldap.cache.maxentries = 10000
+ * org.swordess.ldap.cache.ttl = 60000
+ * 
+ * # while groups stay for 10mins
+ * org.swordess.ldap.cache.ttl.foo.Group = 600000
  * 
  * #####################
  * ##  authentication ##
@@ -83,41 +147,109 @@ public class ClassPathPropertiesSessionFactory extends AbstractThreadLocalSessio
     private static final String DEFAULT_CONFIGURATION_FILENAME = "odm";
     private static final String DEFAULT_CONFIGURATION_FILE_TYPE = ".properties";
     
-    private static Map<String, ClassPathPropertiesSessionFactory> factories = new HashMap<String, ClassPathPropertiesSessionFactory>();
-    private static ClassPathPropertiesSessionFactory defaultFactory = null;
+    private static final ComputeOnceMap<String, ClassPathPropertiesSessionFactory> factories = new ComputeOnceMap<String, ClassPathPropertiesSessionFactory>() {
+        protected ClassPathPropertiesSessionFactory compute(String configureFilenameWithoutExtension) {
+            return new ClassPathPropertiesSessionFactory(configureFilenameWithoutExtension + DEFAULT_CONFIGURATION_FILE_TYPE);
+        }
+    };
     
     private Hashtable<String, String> env = new Hashtable<String, String>();
     
     public ClassPathPropertiesSessionFactory(String configurationFileNameUnderClassPath) {
-        Properties configuration = new Properties();
-        InputStream in = ClassPathPropertiesSessionFactory.class.getResourceAsStream("/" + configurationFileNameUnderClassPath);
-        try {
-            configuration.load(in);
-            in.close();
+        this(load(configurationFileNameUnderClassPath));
+    }
+    
+    private ClassPathPropertiesSessionFactory(Properties configuration) {
+        super(isPoolEnabled(configuration) ? ContextPool.Config.fromProperties(configuration) : null);
+        
+        for (Object key : configuration.keySet()) {
+            String keyStr = (String) key;
+            /*
+             * Pool related keys configure the pool owned by this factory, so
+             * they are neither passed to JNDI nor set as system properties.
+             * Otherwise all the factories would share one JVM wide pool.
+             */
+            if (!isPoolConfiguration(keyStr) && !isFactoryConfiguration(keyStr)) {
+                env.put(keyStr, configuration.getProperty(keyStr));
+            }
+        }
+        
+        String pageSize = configuration.getProperty(SEARCH_PAGE_SIZE);
+        if (null != pageSize) {
+            setPageSize((int) parseLong(SEARCH_PAGE_SIZE, pageSize));
+        }
+        
+        String batchSize = configuration.getProperty(BATCH_SIZE);
+        if (null != batchSize) {
+            setBatchSize((int) parseLong(BATCH_SIZE, batchSize));
+        }
+        
+        String coalesceReads = configuration.getProperty(COALESCE_READS);
+        if (null != coalesceReads) {
+            setCoalesceReads(Boolean.parseBoolean(coalesceReads.trim()));
+        }
+        
+        String sessionMode = configuration.getProperty(SESSION_MODE);
+        if (null != sessionMode) {
+            setSessionMode(SessionMode.parse(sessionMode));
+        }
+        
+        String sessionCacheReferences = configuration.getProperty(SESSION_CACHE_REFERENCES);
+        if (null != sessionCacheReferences) {
+            setSessionCacheReferences(CacheReferences.parse(sessionCacheReferences));
+        }
+        
+        String sessionCacheMaxEntries = configuration.getProperty(SESSION_CACHE_MAX_ENTRIES);
+        if (null != sessionCacheMaxEntries) {
+            setSessionCacheMaxEntries((int) parseLong(SESSION_CACHE_MAX_ENTRIES, sessionCacheMaxEntries));
+        }
+        
+        String connectionScope = configuration.getProperty(SESSION_CONNECTION_SCOPE);
+        if (null != connectionScope) {
+            setConnectionScope(ConnectionScope.parse(connectionScope));
+        }
+        
+        String maxOperations = configuration.getProperty(SESSION_CONNECTION_MAX_OPERATIONS);
+        if (null != maxOperations) {
+            setMaxOperations((int) parseLong(SESSION_CONNECTION_MAX_OPERATIONS, maxOperations));
+        }
+        
+        String sessionLeakThreshold = configuration.getProperty(SESSION_LEAK_THRESHOLD);
+        if (null != sessionLeakThreshold) {
+            setSessionLeakThreshold(parseLong(SESSION_LEAK_THRESHOLD, sessionLeakThreshold));
+        }
+        
+        String asyncThreads = configuration.getProperty(ASYNC_THREADS);
+        if (null != asyncThreads) {
+            setAsyncThreads((int) parseLong(ASYNC_THREADS, asyncThreads));
+        }
+        
+        String asyncQueueSize = configuration.getProperty(ASYNC_QUEUE_SIZE);
+        if (null != asyncQueueSize) {
+            setAsyncQueueSize((int) parseLong(ASYNC_QUEUE_SIZE, asyncQueueSize));
+        }
+        
+        String cacheMaxEntries = configuration.getProperty(CACHE_MAX_ENTRIES);
+        if (null != cacheMaxEntries && parseLong(CACHE_MAX_ENTRIES, cacheMaxEntries) > 0) {
+            String ttl = configuration.getProperty(CACHE_TTL);
+            SecondLevelCache cache = new SecondLevelCache((int) parseLong(CACHE_MAX_ENTRIES, cacheMaxEntries),
+                    null != ttl ? parseLong(CACHE_TTL, ttl) : 0);
             
+            String classTtlPrefix = CACHE_TTL + ".";
             for (Object key : configuration.keySet()) {
                 String keyStr = (String) key;
-                /*
-                 * TODO Solve multiple factory instances issue, so that each
-                 * pool related of this factory is isolated with other
-                 * factories?? 
-                 */
-                if (isPoolConfiguration(keyStr)) {
-                    System.setProperty(keyStr, configuration.getProperty(keyStr));
-                } else {
-                    env.put(keyStr, configuration.getProperty(keyStr));
+                if (keyStr.startsWith(classTtlPrefix)) {
+                    cache.setTimeToLive(keyStr.substring(classTtlPrefix.length()), parseLong(keyStr, configuration.getProperty(keyStr)));
                 }
             }
-            
-            env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-            
-        } catch (IOException e) {
-            throw new ODMException("Unalbe to instantiate SessionFactory", e);
+            setSecondLevelCache(cache);
         }
+        
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
     }
     
     @Override
-    protected InitialLdapContext getContext() throws NamingException {
+    protected InitialLdapContext createContext() throws NamingException {
         return new InitialLdapContext(env, new Control[0]);
     }
     
@@ -128,10 +260,7 @@ public class ClassPathPropertiesSessionFactory extends AbstractThreadLocalSessio
      * @return
      */
     public static ClassPathPropertiesSessionFactory getInstance() {
-        if (null == defaultFactory) {
-            return getInstance(DEFAULT_CONFIGURATION_FILENAME);
-        }
-        return defaultFactory;
+        return getInstance(DEFAULT_CONFIGURATION_FILENAME);
     }
     
     /**
@@ -148,25 +277,62 @@ public class ClassPathPropertiesSessionFactory extends AbstractThreadLocalSessio
      * @return
      */
     public static ClassPathPropertiesSessionFactory getInstance(String configureFilenameWithoutExtension) {
-    	ClassPathPropertiesSessionFactory factory = factories.get(configureFilenameWithoutExtension);
-    	if (factory == null) {
-    		factory = new ClassPathPropertiesSessionFactory(configureFilenameWithoutExtension + DEFAULT_CONFIGURATION_FILE_TYPE);
-        	factories.put(configureFilenameWithoutExtension, factory);
-        	if (DEFAULT_CONFIGURATION_FILENAME.equals(configureFilenameWithoutExtension)) {
-        		defaultFactory = factory;
-        	}
-    	}
-    	return factory;
+    	return factories.get(configureFilenameWithoutExtension);
+    }
+    
+    private static Properties load(String configurationFileNameUnderClassPath) {
+        Properties configuration = new Properties();
+        InputStream in = ClassPathPropertiesSessionFactory.class.getResourceAsStream("/" + configurationFileNameUnderClassPath);
+        if (null == in) {
+            throw new ODMException("Unable to find " + configurationFileNameUnderClassPath + " under classpath");
+        }
+        try {
+            configuration.load(in);
+            in.close();
+            return configuration;
+        } catch (IOException e) {
+            throw new ODMException("Unalbe to instantiate SessionFactory", e);
+        }
+    }
+    
+    /**
+     * The pool is enabled explicitly, or implicitly by configuring its size.
+     */
+    private static boolean isPoolEnabled(Properties configuration) {
+        String enabled = StringUtils.trim(configuration.getProperty(POOL_ENABLED));
+        if (null != enabled) {
+            return "true".equalsIgnoreCase(enabled);
+        }
+        return null != configuration.getProperty(POOL_MAXSIZE) || null != configuration.getProperty(POOL_PREFSIZE)
+                || null != configuration.getProperty(POOL_INITSIZE);
+    }
+    
+    private static long parseLong(String key, String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("invalid value of " + key + ": " + value, e);
+        }
+    }
+    
+    /**
+     * Keys of swordess-ldap itself configure the factory, rather than JNDI.
+     */
+    private static boolean isFactoryConfiguration(String key) {
+        return key.startsWith("org.swordess.ldap.");
     }
     
     private static boolean isPoolConfiguration(String key) {
-        if (POOL_AUTHENTICATION.equals(key)
+        if (POOL_ENABLED.equals(key)
+         || POOL_AUTHENTICATION.equals(key)
          || POOL_DEBUG.equals(key)
          || POOL_INITSIZE.equals(key)
          || POOL_MAXSIZE.equals(key)
          || POOL_PREFSIZE.equals(key)
          || POOL_PROTOCOL.equals(key)
-         || POOL_TIMEOUT.equals(key)) {
+         || POOL_TIMEOUT.equals(key)
+         || POOL_WAIT.equals(key)
+         || POOL_VALIDATE.equals(key)) {
             return true;
         }
         return false;
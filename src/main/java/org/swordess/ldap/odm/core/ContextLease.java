@@ -0,0 +1,212 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+
+/**
+ * How a session gets hold of a context for its operations, see
+ * {@link org.swordess.ldap.ConnectionScope}.
+ * <p/>
+ * 
+ * Each {@link #acquire()} must be paired with a {@link #release()}. Pairs
+ * nest, so that an operation could call another one. The context of a search
+ * is held until its results are closed, see {@link #hold(NamingEnumeration)}.
+ */
+abstract class ContextLease {
+
+    /**
+     * A lease holding the given context for the lifetime of the session.
+     */
+    static ContextLease held(final AbstractThreadLocalSessionFactory sessionFactory, final InitialLdapContext ctx) {
+        return new ContextLease() {
+            private boolean closed;
+            
+            InitialLdapContext acquire() {
+                return ctx;
+            }
+            
+            void release() {
+            }
+            
+            void close() {
+                if (!closed) {
+                    closed = true;
+                    sessionFactory.releaseContext(ctx);
+                }
+            }
+        };
+    }
+    
+    /**
+     * A lease borrowing a context from the factory when the outermost operation
+     * starts, and giving it back when that operation ends. The operation waits
+     * first if the factory caps the operations in progress, see
+     * {@link AbstractThreadLocalSessionFactory#setMaxOperations(int)}.
+     */
+    static ContextLease scoped(final AbstractThreadLocalSessionFactory sessionFactory) {
+        return new ContextLease() {
+            private InitialLdapContext ctx;
+            private Semaphore permits;
+            private int depth;
+            
+            InitialLdapContext acquire() throws NamingException {
+                if (0 == depth) {
+                    permits = sessionFactory.beginOperation();
+                    boolean acquired = false;
+                    try {
+                        ctx = sessionFactory.getContext();
+                        acquired = true;
+                    } finally {
+                        if (!acquired) {
+                            endOperation();
+                        }
+                    }
+                }
+                depth++;
+                return ctx;
+            }
+            
+            void release() {
+                if (depth > 0 && 0 == --depth) {
+                    sessionFactory.releaseContext(ctx);
+                    ctx = null;
+                    endOperation();
+                }
+            }
+            
+            void close() {
+                if (depth > 0) {
+                    depth = 0;
+                    sessionFactory.releaseContext(ctx);
+                    ctx = null;
+                    endOperation();
+                }
+            }
+            
+            private void endOperation() {
+                if (null != permits) {
+                    permits.release();
+                    permits = null;
+                }
+            }
+        };
+    }
+    
+    /**
+     * A lease which is {@link #scoped(AbstractThreadLocalSessionFactory)} on
+     * each thread, so that the threads sharing a session borrow their own
+     * contexts.
+     */
+    static ContextLease perThread(final AbstractThreadLocalSessionFactory sessionFactory) {
+        return new ContextLease() {
+            private final ThreadLocal<ContextLease> leases = new ThreadLocal<ContextLease>();
+            // all the leases ever used, to give back their contexts on close
+            private final List<ContextLease> all = new ArrayList<ContextLease>();
+            
+            private ContextLease lease() {
+                ContextLease lease = leases.get();
+                if (null == lease) {
+                    lease = scoped(sessionFactory);
+                    leases.set(lease);
+                    synchronized (all) {
+                        all.add(lease);
+                    }
+                }
+                return lease;
+            }
+            
+            InitialLdapContext acquire() throws NamingException {
+                return lease().acquire();
+            }
+            
+            void release() {
+                lease().release();
+            }
+            
+            void close() {
+                synchronized (all) {
+                    for (ContextLease lease : all) {
+                        lease.close();
+                    }
+                    all.clear();
+                }
+            }
+            
+            <T> NamingEnumeration<T> hold(NamingEnumeration<T> results) {
+                // released by the lease of this thread, whichever thread closes the results
+                return lease().hold(results);
+            }
+        };
+    }
+    
+    abstract InitialLdapContext acquire() throws NamingException;
+    
+    abstract void release();
+    
+    /**
+     * Give back the context whatever operations are still in progress, e.g.
+     * searches whose results are not closed.
+     */
+    abstract void close();
+    
+    /**
+     * Release once the given results are closed, either explicitly or after
+     * the last one has been read.
+     */
+    <T> NamingEnumeration<T> hold(final NamingEnumeration<T> results) {
+        return new NamingEnumeration<T>() {
+            private boolean released;
+            
+            public boolean hasMore() throws NamingException {
+                return results.hasMore();
+            }
+            
+            public T next() throws NamingException {
+                return results.next();
+            }
+            
+            public boolean hasMoreElements() {
+                return results.hasMoreElements();
+            }
+            
+            public T nextElement() {
+                return results.nextElement();
+            }
+            
+            public void close() throws NamingException {
+                try {
+                    results.close();
+                } finally {
+                    if (!released) {
+                        released = true;
+                        release();
+                    }
+                }
+            }
+        };
+    }
+    
+}
@@ -0,0 +1,601 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.ConfigurationException;
+import org.swordess.ldap.SessionFactory;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * A bounded pool of {@link InitialLdapContext}s owned by a single session
+ * factory.
+ * <p/>
+ *
+ * Unlike the JNDI built-in pool, which is configured through JVM wide system
+ * properties, each pool is isolated: its size, timeouts and statistics only
+ * concern the factory it belongs to. Callers wait for a free context in FIFO
+ * order, no longer than {@link Config#getMaxWait()} milliseconds. Idle
+ * contexts are validated before they are handed out again and are closed once
+ * they stay idle longer than {@link Config#getIdleTimeout()} milliseconds.
+ */
+public class ContextPool {
+
+    private static final Log LOG = LogFactory.getLog(ContextPool.class);
+
+    /**
+     * Creates the physical contexts managed by a pool.
+     */
+    public static interface ContextCreator {
+        public InitialLdapContext create() throws NamingException;
+    }
+
+    private final ContextCreator creator;
+    private final Config config;
+
+    private final Semaphore permits;
+
+    // most recently returned context first, so the tail holds the oldest ones
+    private final Deque<IdleContext> idle = new ArrayDeque<IdleContext>();
+    private final Set<InitialLdapContext> borrowed = Collections.newSetFromMap(new IdentityHashMap<InitialLdapContext, Boolean>());
+
+    private final AtomicBoolean initialized = new AtomicBoolean();
+    private volatile boolean closed;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrowedCount = new AtomicLong();
+    private final AtomicLong returnedCount = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+
+    public ContextPool(ContextCreator creator, Config config) {
+        if (null == creator) {
+            throw new ConfigurationException("ContextCreator is required");
+        }
+        this.creator = creator;
+        this.config = null != config ? config : new Config();
+        this.permits = new Semaphore(this.config.getMaxSize(), true);
+    }
+
+    /**
+     * Borrow a context from this pool. An idle context is reused if there is
+     * one, otherwise a new context will be created as long as the pool is not
+     * exhausted.
+     *
+     * @return a context which must be given back via
+     *         {@link #release(InitialLdapContext)}
+     * @throws NamingException
+     *         if no context became available in time or a new context could
+     *         not be created
+     */
+    public InitialLdapContext borrow() throws NamingException {
+        if (closed) {
+            throw new ServiceUnavailableException("Context pool has been closed");
+        }
+
+        long start = System.currentTimeMillis();
+        acquirePermit();
+        totalWaitMillis.addAndGet(System.currentTimeMillis() - start);
+
+        try {
+            prefillIfNecessary();
+
+            InitialLdapContext ctx = null;
+            while (null == ctx) {
+                IdleContext candidate = pollIdle();
+                if (null == candidate) {
+                    ctx = creator.create();
+                    created.incrementAndGet();
+                    LogUtils.debug(LOG, "created context " + ctx);
+
+                } else if (isExpired(candidate, System.currentTimeMillis())) {
+                    evictions.incrementAndGet();
+                    destroy(candidate.ctx);
+
+                } else if (config.isValidateOnBorrow() && !isValid(candidate.ctx)) {
+                    validationFailures.incrementAndGet();
+                    destroy(candidate.ctx);
+
+                } else {
+                    ctx = candidate.ctx;
+                }
+            }
+
+            synchronized (borrowed) {
+                if (!borrowed.add(ctx)) {
+                    throw new IllegalStateException(ctx + " is already borrowed, the context creator must create a new context each time");
+                }
+            }
+            borrowedCount.incrementAndGet();
+            return ctx;
+
+        } catch (NamingException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a borrowed context back to this pool.
+     *
+     * @param ctx
+     * @throws IllegalStateException
+     *         if the context is not borrowed from this pool, e.g. released
+     *         twice
+     */
+    public void release(InitialLdapContext ctx) {
+        if (!unregister(ctx)) {
+            return;
+        }
+        returnedCount.incrementAndGet();
+
+        boolean keep = false;
+        if (!closed) {
+            synchronized (idle) {
+                if (idle.size() < config.getMaxIdle()) {
+                    idle.addFirst(new IdleContext(ctx, System.currentTimeMillis()));
+                    keep = true;
+                }
+            }
+        }
+        if (!keep) {
+            destroy(ctx);
+        }
+
+        permits.release();
+        evictIdle();
+    }
+
+    /**
+     * Close a borrowed context instead of giving it back, e.g. because its
+     * connection is known to be broken.
+     *
+     * @param ctx
+     */
+    public void invalidate(InitialLdapContext ctx) {
+        if (!unregister(ctx)) {
+            return;
+        }
+        returnedCount.incrementAndGet();
+        destroy(ctx);
+        permits.release();
+    }
+
+    /**
+     * Close all idle contexts which exceed the idle timeout.
+     */
+    public void evictIdle() {
+        if (config.getIdleTimeout() <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<IdleContext> expired = new ArrayList<IdleContext>();
+        synchronized (idle) {
+            while (!idle.isEmpty() && isExpired(idle.peekLast(), now)) {
+                expired.add(idle.pollLast());
+            }
+        }
+        for (IdleContext each : expired) {
+            evictions.incrementAndGet();
+            destroy(each.ctx);
+        }
+    }
+
+    /**
+     * Close all idle contexts and refuse further borrowing. Contexts which are
+     * still borrowed will be closed once they are released.
+     */
+    public void close() {
+        closed = true;
+        List<IdleContext> toClose;
+        synchronized (idle) {
+            toClose = new ArrayList<IdleContext>(idle);
+            idle.clear();
+        }
+        for (IdleContext each : toClose) {
+            destroy(each.ctx);
+        }
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public Stats getStats() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        int activeCount;
+        synchronized (borrowed) {
+            activeCount = borrowed.size();
+        }
+        return new Stats(activeCount, idleCount, permits.getQueueLength(),
+                created.get(), destroyed.get(), borrowedCount.get(), returnedCount.get(),
+                timeouts.get(), validationFailures.get(), evictions.get(), totalWaitMillis.get());
+    }
+
+    private void acquirePermit() throws NamingException {
+        try {
+            if (config.getMaxWait() < 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(config.getMaxWait(), TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new ServiceUnavailableException(String.format(
+                        "Timed out after %dms waiting for a context, pool max size is %d",
+                        config.getMaxWait(), config.getMaxSize()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted while waiting for a context");
+        }
+    }
+
+    private void prefillIfNecessary() {
+        if (initialized.get() || !initialized.compareAndSet(false, true)) {
+            return;
+        }
+        /*
+         * The caller already holds one permit and will create its own
+         * context, so only the remaining ones are created here. They are
+         * created without holding the lock, so that a slow server does not
+         * block the other callers of this pool.
+         */
+        int toCreate = Math.min(config.getInitSize(), config.getMaxIdle()) - 1;
+        List<InitialLdapContext> prefilled = new ArrayList<InitialLdapContext>(Math.max(0, toCreate));
+        try {
+            for (int i = 0; i < toCreate; i++) {
+                prefilled.add(creator.create());
+                created.incrementAndGet();
+            }
+        } catch (NamingException e) {
+            // the caller creates its own context and will run into the problem if any
+            LogUtils.debug(LOG, "failed to prefill the pool", e);
+        }
+        
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            if (!closed) {
+                for (InitialLdapContext ctx : prefilled) {
+                    idle.addLast(new IdleContext(ctx, now));
+                }
+                return;
+            }
+        }
+        for (InitialLdapContext ctx : prefilled) {
+            destroy(ctx);
+        }
+    }
+
+    private IdleContext pollIdle() {
+        synchronized (idle) {
+            return idle.pollFirst();
+        }
+    }
+
+    private boolean unregister(InitialLdapContext ctx) {
+        if (null == ctx) {
+            return false;
+        }
+        synchronized (borrowed) {
+            if (!borrowed.remove(ctx)) {
+                // its permit could not be told apart from the one of a borrowed context
+                throw new IllegalStateException(ctx + " is not borrowed from this pool");
+            }
+            return true;
+        }
+    }
+
+    private boolean isExpired(IdleContext idleContext, long now) {
+        return config.getIdleTimeout() > 0 && now - idleContext.idleSince > config.getIdleTimeout();
+    }
+
+    private boolean isValid(InitialLdapContext ctx) {
+        try {
+            ctx.getAttributes("", new String[] { "objectClass" });
+            return true;
+        } catch (NamingException e) {
+            LogUtils.debug(LOG, "context " + ctx + " failed validation", e);
+            return false;
+        }
+    }
+
+    private void destroy(InitialLdapContext ctx) {
+        destroyed.incrementAndGet();
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            LogUtils.debug(LOG, "failed to close context " + ctx, e);
+        }
+    }
+
+    private static class IdleContext {
+
+        final InitialLdapContext ctx;
+        final long idleSince;
+
+        IdleContext(InitialLdapContext ctx, long idleSince) {
+            this.ctx = ctx;
+            this.idleSince = idleSince;
+        }
+
+    }
+
+    /**
+     * Settings of a {@link ContextPool}. All durations are in milliseconds.
+     */
+    public static class Config {
+
+        private int maxSize = 8;
+        private int maxIdle = 8;
+        private int initSize = 1;
+        private long maxWait = 30000;
+        private long idleTimeout = 300000;
+        private boolean validateOnBorrow = true;
+
+        /**
+         * Build a configuration from properties, the standard JNDI pool keys
+         * declared in {@link SessionFactory} are honored:
+         * <ul>
+         * <li>{@link SessionFactory#POOL_MAXSIZE}: maximum number of contexts,
+         * absent or 0 means no maximum as with JNDI</li>
+         * <li>{@link SessionFactory#POOL_PREFSIZE}: maximum number of idle contexts</li>
+         * <li>{@link SessionFactory#POOL_INITSIZE}: contexts created on first use</li>
+         * <li>{@link SessionFactory#POOL_TIMEOUT}: idle timeout</li>
+         * <li>{@link SessionFactory#POOL_WAIT}: maximum time to wait for a context</li>
+         * <li>{@link SessionFactory#POOL_VALIDATE}: validate idle contexts on borrow</li>
+         * </ul>
+         *
+         * @param properties
+         * @return
+         */
+        public static Config fromProperties(Properties properties) {
+            Config config = new Config();
+            config.setMaxSize(Integer.MAX_VALUE);
+            String maxSize = properties.getProperty(SessionFactory.POOL_MAXSIZE);
+            if (null != maxSize) {
+                int max = parseInt(SessionFactory.POOL_MAXSIZE, maxSize);
+                if (max > 0) {
+                    config.setMaxSize(max);
+                    config.setMaxIdle(max);
+                }
+            }
+            String prefSize = properties.getProperty(SessionFactory.POOL_PREFSIZE);
+            if (null != prefSize) {
+                config.setMaxIdle(parseInt(SessionFactory.POOL_PREFSIZE, prefSize));
+            }
+            String initSize = properties.getProperty(SessionFactory.POOL_INITSIZE);
+            if (null != initSize) {
+                config.setInitSize(parseInt(SessionFactory.POOL_INITSIZE, initSize));
+            }
+            String timeout = properties.getProperty(SessionFactory.POOL_TIMEOUT);
+            if (null != timeout) {
+                config.setIdleTimeout(parseLong(SessionFactory.POOL_TIMEOUT, timeout));
+            }
+            String wait = properties.getProperty(SessionFactory.POOL_WAIT);
+            if (null != wait) {
+                config.setMaxWait(parseLong(SessionFactory.POOL_WAIT, wait));
+            }
+            String validate = properties.getProperty(SessionFactory.POOL_VALIDATE);
+            if (null != validate) {
+                config.setValidateOnBorrow(Boolean.parseBoolean(validate.trim()));
+            }
+            return config;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            if (maxSize <= 0) {
+                throw new ConfigurationException("pool max size must be positive: " + maxSize);
+            }
+            this.maxSize = maxSize;
+        }
+
+        public int getMaxIdle() {
+            return maxIdle;
+        }
+
+        public void setMaxIdle(int maxIdle) {
+            this.maxIdle = maxIdle;
+        }
+
+        public int getInitSize() {
+            return initSize;
+        }
+
+        public void setInitSize(int initSize) {
+            this.initSize = initSize;
+        }
+
+        /**
+         * A negative value means waiting without limit.
+         */
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        public void setMaxWait(long maxWait) {
+            this.maxWait = maxWait;
+        }
+
+        /**
+         * Zero or a negative value means idle contexts are never evicted.
+         */
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public boolean isValidateOnBorrow() {
+            return validateOnBorrow;
+        }
+
+        public void setValidateOnBorrow(boolean validateOnBorrow) {
+            this.validateOnBorrow = validateOnBorrow;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("maxSize=%d | maxIdle=%d | initSize=%d | maxWait=%d | idleTimeout=%d | validateOnBorrow=%s",
+                    maxSize, maxIdle, initSize, maxWait, idleTimeout, validateOnBorrow);
+        }
+
+        private static int parseInt(String key, String value) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException("invalid value of " + key + ": " + value, e);
+            }
+        }
+
+        private static long parseLong(String key, String value) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException("invalid value of " + key + ": " + value, e);
+            }
+        }
+
+    }
+
+    /**
+     * A point-in-time snapshot of a pool's usage.
+     */
+    public static class Stats {
+
+        private final int active;
+        private final int idle;
+        private final int waiting;
+        private final long created;
+        private final long destroyed;
+        private final long borrowed;
+        private final long returned;
+        private final long timeouts;
+        private final long validationFailures;
+        private final long evictions;
+        private final long totalWaitMillis;
+
+        Stats(int active, int idle, int waiting, long created, long destroyed, long borrowed, long returned,
+                long timeouts, long validationFailures, long evictions, long totalWaitMillis) {
+            this.active = active;
+            this.idle = idle;
+            this.waiting = waiting;
+            this.created = created;
+            this.destroyed = destroyed;
+            this.borrowed = borrowed;
+            this.returned = returned;
+            this.timeouts = timeouts;
+            this.validationFailures = validationFailures;
+            this.evictions = evictions;
+            this.totalWaitMillis = totalWaitMillis;
+        }
+
+        /**
+         * Number of contexts currently borrowed.
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * Number of contexts currently idle in the pool.
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * Estimated number of threads waiting for a context.
+         */
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getDestroyed() {
+            return destroyed;
+        }
+
+        public long getBorrowed() {
+            return borrowed;
+        }
+
+        public long getReturned() {
+            return returned;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getValidationFailures() {
+            return validationFailures;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getTotalWaitMillis() {
+            return totalWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("active=%d | idle=%d | waiting=%d | created=%d | destroyed=%d | borrowed=%d | returned=%d | timeouts=%d | validationFailures=%d | evictions=%d | totalWaitMillis=%d",
+                    active, idle, waiting, created, destroyed, borrowed, returned, timeouts, validationFailures, evictions, totalWaitMillis);
+        }
+
+    }
+
+}
@@ -40,21 +40,30 @@ public class DnHelper {
     }
     
     /**
-     * Construct a dn string via the given entity.
+     * Construct a dn string via the given entity. The dn of a lazy loading
+     * proxy is returned without loading it.
      * 
      * @param entity
      *        a persistent entity
-     * @return
+     * @return the dn, or <tt>null</tt> if the id of the entity is not set
      */
     public static String build(Object entity) {
         if (null == entity) {
             return null;
         }
         
+        String referenceDN = EntityProxyFactory.getReferenceDN(entity);
+        if (null != referenceDN) {
+            return referenceDN;
+        }
+        
         Class<?> actualClass = ClassHelper.actualClass(entity);
         EntityMetaData metaData = EntityMetaData.get(actualClass);
         String idName = metaData.getIdProperty().getLdapPropName();
-        String idValue = metaData.getIdProperty().getter().get(entity).toString();
+        Object idValue = metaData.getIdProperty().getter().get(entity);
+        if (null == idValue) {
+            return null;
+        }
         return idName + "=" + idValue + "," + metaData.context();
     }
     
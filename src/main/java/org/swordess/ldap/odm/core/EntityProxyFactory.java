@@ -18,57 +18,47 @@
  */
 package org.swordess.ldap.odm.core;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.AbstractMap;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
-import net.sf.cglib.core.ClassGenerator;
-import net.sf.cglib.core.DefaultGeneratorStrategy;
 import net.sf.cglib.proxy.Callback;
 import net.sf.cglib.proxy.CallbackFilter;
 import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.LazyLoader;
 import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.MethodProxy;
 import net.sf.cglib.proxy.NoOp;
-import net.sf.cglib.transform.TransformingClassGenerator;
-import net.sf.cglib.transform.impl.AddPropertyTransformer;
 
-import org.objectweb.asm.Type;
+import org.swordess.ldap.FetchPlan;
 import org.swordess.ldap.Session;
+import org.swordess.ldap.StatelessSession;
 import org.swordess.ldap.bean.Specification;
 import org.swordess.ldap.odm.Distinguishable;
 import org.swordess.ldap.odm.ODMException;
 import org.swordess.ldap.odm.core.SessionImpl.Persistent;
+import org.swordess.ldap.util.ComputeOnceMap;
 
 
 public class EntityProxyFactory extends ProxyFactory {
 
-    private static Map<Class<?>, EntityProxyFactory> factories = new HashMap<Class<?>, EntityProxyFactory>();
+    private static final ComputeOnceMap<Class<?>, EntityProxyFactory> factories = new ComputeOnceMap<Class<?>, EntityProxyFactory>() {
+        protected EntityProxyFactory compute(Class<?> clazz) {
+            return new EntityProxyFactory(clazz);
+        }
+    };
 
     /**
-     * Whether the entry class implements {@link Distinguishable} interface or
-     * not.
-     */
-    private boolean isDistinguishable;
-    
-    /**
-     * An additional field(<code>HashSet&lt;String&gt;</code>) to track modified
-     * property names which caused by setter.
+     * Slot (in the {@link WritePlan}) of each managed setter, computed by the
+     * callback filter when the proxy class is generated.
      */
-    private Field modifiedPropNames;
+    private Map<Method, Integer> setterSlots;
     
     private EntityProxyFactory(Class<?> clazz) {
     	super(clazz);
-        try {
-            modifiedPropNames = proxyClass.getDeclaredField(cglibSpec(MODIFIED_PROP_NAMES));
-            modifiedPropNames.setAccessible(true);
-        } catch (NoSuchFieldException e) {
-        }
     }
     
     @Override
@@ -79,45 +69,38 @@ public class EntityProxyFactory extends ProxyFactory {
         
         en.setSuperclass(unproxiedClass);
         if (isDistinguishable(unproxiedClass)) {
-            isDistinguishable = true;
             en.setInterfaces(new Class[] { Persistent.class, Distinguishable.class });
-            en.setCallbackTypes(new Class[] { MethodInterceptor.class, NoOp.class });
-            en.setCallbackFilter(FINALIZE_AND_DISTINGUISHABLE_INTEFERCE_FILTER);
         } else {
             en.setInterfaces(new Class[] { Persistent.class });
-            en.setCallbackType(SetterInterceptor.class);
         }
         
-        // Add an additional track field.
-        en.setStrategy(new DefaultGeneratorStrategy() {
-            protected ClassGenerator transform(ClassGenerator cg) throws Exception {
-                return new TransformingClassGenerator(cg, new AddPropertyTransformer(
-                        new String[] { MODIFIED_PROP_NAMES },
-                        new Type[] { Type.getType(Set.class) }
-                    ));
+        // only the managed setters are intercepted, all the others go to NoOp
+        final WritePlan plan = WritePlan.get(unproxiedClass);
+        setterSlots = new HashMap<Method, Integer>();
+        en.setCallbackTypes(new Class[] { DirtyInterceptor.class, NoOp.class });
+        en.setCallbackFilter(new CallbackFilter() {
+            public int accept(Method method) {
+                if (Specification.isSetter(method)) {
+                    WritePlan.Slot slot = plan.slot(Specification.getPropertyName(method));
+                    if (null != slot) {
+                        setterSlots.put(method, slot.index);
+                        return 0;
+                    }
+                }
+                return 1;
             }
         });
         
         return en.createClass();
     }
     
-    static Map.Entry<Object, SetterInterceptor> getProxiedEntity(Class<?> entityClass) {
+    static Map.Entry<Object, DirtyInterceptor> getProxiedEntity(Class<?> entityClass) {
         EntityProxyFactory proxyFactory = getFactory(ClassHelper.actualClass(entityClass));
         
         try {
-            Object entity = null;
-            SetterInterceptor interceptor = proxyFactory.new SetterInterceptor();
-            
-            if (proxyFactory.isDistinguishable) {
-                entity = proxyFactory.factory.newInstance(new Callback[] { interceptor, NoOp.INSTANCE });
-            } else {
-                entity = proxyFactory.factory.newInstance(interceptor);
-            }
-            
-            proxyFactory.modifiedPropNames.set(entity, new HashSet<String>());
-            interceptor.setEntity(entity);
-            
-            return new AbstractMap.SimpleEntry<Object, SetterInterceptor>(entity, interceptor);
+            DirtyInterceptor interceptor = proxyFactory.new DirtyInterceptor();
+            Object entity = proxyFactory.factory.newInstance(new Callback[] { interceptor, NoOp.INSTANCE });
+            return new AbstractMap.SimpleEntry<Object, DirtyInterceptor>(entity, interceptor);
             
         } catch (Throwable t) {
             throw new ODMException("Unable to instantiate proxy instance", t);
@@ -125,65 +108,110 @@ public class EntityProxyFactory extends ProxyFactory {
     }
     
     static Object getLazyLoadingProxiedEntity(final Session session, final Class<?> entityClass, final String dn) {
+        return getLazyLoadingProxiedEntity(entityClass, new ReferenceLoader(dn) {
+            public Object loadObject() throws Exception {
+                // the references of a referenced entry are always lazy
+                return session.read(entityClass, dn, FetchPlan.NONE);
+            }
+        });
+    }
+    
+    /**
+     * Create a lazy loading proxy which is read via the given stateless
+     * session.
+     */
+    static Object getLazyLoadingProxiedEntity(final StatelessSession session, final Class<?> entityClass, final String dn) {
+        return getLazyLoadingProxiedEntity(entityClass, new ReferenceLoader(dn) {
+            public Object loadObject() throws Exception {
+                return session.read(entityClass, dn);
+            }
+        });
+    }
+    
+    /**
+     * Create a lazy loading proxy which is loaded together with its siblings
+     * in the given batch.
+     */
+    static Object getLazyLoadingProxiedEntity(final ReferenceBatch batch, final String dn) {
+        return getLazyLoadingProxiedEntity(batch.getReferenceType(), new ReferenceLoader(dn) {
+            public Object loadObject() throws Exception {
+                return batch.load(dn);
+            }
+        });
+    }
+    
+    /**
+     * Return the dn of the entry a lazy loading proxy points to, without
+     * loading it.
+     * 
+     * @return the dn, or <tt>null</tt> if the given object is not a lazy
+     *         loading proxy
+     */
+    static String getReferenceDN(Object entity) {
+        if (entity instanceof Factory) {
+            Callback loader = ((Factory) entity).getCallback(0);
+            if (loader instanceof ReferenceLoader) {
+                return ((ReferenceLoader) loader).dn;
+            }
+        }
+        return null;
+    }
+    
+    private static Object getLazyLoadingProxiedEntity(Class<?> entityClass, ReferenceLoader loader) {
+        String dn = loader.dn;
         Object entity = null;
         if (isDistinguishable(entityClass)) {
             entity = Enhancer.create(entityClass, new Class[] { Persistent.class, Distinguishable.class },
-                    FINALIZE_AND_DISTINGUISHABLE_INTEFERCE_FILTER,
-                    new Callback[] {
-                        new LazyLoader() {
-                            public Object loadObject() throws Exception {
-                                return session.read(entityClass, dn);
-                            }
-                        },
-                        NoOp.INSTANCE
-                    }
-                );
+                    FINALIZE_AND_DISTINGUISHABLE_INTEFERCE_FILTER, new Callback[] { loader, NoOp.INSTANCE });
             ((Distinguishable)entity).setDN(dn);
             
         } else {
             entity = Enhancer.create(entityClass, new Class[] { Persistent.class }, FINALIZE_FILTER,
-                    new Callback[] {
-                        new LazyLoader() {
-                            public Object loadObject() throws Exception {
-                                return session.read(entityClass, dn);
-                            }
-                        },
-                        NoOp.INSTANCE
-                    }
-                );
+                    new Callback[] { loader, NoOp.INSTANCE });
         }
         
         return entity;
     }
     
-    static EntityProxyFactory getFactory(Class<?> clazz) {
-        EntityProxyFactory factory = factories.get(clazz);
-        if (null == factory) {
-            factory = new EntityProxyFactory(clazz);
-            factories.put(clazz, factory);
-        }
-        return factory;
+    /**
+     * Generate the proxy classes of the given entity class, including the one
+     * for lazy loading.
+     */
+    static void warmUp(Class<?> clazz) {
+        getFactory(clazz);
+        getLazyLoadingProxiedEntity(clazz, new ReferenceLoader(null) {
+            public Object loadObject() throws Exception {
+                throw new IllegalStateException("warm up proxy should never be loaded");
+            }
+        });
     }
     
-    static Set<String> getModifiedPropNames(Object entity) {
-        return getFactory(ClassHelper.actualClass(entity)).modifiedPropNames(entity);
+    static EntityProxyFactory getFactory(Class<?> clazz) {
+        return factories.get(clazz);
     }
     
-    @SuppressWarnings("unchecked")
-    private Set<String> modifiedPropNames(Object entity) {
-        try {
-            return (Set<String>) modifiedPropNames.get(entity);
-        } catch (Throwable t) {
-            throw new ODMException("Can not read modifiedPropNames from " + entity);
+    /**
+     * Return the interceptor which tracks the modified properties of the given
+     * entity.
+     * 
+     * @return the interceptor, or <tt>null</tt> if the given object is not a
+     *         proxy created by {@link #getProxiedEntity(Class)}, e.g. a lazy
+     *         loading proxy
+     */
+    static DirtyInterceptor getDirtyInterceptor(Object entity) {
+        if (entity instanceof Factory) {
+            Callback interceptor = ((Factory) entity).getCallback(0);
+            if (interceptor instanceof DirtyInterceptor) {
+                return (DirtyInterceptor) interceptor;
+            }
         }
+        return null;
     }
     
     private static boolean isDistinguishable(Class<?> clazz) {
         return ClassHelper.isInterfacePresent(clazz, Distinguishable.class);
     }
     
-    private static final String MODIFIED_PROP_NAMES = "modifiedPropNames";
-    
     private static final CallbackFilter FINALIZE_FILTER = new CallbackFilter() {
         public int accept(Method method) {
             if ("finalize".equals(method.getName()) && method.getParameterTypes().length == 0) {
@@ -208,32 +236,83 @@ public class EntityProxyFactory extends ProxyFactory {
         }
     };
     
-    class SetterInterceptor implements MethodInterceptor {
+    /**
+     * Loads the entry of the given dn when a lazy loading proxy is touched.
+     */
+    private static abstract class ReferenceLoader implements LazyLoader {
         
-        Object entity;
-        boolean turnedOn;
+        final String dn;
         
-        // cache the reference which points to entity's modifiedPropNames field
-        Set<String> modifiedNames;
+        ReferenceLoader(String dn) {
+            this.dn = dn;
+        }
+        
+    }
+    
+    /**
+     * Tracks the slots of the properties modified via setters since the last
+     * {@link #clearDirty()}. The first 64 slots are kept in a mask, the rest
+     * in a bit set which is created only when needed. The slots are guarded
+     * by the interceptor, as the entities of a shared session may be modified
+     * by any thread.
+     */
+    class DirtyInterceptor implements MethodInterceptor {
+        
+        private boolean turnedOn;
+        
+        private long dirtyMask;
+        private BitSet moreDirtySlots;
         
         public Object intercept(Object proxy, Method method, Object[] args, MethodProxy mProxy) throws Throwable {
-            if (turnedOn && Specification.isSetter(method)) {
-                if (null == modifiedNames) {
-                    modifiedNames = modifiedPropNames(entity);
-                }
-                modifiedNames.add(Specification.getPropertyName(method));
+            if (turnedOn) {
+                markDirty(setterSlots.get(method));
             }
             return mProxy.invokeSuper(proxy, args);
         }
         
-        void setEntity(Object entity) {
-            this.entity = entity;
+        private synchronized void markDirty(int slot) {
+            if (slot < 64) {
+                dirtyMask |= 1L << slot;
+            } else {
+                if (null == moreDirtySlots) {
+                    moreDirtySlots = new BitSet();
+                }
+                moreDirtySlots.set(slot);
+            }
         }
         
+        /**
+         * Start tracking, once all the properties have been initialized.
+         */
         public void turnOn() {
             turnedOn = true;
         }
         
+        synchronized boolean isDirty() {
+            return 0 != dirtyMask || (null != moreDirtySlots && !moreDirtySlots.isEmpty());
+        }
+        
+        /**
+         * @param fromSlot
+         * @return the first dirty slot on or after the given one, or -1 if
+         *         none
+         */
+        synchronized int nextDirtySlot(int fromSlot) {
+            if (fromSlot < 64) {
+                long mask = dirtyMask & (-1L << fromSlot);
+                if (0 != mask) {
+                    return Long.numberOfTrailingZeros(mask);
+                }
+                fromSlot = 64;
+            }
+            return null != moreDirtySlots ? moreDirtySlots.nextSetBit(fromSlot) : -1;
+        }
+        
+        synchronized void clearDirty() {
+            dirtyMask = 0;
+            moreDirtySlots = null;
+        }
+        
     }
     
 }
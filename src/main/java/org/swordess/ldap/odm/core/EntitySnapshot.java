@@ -0,0 +1,149 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.directory.ModificationItem;
+
+import org.swordess.ldap.util.ModUtils;
+
+/**
+ * The values of an entity as they were loaded, used to find its changes when
+ * the session works in {@link org.swordess.ldap.SessionMode#SNAPSHOT} mode.
+ * <p/>
+ * 
+ * Values are kept encoded as they are sent to the LDAP server, one element
+ * per slot of the {@link WritePlan}: a String for a single valued property,
+ * a String array for a multi-valued one, or <tt>null</tt> if not set. The
+ * entity itself is not referred to, so that the snapshot never keeps it alive.
+ */
+class EntitySnapshot {
+
+    private final WritePlan plan;
+    private Object[] values;
+    
+    EntitySnapshot(Object entity, WritePlan plan) {
+        this.plan = plan;
+        this.values = capture(entity);
+    }
+    
+    /**
+     * Take the current values of the entity as the loaded ones, e.g. after it
+     * has been updated.
+     */
+    void refresh(Object entity) {
+        values = capture(entity);
+    }
+    
+    /**
+     * Compute the modifications which turn the loaded values into the current
+     * ones. Multi-valued properties are changed by adding and removing the
+     * differing values only.
+     */
+    List<ModificationItem> diff(Object entity) {
+        List<ModificationItem> mods = new ArrayList<ModificationItem>();
+        Object[] current = capture(entity);
+        for (WritePlan.Slot slot : plan.slots()) {
+            if (slot.propMetaData.isReadonly()) {
+                continue;
+            }
+            
+            Object loadedValue = values[slot.index];
+            Object currentValue = current[slot.index];
+            if (!slot.propMetaData.isMultiple()) {
+                if (null == currentValue) {
+                    if (null != loadedValue) {
+                        mods.add(ModUtils.remove(slot.ldapPropName));
+                    }
+                } else if (!currentValue.equals(loadedValue)) {
+                    mods.add(ModUtils.replace(slot.ldapPropName, currentValue));
+                }
+                continue;
+            }
+            
+            String[] loadedValues = (String[]) loadedValue;
+            String[] currentValues = (String[]) currentValue;
+            if (null == currentValues) {
+                if (null != loadedValues) {
+                    mods.add(ModUtils.remove(slot.ldapPropName));
+                }
+            } else if (null == loadedValues) {
+                if (currentValues.length > 0) {
+                    mods.add(ModUtils.replace(slot.ldapPropName, currentValues));
+                }
+            } else if (!Arrays.equals(loadedValues, currentValues)) {
+                Set<String> loadedSet = new HashSet<String>(Arrays.asList(loadedValues));
+                Set<String> currentSet = new HashSet<String>(Arrays.asList(currentValues));
+                
+                List<String> added = new ArrayList<String>();
+                for (String value : currentValues) {
+                    if (!loadedSet.contains(value)) {
+                        added.add(value);
+                    }
+                }
+                List<String> removed = new ArrayList<String>();
+                for (String value : loadedValues) {
+                    if (!currentSet.contains(value)) {
+                        removed.add(value);
+                    }
+                }
+                
+                if (!added.isEmpty()) {
+                    mods.add(ModUtils.add(slot.ldapPropName, added));
+                }
+                if (!removed.isEmpty()) {
+                    mods.add(ModUtils.remove(slot.ldapPropName, removed));
+                }
+            }
+        }
+        return mods;
+    }
+    
+    private Object[] capture(Object entity) {
+        WritePlan.Slot[] slots = plan.slots();
+        Object[] retVal = new Object[slots.length];
+        for (WritePlan.Slot slot : slots) {
+            Object propValue = slot.propMetaData.getter().get(entity);
+            if (null == propValue) {
+                continue;
+            }
+            
+            if (!slot.propMetaData.isMultiple()) {
+                retVal[slot.index] = slot.encoder.eval(propValue);
+            } else {
+                List<?> propValues = (List<?>) propValue;
+                List<String> encoded = new ArrayList<String>(propValues.size());
+                for (Object each : propValues) {
+                    String value = null != each ? slot.encoder.eval(each) : null;
+                    if (null != value) {
+                        encoded.add(value);
+                    }
+                }
+                retVal[slot.index] = encoded.toArray(new String[encoded.size()]);
+            }
+        }
+        return retVal;
+    }
+    
+}
@@ -0,0 +1,379 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.swordess.ldap.CacheReferences;
+import org.swordess.ldap.SessionCacheStats;
+import org.swordess.ldap.odm.metadata.entity.EntityMetaData;
+import org.swordess.ldap.odm.metadata.entity.ReadPlan;
+import org.swordess.ldap.util.DnUtils;
+
+/**
+ * The entities of a session keyed by entity class and dn, so that an entry is
+ * represented by one instance per class during the session. Dns are compared
+ * in their canonical form (see {@link DnUtils#normalize(String)}), and each
+ * class has its own partition, so that an entity is never returned as another
+ * class.
+ * <p/>
+ * 
+ * Entities are referred to strongly, softly or weakly. With a positive max
+ * entries, the least recently used entity is evicted once the map is full,
+ * unless the map is pinned: entities put while pinned are all kept until the
+ * last {@link #unpin()}, so that one search result never ends up with two
+ * instances of an entry. An entity may carry an attachment, which is dropped
+ * together with it.
+ * <p/>
+ * 
+ * All the operations are synchronized, so that a map could be shared by the
+ * threads using a shared session.
+ */
+class IdentityMap {
+
+    // rough sizes used to estimate the retained bytes of an entity
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 8;
+    private static final int STRING_BYTES = 40;
+    private static final int LIST_BYTES = 40;
+    private static final int ENTRY_BYTES = 64;
+    
+    private final CacheReferences references;
+    private final int maxEntries;
+    
+    private final Map<Class<?>, Partition> partitions = new HashMap<Class<?>, Partition>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    
+    // ticks on each access, to find the least recently used entry among partitions
+    private long clock;
+    
+    private int size;
+    private int pins;
+    private long evictions;
+    private long collections;
+    
+    /**
+     * @param references
+     *        how the entities are referred to
+     * @param maxEntries
+     *        maximum number of entities, zero or a negative value means no
+     *        limit
+     */
+    IdentityMap(CacheReferences references, int maxEntries) {
+        this.references = references;
+        this.maxEntries = maxEntries;
+    }
+    
+    /**
+     * @return the entity of the given class and dn, or <tt>null</tt> if not
+     *         cached
+     */
+    synchronized Object get(Class<?> clazz, String dn) {
+        Entry entry = entry(clazz, dn);
+        return null != entry ? entry.get() : null;
+    }
+    
+    synchronized boolean contains(Class<?> clazz, String dn) {
+        return null != get(clazz, dn);
+    }
+    
+    /**
+     * @return the attachment of the given entity, or <tt>null</tt> if the
+     *         entity cached as the dn is not this one
+     */
+    synchronized Object attachmentOf(Class<?> clazz, String dn, Object entity) {
+        Entry entry = entry(clazz, dn);
+        return null != entry && entry.get() == entity ? entry.attachment : null;
+    }
+    
+    synchronized void put(Class<?> clazz, String dn, Object entity) {
+        put(clazz, dn, entity, null);
+    }
+    
+    synchronized void put(Class<?> clazz, String dn, Object entity, Object attachment) {
+        expunge();
+        Partition partition = partitions.get(clazz);
+        if (null == partition) {
+            partition = new Partition();
+            partitions.put(clazz, partition);
+        }
+        
+        Entry entry = new Entry(clazz, DnUtils.normalize(dn), entity, attachment);
+        entry.lastAccess = ++clock;
+        if (null == partition.put(entry.dn, entry)) {
+            size++;
+        }
+        trim();
+    }
+    
+    /**
+     * Put the given entity unless another one is cached as the same class and
+     * dn.
+     * 
+     * @return the entity already cached, or <tt>null</tt> if the given one
+     *         has been put
+     */
+    synchronized Object putIfAbsent(Class<?> clazz, String dn, Object entity) {
+        Object cached = get(clazz, dn);
+        if (null != cached) {
+            return cached;
+        }
+        put(clazz, dn, entity);
+        return null;
+    }
+    
+    /**
+     * Remove the entities of the given dn, whatever class they are cached as.
+     */
+    synchronized void remove(String dn) {
+        String normalizedDn = DnUtils.normalize(dn);
+        for (Partition partition : partitions.values()) {
+            Entry entry = partition.remove(normalizedDn);
+            if (null != entry) {
+                size--;
+            }
+        }
+    }
+    
+    synchronized void clear() {
+        partitions.clear();
+        size = 0;
+        while (null != collected.poll()) {
+        }
+    }
+    
+    synchronized boolean isEmpty() {
+        expunge();
+        return 0 == size;
+    }
+    
+    /**
+     * Keep the entities put from now on until {@link #unpin()}, whatever the
+     * max entries is. Pins nest.
+     */
+    synchronized void pin() {
+        pins++;
+    }
+    
+    synchronized void unpin() {
+        pins--;
+        trim();
+    }
+    
+    /**
+     * The bytes of an entry are estimated the first time it is counted here,
+     * so that caching an entity never walks its property values.
+     */
+    synchronized SessionCacheStats getStats() {
+        expunge();
+        long estimatedBytes = 0;
+        for (Partition partition : partitions.values()) {
+            for (Entry entry : partition.values()) {
+                estimatedBytes += entry.bytes();
+            }
+        }
+        return new SessionCacheStats(size, estimatedBytes, evictions, collections);
+    }
+    
+    private Entry entry(Class<?> clazz, String dn) {
+        expunge();
+        Partition partition = partitions.get(clazz);
+        if (null == partition) {
+            return null;
+        }
+        Entry entry = partition.get(DnUtils.normalize(dn));
+        if (null != entry) {
+            entry.lastAccess = ++clock;
+        }
+        return entry;
+    }
+    
+    private void trim() {
+        if (maxEntries <= 0 || pins > 0) {
+            return;
+        }
+        while (size > maxEntries) {
+            // the eldest of each partition is its least recently used one
+            Entry eldest = null;
+            for (Partition partition : partitions.values()) {
+                if (!partition.isEmpty()) {
+                    Entry candidate = partition.values().iterator().next();
+                    if (null == eldest || candidate.lastAccess < eldest.lastAccess) {
+                        eldest = candidate;
+                    }
+                }
+            }
+            partitions.get(eldest.clazz).remove(eldest.dn);
+            size--;
+            evictions++;
+        }
+    }
+    
+    /**
+     * Remove the entries whose entities have been garbage collected.
+     */
+    private void expunge() {
+        for (Reference<?> ref; null != (ref = collected.poll());) {
+            Entry entry = ((Keyed) ref).entry();
+            Partition partition = partitions.get(entry.clazz);
+            // the entry may have been replaced or removed meanwhile
+            if (null != partition && partition.get(entry.dn) == entry) {
+                partition.remove(entry.dn);
+                size--;
+                collections++;
+            }
+        }
+    }
+    
+    /**
+     * Estimate the bytes retained by an entity from its property values.
+     * References are counted as a fixed size, so that no proxy is touched.
+     */
+    private static long estimate(Object entity) {
+        ReadPlan plan = EntityMetaData.get(ClassHelper.actualClass(entity)).getReadPlan();
+        long bytes = ENTRY_BYTES + OBJECT_BYTES + (long) REFERENCE_BYTES * plan.size();
+        for (int slot = 0; slot < plan.size(); slot++) {
+            bytes += estimateValue(plan.property(slot).getter().get(entity));
+        }
+        return bytes;
+    }
+    
+    private static long estimateValue(Object value) {
+        if (null == value) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return STRING_BYTES + 2L * ((String) value).length();
+        }
+        if (value instanceof LazyReferenceList) {
+            return LIST_BYTES + estimateValues(((LazyReferenceList<?>) value).referenceDNs());
+        }
+        if (value instanceof List) {
+            return LIST_BYTES + estimateValues((List<?>) value);
+        }
+        return OBJECT_BYTES + ENTRY_BYTES;
+    }
+    
+    private static long estimateValues(List<?> values) {
+        long bytes = 0;
+        for (Object each : values) {
+            bytes += REFERENCE_BYTES + estimateValue(each);
+        }
+        return bytes;
+    }
+    
+    private interface Keyed {
+        Entry entry();
+    }
+    
+    private static class SoftValue extends SoftReference<Object> implements Keyed {
+        
+        private final Entry entry;
+        
+        SoftValue(Entry entry, Object entity, ReferenceQueue<Object> queue) {
+            super(entity, queue);
+            this.entry = entry;
+        }
+        
+        public Entry entry() {
+            return entry;
+        }
+        
+    }
+    
+    private static class WeakValue extends WeakReference<Object> implements Keyed {
+        
+        private final Entry entry;
+        
+        WeakValue(Entry entry, Object entity, ReferenceQueue<Object> queue) {
+            super(entity, queue);
+            this.entry = entry;
+        }
+        
+        public Entry entry() {
+            return entry;
+        }
+        
+    }
+    
+    /**
+     * Entries of one class keyed by canonical dn, in access order.
+     */
+    private static class Partition extends LinkedHashMap<String, Entry> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        Partition() {
+            super(16, 0.75f, true);
+        }
+        
+    }
+    
+    private class Entry {
+        
+        final Class<?> clazz;
+        final String dn;
+        // the entity itself, or a reference to it
+        final Object value;
+        final Object attachment;
+        // estimated on demand, negative until then
+        long bytes = -1;
+        long lastAccess;
+        
+        Entry(Class<?> clazz, String dn, Object entity, Object attachment) {
+            this.clazz = clazz;
+            this.dn = dn;
+            switch (references) {
+            case SOFT:
+                value = new SoftValue(this, entity, collected);
+                break;
+            case WEAK:
+                value = new WeakValue(this, entity, collected);
+                break;
+            default:
+                value = entity;
+            }
+            this.attachment = attachment;
+        }
+        
+        Object get() {
+            return value instanceof Keyed ? ((Reference<?>) value).get() : value;
+        }
+        
+        long bytes() {
+            if (bytes < 0) {
+                Object entity = get();
+                if (null == entity) {
+                    return 0;
+                }
+                bytes = estimate(entity);
+            }
+            return bytes;
+        }
+        
+    }
+    
+}
@@ -2,9 +2,7 @@ package org.swordess.ldap.odm.core;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import net.sf.cglib.core.ClassGenerator;
 import net.sf.cglib.core.DefaultGeneratorStrategy;
@@ -19,13 +17,18 @@ import org.swordess.ldap.odm.core.SessionImpl.Persistent;
 import org.swordess.ldap.odm.metadata.indirections.TheOtherMetaData;
 import org.swordess.ldap.odm.metadata.indirections.OneMetaData;
 import org.swordess.ldap.odm.metadata.indirections.IndirectionsMetaData;
+import org.swordess.ldap.util.ComputeOnceMap;
 
 public class IndirectionsProxyFactory extends ProxyFactory {
 
 	private static final String ORIGINAL_ONE = "originalOne";
 	private static final String ORIGINAL_THE_OTHER = "originalTheOther";
 	
-	private static Map<Class<?>, IndirectionsProxyFactory> factories = new HashMap<Class<?>, IndirectionsProxyFactory>();
+	private static final ComputeOnceMap<Class<?>, IndirectionsProxyFactory> factories = new ComputeOnceMap<Class<?>, IndirectionsProxyFactory>() {
+		protected IndirectionsProxyFactory compute(Class<?> clazz) {
+			return new IndirectionsProxyFactory(clazz);
+		}
+	};
 	
 	private Field originalOne;
 	private Field originalTheOther;
@@ -140,12 +143,7 @@ public class IndirectionsProxyFactory extends ProxyFactory {
     }
     
     static IndirectionsProxyFactory getFactory(Class<?> clazz) {
-    	IndirectionsProxyFactory factory = factories.get(clazz);
-        if (null == factory) {
-            factory = new IndirectionsProxyFactory(clazz);
-            factories.put(clazz, factory);
-        }
-        return factory;
+    	return factories.get(clazz);
     }
     
 }
@@ -0,0 +1,349 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * The value of a multi-valued reference property. Only the dns are kept when
+ * the list is loaded, the lazy loading proxy of an element is created when it
+ * is accessed for the first time. So asking for the size or the first few
+ * elements of a huge list costs no proxy for the rest.
+ * <p/>
+ *
+ * Elements are compared by their dns (case insensitive), so looking up or
+ * removing an element never loads the referenced entries. Changes are tracked
+ * by dn as well: adding back a removed element, or removing an added one,
+ * cancels the former change. The loaded dns are counted in a hash map, so
+ * looking up a dn which is not in the list costs no scan as long as all the
+ * elements are loaded ones.
+ *
+ * @param <E>
+ */
+abstract class LazyReferenceList<E> extends AbstractList<E> implements ChangeTrackingList<E>, RandomAccess {
+
+    private final Class<?> referenceType;
+
+    // dn of each element, null for elements which are added by client code
+    private final ArrayList<String> dns;
+
+    // each element, null until it is accessed
+    private final ArrayList<E> elements;
+
+    // normalized dn -> occurrences among the elements whose dn is kept
+    private final Map<String, Integer> counts;
+
+    // number of the elements which are added by client code
+    private int unresolved;
+
+    // normalized dn -> element / dn
+    private final Map<String, E> added = new LinkedHashMap<String, E>();
+    private final Map<String, String> removed = new LinkedHashMap<String, String>();
+
+    LazyReferenceList(Class<?> referenceType, Collection<String> dns) {
+        this.referenceType = referenceType;
+        this.dns = new ArrayList<String>(dns);
+        this.elements = new ArrayList<E>(dns.size());
+        this.counts = new HashMap<String, Integer>(Math.max(16, (int) (dns.size() / 0.75f) + 1));
+        for (String dn : this.dns) {
+            elements.add(null);
+            if (null != dn) {
+                Integer count = counts.get(key(dn));
+                counts.put(key(dn), null == count ? 1 : count + 1);
+            } else {
+                unresolved++;
+            }
+        }
+    }
+
+    /**
+     * Create the lazy loading proxy of the given dn.
+     */
+    protected abstract E createProxy(String dn);
+
+    @Override
+    public E get(int index) {
+        E element = elements.get(index);
+        if (null == element) {
+            String dn = dns.get(index);
+            if (null != dn) {
+                element = createProxy(dn);
+                elements.set(index, element);
+            }
+        }
+        return element;
+    }
+
+    @Override
+    public int size() {
+        return dns.size();
+    }
+
+    @Override
+    public E set(int index, E element) {
+        E retVal = get(index);
+        trackRemoved(dnAt(index));
+        uncount(dns.set(index, null));
+        unresolved++;
+        elements.set(index, element);
+        trackAdded(element);
+        return retVal;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        dns.add(index, null);
+        unresolved++;
+        elements.add(index, element);
+        trackAdded(element);
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        E retVal = get(index);
+        trackRemoved(dnAt(index));
+        uncount(dns.remove(index));
+        elements.remove(index);
+        modCount++;
+        return retVal;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            trackRemoved(dnAt(i));
+            uncount(dns.get(i));
+        }
+        dns.subList(fromIndex, toIndex).clear();
+        elements.subList(fromIndex, toIndex).clear();
+        modCount++;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        String dn = dnOf(o);
+        if (null == dn) {
+            return super.indexOf(o);
+        }
+        if (isAbsent(dn)) {
+            return -1;
+        }
+        for (int i = 0; i < dns.size(); i++) {
+            if (dn.equalsIgnoreCase(dnAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        String dn = dnOf(o);
+        if (null == dn) {
+            return super.lastIndexOf(o);
+        }
+        if (isAbsent(dn)) {
+            return -1;
+        }
+        for (int i = dns.size() - 1; i >= 0; i--) {
+            if (dn.equalsIgnoreCase(dnAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        String dn = dnOf(o);
+        if (null != dn && counts.containsKey(key(dn))) {
+            return true;
+        }
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        return batchRemove(c, true);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        return batchRemove(c, false);
+    }
+
+    /**
+     * Remove the elements which are (or are not) in the given collection in
+     * one pass, comparing by dn.
+     */
+    private boolean batchRemove(Collection<?> c, boolean removeContained) {
+        Set<String> keys = new HashSet<String>();
+        for (Object o : c) {
+            String dn = dnOf(o);
+            if (null != dn) {
+                keys.add(key(dn));
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < dns.size(); i++) {
+            String dn = dnAt(i);
+            boolean contained = null != dn && keys.contains(key(dn));
+            if (contained == removeContained) {
+                trackRemoved(dn);
+                uncount(dns.get(i));
+            } else {
+                dns.set(kept, dns.get(i));
+                elements.set(kept, elements.get(i));
+                kept++;
+            }
+        }
+
+        if (kept == dns.size()) {
+            return false;
+        }
+        dns.subList(kept, dns.size()).clear();
+        elements.subList(kept, elements.size()).clear();
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public List<E> getAddedElements() {
+        return new ArrayList<E>(added.values());
+    }
+
+    @Override
+    public List<E> getRemovedElements() {
+        List<E> retVal = new ArrayList<E>(removed.size());
+        for (String dn : removed.values()) {
+            retVal.add(createProxy(dn));
+        }
+        return retVal;
+    }
+
+    @Override
+    public boolean hasChanges() {
+        return !added.isEmpty() || !removed.isEmpty();
+    }
+
+    @Override
+    public void clearChanges() {
+        added.clear();
+        removed.clear();
+    }
+
+    /**
+     * Return the dns of all the elements, without loading any of them.
+     */
+    List<String> referenceDNs() {
+        List<String> retVal = new ArrayList<String>(dns.size());
+        for (int i = 0; i < dns.size(); i++) {
+            retVal.add(dnAt(i));
+        }
+        return retVal;
+    }
+
+    /**
+     * Whether the given dn is surely not in this list, without a scan.
+     */
+    private boolean isAbsent(String dn) {
+        return 0 == unresolved && !counts.containsKey(key(dn));
+    }
+
+    /**
+     * Called when an element is taken out of this list.
+     *
+     * @param dn
+     *        the kept dn of the element, <tt>null</tt> if it was added by
+     *        client code
+     */
+    private void uncount(String dn) {
+        if (null == dn) {
+            unresolved--;
+            return;
+        }
+        String key = key(dn);
+        Integer count = counts.get(key);
+        if (null == count) {
+            return;
+        }
+        if (count > 1) {
+            counts.put(key, count - 1);
+        } else {
+            counts.remove(key);
+        }
+    }
+
+    private String dnAt(int index) {
+        String dn = dns.get(index);
+        return null != dn ? dn : dnOf(elements.get(index));
+    }
+
+    private String dnOf(Object o) {
+        if (!referenceType.isInstance(o)) {
+            return null;
+        }
+        return DnHelper.build(o);
+    }
+
+    private void trackAdded(E element) {
+        String dn = dnOf(element);
+        if (null == dn) {
+            return;
+        }
+        if (null == removed.remove(key(dn))) {
+            added.put(key(dn), element);
+        }
+    }
+
+    private void trackRemoved(String dn) {
+        if (null == dn) {
+            return;
+        }
+        if (null == added.remove(key(dn))) {
+            removed.put(key(dn), dn);
+        }
+    }
+
+    private static String key(String dn) {
+        return dn.toLowerCase();
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Search results which are fetched page by page via the paged results control
+ * (RFC 2696). The next page is requested only when the current one has been
+ * consumed, so at most one page is held in memory at a time.
+ * <p/>
+ *
+ * The search runs on a context derived from the given one, so the request
+ * controls of the given context are left untouched and other operations could
+ * be done on it between two pages.
+ * <p/>
+ *
+ * The control is not critical, so a server which does not support paging
+ * returns all the results at once instead of failing the search. A response
+ * without a cookie, whether empty or missing, ends the results.
+ */
+class PagedSearchEnumeration implements NamingEnumeration<SearchResult> {
+
+    private static final Log LOG = LogFactory.getLog(PagedSearchEnumeration.class);
+
+    private final LdapContext pagedCtx;
+    private final String context;
+    private final String filter;
+    private final SearchControls ctrl;
+    private final int pageSize;
+
+    private NamingEnumeration<SearchResult> page;
+    private int pageNumber = 1;
+    private boolean closed;
+
+    PagedSearchEnumeration(LdapContext ctx, String context, String filter, SearchControls ctrl, int pageSize) throws NamingException {
+        this.context = context;
+        this.filter = filter;
+        this.ctrl = ctrl;
+        this.pageSize = pageSize;
+
+        this.pagedCtx = ctx.newInstance(new Control[] { pagedResultsControl(null) });
+        try {
+            this.page = pagedCtx.search(context, filter, ctrl);
+        } catch (NamingException e) {
+            pagedCtx.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasMore() throws NamingException {
+        if (closed) {
+            return false;
+        }
+
+        try {
+            while (!page.hasMore()) {
+                byte[] cookie = responseCookie();
+                page.close();
+                // no cookie: the last page, or the server ignored the control
+                if (null == cookie || 0 == cookie.length) {
+                    close();
+                    return false;
+                }
+
+                pageNumber++;
+                LogUtils.debug(LOG, String.format("fetching page %d of %s with filter=%s", pageNumber, context, filter));
+                pagedCtx.setRequestControls(new Control[] { pagedResultsControl(cookie) });
+                page = pagedCtx.search(context, filter, ctrl);
+            }
+            return true;
+
+        } catch (NamingException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public SearchResult next() throws NamingException {
+        if (!hasMore()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+        try {
+            return hasMore();
+        } catch (NamingException e) {
+            LogUtils.error(LOG, "failed to fetch the next page", e);
+            return false;
+        }
+    }
+
+    @Override
+    public SearchResult nextElement() {
+        try {
+            return next();
+        } catch (NamingException e) {
+            throw (NoSuchElementException) new NoSuchElementException(e.getMessage()).initCause(e);
+        }
+    }
+
+    @Override
+    public void close() throws NamingException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            page.close();
+        } finally {
+            pagedCtx.close();
+        }
+    }
+
+    private byte[] responseCookie() throws NamingException {
+        Control[] responseControls = pagedCtx.getResponseControls();
+        if (null != responseControls) {
+            for (Control each : responseControls) {
+                if (each instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) each).getCookie();
+                }
+            }
+        }
+        return null;
+    }
+
+    private PagedResultsControl pagedResultsControl(byte[] cookie) throws NamingException {
+        try {
+            return new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL);
+        } catch (IOException e) {
+            NamingException ne = new NamingException("Unable to encode paged results control");
+            ne.setRootCause(e);
+            throw ne;
+        }
+    }
+
+}
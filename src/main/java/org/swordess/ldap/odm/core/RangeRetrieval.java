@@ -0,0 +1,172 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Range retrieval of multi-valued attributes, as done by Active Directory and
+ * some other servers: at most a limited number of values (1500 by default in
+ * AD) is returned per response, under the id <tt>member;range=0-1499</tt>. The
+ * rest values have to be asked for slice by slice with
+ * <tt>member;range=1500-*</tt>, until the slice ending with <tt>*</tt>.
+ * <p/>
+ *
+ * Since the size of each slice is decided by the server, the bounds of a slice
+ * are known only when the previous one has been returned, so slices are
+ * fetched one after another. All the slices are loaded into one attribute,
+ * nothing is streamed, so the values of a huge attribute are all held in
+ * memory.
+ */
+final class RangeRetrieval {
+
+    private static final Log LOG = LogFactory.getLog(RangeRetrieval.class);
+
+    private static final String RANGE_OPTION = ";range=";
+
+    /**
+     * Replace each ranged attribute in the given attributes with one carrying
+     * all the values under the plain attribute id, fetching the missing
+     * slices from the given entry.
+     *
+     * @param ctx
+     * @param dn
+     *        dn of the entry the attributes belong to
+     * @param attributes
+     *        attributes returned by a read or search, modified in place
+     * @return the given attributes
+     * @throws NamingException
+     *         if a slice could not be fetched, e.g. the entry has been changed
+     *         in the meantime, so that the values would be incomplete
+     */
+    static Attributes complete(DirContext ctx, String dn, Attributes attributes) throws NamingException {
+        if (null == attributes) {
+            return null;
+        }
+
+        List<Attribute> ranged = null;
+        for (NamingEnumeration<? extends Attribute> attrs = attributes.getAll(); attrs.hasMore();) {
+            Attribute attr = attrs.next();
+            if (indexOfRange(attr.getID()) >= 0) {
+                if (null == ranged) {
+                    ranged = new ArrayList<Attribute>();
+                }
+                ranged.add(attr);
+            }
+        }
+        if (null == ranged) {
+            return attributes;
+        }
+
+        for (Attribute attr : ranged) {
+            attributes.remove(attr.getID());
+            attributes.put(fetchAll(ctx, dn, attr));
+        }
+        return attributes;
+    }
+
+    private static Attribute fetchAll(DirContext ctx, String dn, Attribute firstSlice) throws NamingException {
+        String id = firstSlice.getID();
+        String plainId = plainId(id);
+        Attribute retVal = new BasicAttribute(plainId, firstSlice.isOrdered());
+
+        Attribute slice = firstSlice;
+        int slices = 0;
+        while (true) {
+            for (NamingEnumeration<?> values = slice.getAll(); values.hasMore();) {
+                retVal.add(values.next());
+            }
+            slices++;
+
+            String high = rangeHigh(slice.getID());
+            if (null == high || "*".equals(high)) {
+                break;
+            }
+
+            String next = plainId + RANGE_OPTION + (Long.parseLong(high) + 1) + "-*";
+            slice = rangedSlice(ctx.getAttributes(dn, new String[] { next }), plainId);
+            if (null == slice) {
+                throw new NamingException(String.format("Slice %s is missing from %s, got %d values of %s so far",
+                        next, dn, retVal.size(), plainId));
+            }
+        }
+
+        LogUtils.debug(LOG, String.format("fetched %d values of %s in %d slices from %s", retVal.size(), plainId, slices, dn));
+        return retVal;
+    }
+
+    /**
+     * The id of the returned slice is not known in advance (e.g.
+     * <tt>member;range=1500-2999</tt> or <tt>member;range=1500-*</tt>), so
+     * pick the ranged attribute of the same plain id.
+     */
+    private static Attribute rangedSlice(Attributes response, String plainId) throws NamingException {
+        for (NamingEnumeration<? extends Attribute> attrs = response.getAll(); attrs.hasMore();) {
+            Attribute attr = attrs.next();
+            if (indexOfRange(attr.getID()) >= 0 && plainId(attr.getID()).equalsIgnoreCase(plainId)) {
+                return attr;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the index of the range option in the given attribute id, or -1
+     */
+    private static int indexOfRange(String id) {
+        return id.toLowerCase().indexOf(RANGE_OPTION);
+    }
+
+    private static String plainId(String id) {
+        int start = indexOfRange(id);
+        int end = id.indexOf(';', start + 1);
+        return end < 0 ? id.substring(0, start) : id.substring(0, start) + id.substring(end);
+    }
+
+    /**
+     * @return the upper bound of the range in the given attribute id, which is
+     *         <tt>*</tt> for the last slice, or <tt>null</tt> if not ranged
+     */
+    private static String rangeHigh(String id) {
+        int start = indexOfRange(id);
+        if (start < 0) {
+            return null;
+        }
+        int end = id.indexOf(';', start + 1);
+        String range = end < 0 ? id.substring(start + RANGE_OPTION.length()) : id.substring(start + RANGE_OPTION.length(), end);
+        int dash = range.indexOf('-');
+        return dash < 0 ? null : range.substring(dash + 1);
+    }
+
+    private RangeRetrieval() {
+    }
+
+}
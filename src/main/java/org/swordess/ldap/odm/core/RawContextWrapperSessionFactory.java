@@ -13,12 +13,13 @@ public class RawContextWrapperSessionFactory extends AbstractThreadLocalSessionF
 
 	private final ContextProvider provider;
 
-	private RawContextWrapperSessionFactory(ContextProvider provider) {
+	private RawContextWrapperSessionFactory(ContextProvider provider, ContextPool.Config poolConfig) {
+		super(poolConfig);
 		this.provider = provider;
 	}
 
 	@Override
-	protected InitialLdapContext getContext() throws NamingException {
+	protected InitialLdapContext createContext() throws NamingException {
 		if (null != provider) {
 			return provider.getContext();
 		}
@@ -29,13 +30,39 @@ public class RawContextWrapperSessionFactory extends AbstractThreadLocalSessionF
 		public InitialLdapContext getContext() throws NamingException;
 	}
 
+	/**
+	 * Get the session factory of the given provider, the contexts of which are
+	 * not pooled.
+	 * 
+	 * @param provider
+	 * @return
+	 */
 	public static RawContextWrapperSessionFactory getInstance(ContextProvider provider) {
-		RawContextWrapperSessionFactory factory = factories.get(provider);
-		if (null == factory) {
-			factory = new RawContextWrapperSessionFactory(provider);
-			factories.put(provider, factory);
+		return getInstance(provider, null);
+	}
+
+	/**
+	 * Get the session factory of the given provider, the contexts created by
+	 * the provider will be pooled using <tt>poolConfig</tt>. Note that the
+	 * configuration only takes effect when the factory is created for the
+	 * first time. To be pooled, the provider must create a new context each
+	 * time it is asked for one.
+	 * 
+	 * @param provider
+	 * @param poolConfig
+	 *        configuration of the contexts pool, or <tt>null</tt> to disable
+	 *        pooling
+	 * @return
+	 */
+	public static RawContextWrapperSessionFactory getInstance(ContextProvider provider, ContextPool.Config poolConfig) {
+		synchronized (factories) {
+			RawContextWrapperSessionFactory factory = factories.get(provider);
+			if (null == factory) {
+				factory = new RawContextWrapperSessionFactory(provider, poolConfig);
+				factories.put(provider, factory);
+			}
+			return factory;
 		}
-		return factory;
 	}
 
 }
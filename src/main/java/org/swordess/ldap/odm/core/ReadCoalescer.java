@@ -0,0 +1,256 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.util.DnUtils;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Lets the identical reads and searches issued at the same time by the
+ * sessions of one factory share a single LDAP operation.
+ * <p/>
+ * 
+ * Reads are identical if they are of the same canonical dn and attribute
+ * set, searches if they have the same base, filter, scope, limits and
+ * returning attributes. The first caller carries out the operation, the
+ * others wait for its result, and each caller gets its own copy of the
+ * attributes, so that every session still maps its own entities. A write
+ * through the factory stops the reads of its dn and all the searches in
+ * progress from being joined, so that a session always reads its own writes.
+ */
+class ReadCoalescer {
+
+    private static final Log LOG = LogFactory.getLog(ReadCoalescer.class);
+
+    /**
+     * An LDAP operation which could be shared.
+     */
+    static interface Operation<V> {
+        V run() throws NamingException;
+    }
+
+    private final ConcurrentMap<List<Object>, Call> calls = new ConcurrentHashMap<List<Object>, Call>();
+
+    Attributes read(String dn, String[] attrIds, Operation<Attributes> operation) throws NamingException {
+        List<Object> key = Arrays.<Object>asList("read", DnUtils.normalize(dn), idsOf(attrIds));
+        Call call = call(key, operation);
+        Attributes attributes = (Attributes) call.value;
+        return call.isShared() ? (Attributes) attributes.clone() : attributes;
+    }
+
+    /**
+     * @param operation
+     *        a search whose results are all read at once, see
+     *        {@link #drain(NamingEnumeration)}
+     */
+    @SuppressWarnings("unchecked")
+    List<SearchResult> search(String base, String filter, SearchControls ctrl, Operation<List<SearchResult>> operation) throws NamingException {
+        List<Object> key = Arrays.<Object>asList("search", DnUtils.normalize(base), filter, ctrl.getSearchScope(),
+                ctrl.getCountLimit(), ctrl.getTimeLimit(), ctrl.getDerefLinkFlag(), idsOf(ctrl.getReturningAttributes()));
+        Call call = call(key, operation);
+        List<SearchResult> results = (List<SearchResult>) call.value;
+        if (!call.isShared()) {
+            return results;
+        }
+
+        List<SearchResult> copies = new ArrayList<SearchResult>(results.size());
+        for (SearchResult each : results) {
+            SearchResult copy = new SearchResult(each.getName(), each.getObject(),
+                    null != each.getAttributes() ? (Attributes) each.getAttributes().clone() : null, each.isRelative());
+            copy.setNameInNamespace(each.getNameInNamespace());
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * Stop the reads of the given dn and all the searches in progress from
+     * being joined, as the entry has just been written.
+     */
+    void invalidate(String dn) {
+        String normalizedDn = DnUtils.normalize(dn);
+        for (Iterator<List<Object>> it = calls.keySet().iterator(); it.hasNext();) {
+            List<Object> key = it.next();
+            if ("search".equals(key.get(0)) || normalizedDn.equals(key.get(1))) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Carry out the given operation, or join the identical one in progress.
+     * 
+     * @return the call done, whose value must be copied before being used if
+     *         it is shared
+     */
+    private Call call(List<Object> key, Operation<?> operation) throws NamingException {
+        while (true) {
+            Call call = new Call();
+            Call inProgress = calls.putIfAbsent(key, call);
+            if (null == inProgress) {
+                call.run(key, operation);
+                return call;
+            }
+            if (inProgress.join()) {
+                LogUtils.debug(LOG, "joined " + key);
+                inProgress.await();
+                return inProgress;
+            }
+            // done meanwhile, but not removed yet
+            calls.remove(key, inProgress);
+        }
+    }
+
+    private static List<String> idsOf(String[] attrIds) {
+        if (null == attrIds) {
+            return null;
+        }
+        List<String> ids = new ArrayList<String>(attrIds.length);
+        for (String each : attrIds) {
+            ids.add(each.toLowerCase(Locale.ENGLISH));
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Read all the given results and close them.
+     */
+    static List<SearchResult> drain(NamingEnumeration<SearchResult> results) throws NamingException {
+        List<SearchResult> retVal = new ArrayList<SearchResult>();
+        try {
+            while (results.hasMore()) {
+                retVal.add(results.next());
+            }
+        } finally {
+            results.close();
+        }
+        return retVal;
+    }
+
+    /**
+     * Enumerate the given results, e.g. the ones returned by
+     * {@link #search(String, String, SearchControls, Operation)}.
+     */
+    static NamingEnumeration<SearchResult> enumerate(List<SearchResult> results) {
+        final Iterator<SearchResult> it = results.iterator();
+        return new NamingEnumeration<SearchResult>() {
+            public boolean hasMore() {
+                return it.hasNext();
+            }
+
+            public SearchResult next() {
+                return it.next();
+            }
+
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            public SearchResult nextElement() {
+                return it.next();
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * An operation in progress, which could be joined until it is closed.
+     */
+    private class Call {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object value;
+        private volatile NamingException failure;
+
+        private boolean closed;
+        private int joined;
+
+        void run(List<Object> key, Operation<?> operation) throws NamingException {
+            try {
+                value = operation.run();
+            } catch (NamingException e) {
+                failure = e;
+                throw e;
+            } catch (RuntimeException e) {
+                failure = (NamingException) new ServiceUnavailableException(e.getMessage()).initCause(e);
+                throw e;
+            } finally {
+                close();
+                done.countDown();
+                calls.remove(key, this);
+            }
+        }
+
+        synchronized boolean join() {
+            if (closed) {
+                return false;
+            }
+            joined++;
+            return true;
+        }
+
+        private synchronized void close() {
+            closed = true;
+        }
+
+        /**
+         * Whether other callers have joined, which is known once done.
+         */
+        synchronized boolean isShared() {
+            return joined > 0;
+        }
+
+        void await() throws NamingException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceUnavailableException("Interrupted while waiting for an identical operation");
+            }
+            if (null != failure) {
+                // the same exception, so that callers could tell e.g. a missing entry
+                throw failure;
+            }
+        }
+
+    }
+
+}
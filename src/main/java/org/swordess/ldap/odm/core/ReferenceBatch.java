@@ -0,0 +1,107 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.swordess.ldap.FetchPlan;
+import org.swordess.ldap.Session;
+
+/**
+ * The lazy loading proxies created for one multi-valued reference property
+ * share a batch. Once any of them is touched, it is loaded together with the
+ * following siblings which are not loaded yet (at most <tt>batchSize</tt>
+ * entries) via {@link Session#readAll(Class, java.util.Collection)}, so walking
+ * through the references costs one search per batch instead of one read per
+ * reference.
+ */
+class ReferenceBatch {
+
+    private final Session session;
+    private final Class<?> referenceType;
+    private final List<String> dns;
+    private final int batchSize;
+
+    // dn -> index of its first occurrence in dns
+    private final Map<String, Integer> indexes;
+
+    /*
+     * Dns of the siblings read ahead but not touched yet. Only dns are kept,
+     * the entities are taken from the session cache when touched, so that the
+     * cache could still reclaim them.
+     */
+    private final Set<String> readAhead = new HashSet<String>();
+
+    // dns of the siblings read ahead whose entries do not exist
+    private final Set<String> missing = new HashSet<String>();
+
+    ReferenceBatch(Session session, Class<?> referenceType, List<String> dns, int batchSize) {
+        this.session = session;
+        this.referenceType = referenceType;
+        this.dns = dns;
+        this.batchSize = batchSize;
+        this.indexes = new HashMap<String, Integer>((int) (dns.size() / 0.75f) + 1);
+        for (int i = dns.size() - 1; i >= 0; i--) {
+            indexes.put(dns.get(i), i);
+        }
+    }
+
+    Class<?> getReferenceType() {
+        return referenceType;
+    }
+
+    synchronized Object load(String dn) {
+        if (readAhead.remove(dn)) {
+            // served by the session cache unless it has been reclaimed meanwhile
+            return session.read(referenceType, dn, FetchPlan.NONE);
+        }
+        if (missing.remove(dn)) {
+            return null;
+        }
+
+        Set<String> toRead = new LinkedHashSet<String>();
+        toRead.add(dn);
+        Integer index = indexes.get(dn);
+        for (int i = null != index ? index + 1 : 0; i < dns.size() && toRead.size() < batchSize; i++) {
+            String sibling = dns.get(i);
+            if (!readAhead.contains(sibling) && !missing.contains(sibling)) {
+                toRead.add(sibling);
+            }
+        }
+
+        // the references of a referenced entry are always lazy
+        List<String> dnsToRead = new ArrayList<String>(toRead);
+        List<?> entities = session.readAll(referenceType, dnsToRead, FetchPlan.NONE);
+        for (int i = 1; i < dnsToRead.size(); i++) {
+            if (null != entities.get(i)) {
+                readAhead.add(dnsToRead.get(i));
+            } else {
+                missing.add(dnsToRead.get(i));
+            }
+        }
+        return entities.get(0);
+    }
+
+}
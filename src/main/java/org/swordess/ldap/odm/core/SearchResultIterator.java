@@ -0,0 +1,126 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.CloseableIterator;
+import org.swordess.ldap.SessionException;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Turn search results into elements one by one, when they are pulled.
+ *
+ * @param <T>
+ */
+abstract class SearchResultIterator<T> implements CloseableIterator<T> {
+
+    private static final Log LOG = LogFactory.getLog(SearchResultIterator.class);
+
+    private final NamingEnumeration<SearchResult> results;
+
+    /**
+     * If not null, results which are failed to be turned into elements will
+     * be skipped and logged with this message. Otherwise the failure will be
+     * thrown.
+     */
+    private final String skipMessage;
+
+    private T next;
+    private boolean fetched;
+    private boolean closed;
+
+    SearchResultIterator(NamingEnumeration<SearchResult> results, String skipMessage) {
+        this.results = results;
+        this.skipMessage = skipMessage;
+    }
+
+    /**
+     * Turn one search result into an element.
+     *
+     * @param result
+     * @return
+     * @throws NamingException
+     */
+    protected abstract T map(SearchResult result) throws NamingException;
+
+    @Override
+    public boolean hasNext() {
+        while (!fetched && !closed) {
+            try {
+                if (!results.hasMore()) {
+                    close();
+                    return false;
+                }
+                SearchResult result = results.next();
+                try {
+                    next = map(result);
+                    fetched = true;
+                } catch (NamingException e) {
+                    if (null == skipMessage) {
+                        throw e;
+                    }
+                    LogUtils.error(LOG, skipMessage, e);
+                }
+            } catch (NamingException e) {
+                close();
+                throw new SessionException(e.getMessage(), e);
+            }
+        }
+        return fetched;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T retVal = next;
+        next = null;
+        fetched = false;
+        return retVal;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("search results are read only");
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        next = null;
+        fetched = false;
+        try {
+            results.close();
+        } catch (NamingException e) {
+            LogUtils.debug(LOG, "failed to close search results", e);
+        }
+    }
+
+}
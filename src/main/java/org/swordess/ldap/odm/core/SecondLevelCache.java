@@ -0,0 +1,364 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.directory.Attributes;
+
+import org.swordess.ldap.ConfigurationException;
+import org.swordess.ldap.util.DnUtils;
+
+/**
+ * A cache shared by all the sessions of a factory, which keeps the attributes
+ * of the entries read from the LDAP server. Sessions construct their own
+ * entities from the cached attributes, so no entity instance is ever shared
+ * between two sessions.
+ * <p/>
+ *
+ * Entries are keyed by entity class and canonical dn (see
+ * {@link DnUtils#normalize(String)}), the least recently used entry is evicted once the cache
+ * is full. Each entry expires after the time to live of its class, which
+ * falls back to the default one. Sessions invalidate the cached entries of
+ * every dn they create, update or delete.
+ * <p/>
+ *
+ * A read may be overtaken by a write: attributes fetched before an
+ * invalidation must not be put afterwards. Sessions therefore take the
+ * {@link #generation()} before fetching, and pass it to
+ * {@link #put(Class, String, Attributes, long)}, which drops the attributes
+ * if their dn has been invalidated since.
+ */
+public class SecondLevelCache {
+
+    private final int maxEntries;
+    private final long defaultTimeToLive;
+    private final Map<String, Long> timeToLives = new HashMap<String, Long>();
+
+    private final LinkedHashMap<Key, CachedAttributes> entries;
+
+    // all the classes ever cached, so that a dn could be invalidated for each
+    private final Set<Class<?>> classes = new HashSet<Class<?>>();
+
+    // incremented on each invalidation
+    private long generation;
+
+    /*
+     * canonical dn -> generation of its last invalidation, for the most
+     * recent ones only. Older invalidations are summed up by the floor: puts
+     * of attributes fetched before it are all dropped.
+     */
+    private final LinkedHashMap<String, Long> invalidated;
+    private long floor;
+
+    private long hits;
+    private long misses;
+    private long puts;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+
+    /**
+     * @param maxEntries
+     *        maximum number of cached entries
+     * @param defaultTimeToLive
+     *        milliseconds an entry stays valid, zero or a negative value means
+     *        entries never expire
+     */
+    public SecondLevelCache(final int maxEntries, long defaultTimeToLive) {
+        if (maxEntries <= 0) {
+            throw new ConfigurationException("max entries of second level cache must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.defaultTimeToLive = defaultTimeToLive;
+        this.entries = new LinkedHashMap<Key, CachedAttributes>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedAttributes> eldest) {
+                if (size() > maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.invalidated = new LinkedHashMap<String, Long>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > maxEntries) {
+                    floor = Math.max(floor, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Set the time to live of the entries of the given class.
+     *
+     * @param clazz
+     * @param timeToLive
+     *        milliseconds an entry stays valid, zero or a negative value means
+     *        entries never expire
+     */
+    public void setTimeToLive(Class<?> clazz, long timeToLive) {
+        setTimeToLive(clazz.getName(), timeToLive);
+    }
+
+    public synchronized void setTimeToLive(String className, long timeToLive) {
+        timeToLives.put(className, timeToLive);
+    }
+
+    public synchronized long getTimeToLive(Class<?> clazz) {
+        Long timeToLive = timeToLives.get(clazz.getName());
+        return null != timeToLive ? timeToLive : defaultTimeToLive;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Return the cached attributes of the given entry, or <tt>null</tt> if not
+     * cached or expired. The returned attributes must not be modified.
+     *
+     * @param clazz
+     * @param dn
+     * @return
+     */
+    public synchronized Attributes get(Class<?> clazz, String dn) {
+        Key key = new Key(clazz, dn);
+        CachedAttributes cached = entries.get(key);
+        if (null == cached) {
+            misses++;
+            return null;
+        }
+        if (cached.isExpired(System.currentTimeMillis())) {
+            entries.remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.attributes;
+    }
+
+    /**
+     * Return the current generation, to be taken before fetching attributes
+     * which will be put afterwards.
+     *
+     * @return
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Put attributes known to be the latest ones, e.g. the ones just written.
+     *
+     * @param clazz
+     * @param dn
+     * @param attributes
+     */
+    public synchronized void put(Class<?> clazz, String dn, Attributes attributes) {
+        put(clazz, dn, attributes, generation);
+    }
+
+    /**
+     * Put the attributes fetched since the given generation, unless their dn
+     * has been invalidated meanwhile.
+     *
+     * @param clazz
+     * @param dn
+     * @param attributes
+     * @param generation
+     *        the {@link #generation()} taken before fetching
+     */
+    public synchronized void put(Class<?> clazz, String dn, Attributes attributes, long generation) {
+        if (null == attributes || isInvalidatedSince(dn, generation)) {
+            return;
+        }
+        long timeToLive = getTimeToLive(clazz);
+        long expiresAt = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE;
+        classes.add(clazz);
+        entries.put(new Key(clazz, dn), new CachedAttributes(attributes, expiresAt));
+        puts++;
+    }
+
+    /**
+     * Remove the cached entries of the given dn, whatever class they are
+     * cached as.
+     *
+     * @param dn
+     */
+    public synchronized void invalidate(String dn) {
+        if (null == dn) {
+            return;
+        }
+        String normalizedDn = DnUtils.normalize(dn);
+        // re-inserted, so that the most recent invalidations are kept
+        invalidated.remove(normalizedDn);
+        invalidated.put(normalizedDn, ++generation);
+        for (Class<?> clazz : classes) {
+            if (null != entries.remove(new Key(clazz, normalizedDn))) {
+                invalidations++;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        invalidations += entries.size();
+        entries.clear();
+        invalidated.clear();
+        floor = ++generation;
+    }
+
+    private boolean isInvalidatedSince(String dn, long generation) {
+        if (generation == this.generation) {
+            return false;
+        }
+        if (generation < floor) {
+            return true;
+        }
+        Long invalidatedAt = invalidated.get(DnUtils.normalize(dn));
+        return null != invalidatedAt && invalidatedAt > generation;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(entries.size(), hits, misses, puts, evictions, expirations, invalidations);
+    }
+
+    private static class Key {
+
+        final Class<?> clazz;
+        final String dn;
+
+        Key(Class<?> clazz, String dn) {
+            this.clazz = clazz;
+            this.dn = DnUtils.normalize(dn);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clazz.hashCode() + dn.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key another = (Key) obj;
+            return clazz == another.clazz && dn.equals(another.dn);
+        }
+
+    }
+
+    private static class CachedAttributes {
+
+        final Attributes attributes;
+        final long expiresAt;
+
+        CachedAttributes(Attributes attributes, long expiresAt) {
+            this.attributes = attributes;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now > expiresAt;
+        }
+
+    }
+
+    /**
+     * A point-in-time snapshot of a cache's usage.
+     */
+    public static class Stats {
+
+        private final int size;
+        private final long hits;
+        private final long misses;
+        private final long puts;
+        private final long evictions;
+        private final long expirations;
+        private final long invalidations;
+
+        Stats(int size, long hits, long misses, long puts, long evictions, long expirations, long invalidations) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.puts = puts;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.invalidations = invalidations;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRatio() {
+            long requests = hits + misses;
+            return 0 == requests ? 0 : (double) hits / requests;
+        }
+
+        public long getPuts() {
+            return puts;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getExpirations() {
+            return expirations;
+        }
+
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("size=%d | hits=%d | misses=%d | puts=%d | evictions=%d | expirations=%d | invalidations=%d",
+                    size, hits, misses, puts, evictions, expirations, invalidations);
+        }
+
+    }
+
+}
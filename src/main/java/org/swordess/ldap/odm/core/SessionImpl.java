@@ -18,16 +18,26 @@
  */
 package org.swordess.ldap.odm.core;
 
+import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
+import javax.naming.InvalidNameException;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
@@ -38,22 +48,32 @@ import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.CacheReferences;
+import org.swordess.ldap.CloseableIterator;
+import org.swordess.ldap.FetchPlan;
 import org.swordess.ldap.Session;
+import org.swordess.ldap.SessionCacheStats;
 import org.swordess.ldap.SessionException;
+import org.swordess.ldap.SessionMode;
 import org.swordess.ldap.odm.Distinguishable;
-import org.swordess.ldap.odm.core.EntityProxyFactory.SetterInterceptor;
+import org.swordess.ldap.odm.annotation.Syntax.Syntaxer;
+import org.swordess.ldap.odm.core.EntityProxyFactory.DirtyInterceptor;
+import org.swordess.ldap.odm.metadata.entity.EntityMapper;
 import org.swordess.ldap.odm.metadata.entity.EntityMetaData;
 import org.swordess.ldap.odm.metadata.entity.EntityPropertyMetaData;
+import org.swordess.ldap.odm.metadata.entity.ReadPlan;
 import org.swordess.ldap.odm.metadata.indirections.IndirectionsMetaData;
 import org.swordess.ldap.odm.metadata.indirections.OneMetaData;
 import org.swordess.ldap.odm.metadata.indirections.TheOtherMetaData;
 import org.swordess.ldap.util.AttrUtils;
 import org.swordess.ldap.util.CollectionUtils;
-import org.swordess.ldap.util.Evaluator;
+import org.swordess.ldap.util.DnUtils;
 import org.swordess.ldap.util.LogUtils;
 import org.swordess.ldap.util.ModUtils;
 
@@ -63,16 +83,71 @@ public class SessionImpl implements Session {
 
     private static final Log LOG = LogFactory.getLog(SessionImpl.class);
     
-    private Map<String, Object> sessionCache = new HashMap<String, Object>();
+    private final IdentityMap sessionCache;
+    
+    /*
+     * dn -> the entity with its values as loaded, only used in SNAPSHOT mode.
+     * A snapshot is needed only as long as its entity is alive, whether the
+     * entity is still in session cache or not.
+     */
+    private final IdentityMap snapshots = new IdentityMap(CacheReferences.WEAK, 0);
     
     private final AbstractThreadLocalSessionFactory sessionFactory;
-    private final InitialLdapContext ctx;
+    private final ContextLease contexts;
+    private final SessionTracker.Ticket ticket;
     private final boolean bindToThreadLocal;
+    private final SessionMode mode;
+    
+    private volatile boolean closed;
+    
+    /*
+     * (class, canonical dn) -> the load in progress, only used by a shared
+     * session so that concurrent reads of one entry hit the server once.
+     */
+    private final ConcurrentMap<List<Object>, Flight> flights;
+    
+    // the session through which lazy references are loaded
+    private Session loadingSession = this;
+    
+    private final EntityMapper.Values mappedValues = new SessionValues();
+    
+    /**
+     * @param ticket
+     *        the ticket of this session in the tracker of the factory, or
+     *        <tt>null</tt> if this session is not tracked on its own
+     */
+    SessionImpl(AbstractThreadLocalSessionFactory sessionFactory, ContextLease contexts, SessionTracker.Ticket ticket,
+            boolean bindToThreadLocal) {
+        this(sessionFactory, contexts, ticket, bindToThreadLocal, false);
+    }
     
-    SessionImpl(AbstractThreadLocalSessionFactory sessionFactory, InitialLdapContext ctx, boolean bindToThreadLocal) {
+    private SessionImpl(AbstractThreadLocalSessionFactory sessionFactory, ContextLease contexts, SessionTracker.Ticket ticket,
+            boolean bindToThreadLocal, boolean shared) {
     	this.sessionFactory = sessionFactory;
-        this.ctx = ctx;
+        this.contexts = contexts;
+        this.ticket = ticket;
         this.bindToThreadLocal = bindToThreadLocal;
+        this.mode = sessionFactory.getSessionMode();
+        this.sessionCache = new IdentityMap(sessionFactory.getSessionCacheReferences(), sessionFactory.getSessionCacheMaxEntries());
+        this.flights = shared ? new ConcurrentHashMap<List<Object>, Flight>() : null;
+    }
+    
+    /**
+     * Open a session which could be used by several threads at the same time.
+     * Each thread borrows a context per operation, and concurrent reads of
+     * one entry are coalesced into one.
+     */
+    static SessionImpl shared(AbstractThreadLocalSessionFactory sessionFactory, SessionTracker.Ticket ticket) {
+        return new SessionImpl(sessionFactory, ContextLease.perThread(sessionFactory), ticket, false, true);
+    }
+    
+    /**
+     * Load the lazy references of the entities constructed from now on through
+     * the given session, e.g. one which guards this session against concurrent
+     * use.
+     */
+    void setLoadingSession(Session loadingSession) {
+        this.loadingSession = loadingSession;
     }
     
     @Override
@@ -80,7 +155,7 @@ public class SessionImpl implements Session {
         if (null == obj) {
             return;
         }
-        if (obj instanceof Persistent) {
+        if (isPersistent(obj)) {
             update(obj);
             return;
         }
@@ -94,7 +169,8 @@ public class SessionImpl implements Session {
         LogUtils.debug(LOG, "create dn=" + dn);
         
         try {
-            ctx.bind(dn, null, fromTransientToAttributes(obj));
+            bind(dn, fromTransientToAttributes(obj));
+            invalidateSecondLevelCache(dn);
             
             /*
              * We didn't do an extra lookup invocation to put it into the cache,
@@ -139,13 +215,14 @@ public class SessionImpl implements Session {
             return;
         }
         
-        if (!(entity instanceof Persistent)) {
+        if (!isPersistent(entity)) {
             create(entity);
             return;
         }
         
         String dn = DnHelper.build(entity);
-        List<ModificationItem> mods = fromEntityToModificationItems(entity);
+        EntitySnapshot snapshot = snapshotOf(entity);
+        List<ModificationItem> mods = null != snapshot ? snapshot.diff(entity) : fromEntityToModificationItems(entity);
         if (mods.isEmpty()) {
             LogUtils.debug(LOG, "no changes found when updating dn=" + dn + ", do nothing");
             return;
@@ -154,7 +231,14 @@ public class SessionImpl implements Session {
         LogUtils.debug(LOG, "update dn=" + dn);
         
         try {
-            ctx.modifyAttributes(dn, mods.toArray(new ModificationItem[0]));
+            modifyAttributes(dn, mods.toArray(new ModificationItem[0]));
+            invalidateSecondLevelCache(dn);
+            
+            if (null != snapshot) {
+                // the current values are what the server has now
+                snapshot.refresh(entity);
+                return;
+            }
             
             /*
              * All current modifications are cleared, so could we continue
@@ -166,21 +250,21 @@ public class SessionImpl implements Session {
              * 1. clear changes of all the modified MonitoredList
              * 2. turn normal List into MonitoredList
              */
-            EntityProxyFactory.getModifiedPropNames(entity).clear();
-            for (EntityPropertyMetaData propMetaData : EntityMetaData.get(ClassHelper.actualClass(entity))) {
-                if (propMetaData.isReadonly() || !propMetaData.isMultiple()) {
-                    continue;
-                }
-                
+            DirtyInterceptor dirty = EntityProxyFactory.getDirtyInterceptor(entity);
+            if (null != dirty) {
+                dirty.clearDirty();
+            }
+            for (WritePlan.Slot slot : WritePlan.get(ClassHelper.actualClass(entity)).writableMultiValuedSlots()) {
+                EntityPropertyMetaData propMetaData = slot.propMetaData;
                 Object propValue = propMetaData.getter().get(entity);
                 if (null == propValue) {
                     continue;
                 }
                 
                 List propValues = (List) propValue;
-                if (propValues instanceof MoniteredList) {
-                    // clear changes of all the modifed MoniteredList
-                    ((MoniteredList)propValues).clearChanges();
+                if (propValues instanceof ChangeTrackingList) {
+                    // clear changes of all the modifed lists
+                    ((ChangeTrackingList)propValues).clearChanges();
                 } else {
                     // turn normal List into MoniteredList
                     propMetaData.setter().set(entity, new MoniteredList(propValues));
@@ -230,9 +314,9 @@ public class SessionImpl implements Session {
     				added = monitered.getAddedElements();
     			} else {
     				removed = new ArrayList<String>(originalTheOther);
-    				removed.removeAll(theOther);
+    				removed.removeAll(new HashSet<String>(theOther));
     				added = new ArrayList<String>(theOther);
-    				added.removeAll(originalTheOther);
+    				added.removeAll(new HashSet<String>(originalTheOther));
     			}
     			
     			if (!CollectionUtils.isEmpty(removed)) {
@@ -267,8 +351,10 @@ public class SessionImpl implements Session {
         LogUtils.debug(LOG, "delete dn=" + dn);
         
         try {
-            ctx.unbind(dn);
+            unbind(dn);
             sessionCache.remove(dn);
+            snapshots.remove(dn);
+            invalidateSecondLevelCache(dn);
         } catch (NameNotFoundException ignore) {
             LogUtils.debug(LOG, "Name not found: " + dn);
         } catch (NamingException e) {
@@ -282,7 +368,7 @@ public class SessionImpl implements Session {
             return;
         }
         
-        if (!(entity instanceof Persistent)) {
+        if (!isPersistent(entity)) {
             LogUtils.debug(LOG, entity + " is not persistent, do nothing");
             return;
         }
@@ -291,8 +377,10 @@ public class SessionImpl implements Session {
         LogUtils.debug(LOG, "delete dn=" + dn);
         
         try {
-            ctx.unbind(dn);
+            unbind(dn);
             sessionCache.remove(dn);
+            snapshots.remove(dn);
+            invalidateSecondLevelCache(dn);
         } catch (NamingException e) {
             throw new SessionException(e.getMessage(), e);
         }
@@ -319,25 +407,53 @@ public class SessionImpl implements Session {
     	disconnectIndirections(metaData, one, theOther);
     }
     
-    @SuppressWarnings("unchecked")
     @Override
     public <T> T read(Class<T> clazz, String dn) {
+        return read(clazz, dn, FetchPlan.DEFAULT);
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T read(Class<T> clazz, String dn, FetchPlan fetchPlan) {
         if (null == dn) {
             return null;
         }
         
         LogUtils.debug(LOG, "read " + clazz.getName() + " with dn=" + dn);
         
-        if (sessionCache.containsKey(dn)) {
+        T entity = (T) sessionCache.get(clazz, dn);
+        if (null != entity) {
             LogUtils.info(LOG, "cache hit " + dn);
-            return (T) sessionCache.get(dn);
+        } else {
+            entity = null != flights ? loadOnce(clazz, dn) : load(clazz, dn);
+            if (null == entity) {
+                return null;
+            }
         }
-        
+        loadEagerReferences(clazz, Collections.singletonList(entity), fetchPlan);
+        return entity;
+    }
+    
+    /**
+     * Load the entity of the given dn, which is not in session cache, and put
+     * it in.
+     * 
+     * @return the entity, or <tt>null</tt> if not found
+     */
+    private <T> T load(Class<T> clazz, String dn) {
         try {
-            Attributes allDefinedAttrs = ctx.getAttributes(dn, EntityMetaData.getDefinedAttrNames(clazz));
-            T entity = fromAttributesToEntity(clazz, allDefinedAttrs);
-            sessionCache.put(dn, entity);
-            return entity;
+            T entity = fromSecondLevelCache(clazz, dn);
+            if (null == entity) {
+                SecondLevelCache secondLevelCache = sessionFactory.getSecondLevelCache();
+                // taken before fetching, so that a concurrent update is never overwritten by the old attributes
+                long generation = null != secondLevelCache ? secondLevelCache.generation() : 0;
+                Attributes allDefinedAttrs = getAttributes(dn, EntityMetaData.getDefinedAttrNames(clazz));
+                if (null != secondLevelCache) {
+                    secondLevelCache.put(clazz, dn, allDefinedAttrs, generation);
+                }
+                entity = fromAttributesToEntity(clazz, allDefinedAttrs);
+            }
+            return cache(clazz, dn, entity);
             
         } catch (NameNotFoundException e) {
             return null;
@@ -346,6 +462,169 @@ public class SessionImpl implements Session {
             throw new SessionException(e.getMessage(), e);
         }
     }
+    
+    /**
+     * Like {@link #load(Class, String)}, but waits for the load of the same
+     * entry if another thread has started it.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T loadOnce(Class<T> clazz, String dn) {
+        List<Object> key = Arrays.<Object>asList(clazz, DnUtils.normalize(dn));
+        Flight flight = new Flight();
+        Flight inFlight = flights.putIfAbsent(key, flight);
+        if (null != inFlight) {
+            return (T) inFlight.await();
+        }
+        
+        try {
+            // the entry may have been loaded since the session cache was checked
+            T entity = (T) sessionCache.get(clazz, dn);
+            if (null == entity) {
+                entity = load(clazz, dn);
+            }
+            flight.land(entity);
+            return entity;
+        } catch (RuntimeException e) {
+            flight.fail(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+    
+    @Override
+    public <T> List<T> readAll(Class<T> clazz, Collection<String> dns) {
+        return readAll(clazz, dns, FetchPlan.DEFAULT);
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> List<T> readAll(Class<T> clazz, Collection<String> dns, FetchPlan fetchPlan) {
+        if (null == dns) {
+            return null;
+        }
+        
+        LogUtils.debug(LOG, "read " + clazz.getName() + " with " + dns.size() + " dns");
+        
+        List<String> dnList = new ArrayList<String>(dns);
+        List<T> retVal = new ArrayList<T>(dnList.size());
+        
+        // loads of this call and of the other threads, only used by a shared session
+        Map<List<Object>, Flight> claimed = null;
+        Map<Integer, Flight> awaited = null;
+        if (null != flights) {
+            claimed = new HashMap<List<Object>, Flight>();
+            awaited = new HashMap<Integer, Flight>();
+        }
+        
+        // keep all the entities read until their eager references are loaded
+        sessionCache.pin();
+        try {
+            // dns which are not cached, grouped by their parent and naming attribute
+            Map<String, BatchGroup> groups = new LinkedHashMap<String, BatchGroup>();
+            for (String dn : dnList) {
+                T entity = null;
+                if (null != dn) {
+                    entity = (T) sessionCache.get(clazz, dn);
+                    if (null == entity) {
+                        entity = fromSecondLevelCache(clazz, dn);
+                        Flight inFlight = null;
+                        if (null != entity) {
+                            entity = cache(clazz, dn, entity);
+                        } else if (null != claimed && null != (inFlight = claim(clazz, dn, claimed))) {
+                            awaited.put(retVal.size(), inFlight);
+                        } else if (!addToBatchGroup(groups, dn)) {
+                            // not possible to fetch in batch, e.g. a multi-valued rdn
+                            entity = load(clazz, dn);
+                        }
+                    }
+                }
+                retVal.add(entity);
+            }
+            
+            if (!groups.isEmpty()) {
+                fetchBatchGroups(clazz, groups, dnList, retVal);
+            }
+            if (null != claimed) {
+                land(clazz, claimed, dnList, retVal);
+                // the loads of others are waited for only once ours have landed, so that no thread waits for another in turn
+                for (Map.Entry<Integer, Flight> entry : awaited.entrySet()) {
+                    retVal.set(entry.getKey(), (T) entry.getValue().await());
+                }
+            }
+            loadEagerReferences(clazz, retVal, fetchPlan);
+            return retVal;
+            
+        } catch (NamingException e) {
+            throw new SessionException(e.getMessage(), e);
+        } finally {
+            if (null != claimed) {
+                // unless landed already, e.g. if the batch failed
+                for (Map.Entry<List<Object>, Flight> entry : claimed.entrySet()) {
+                    entry.getValue().fail(new SessionException("Unable to read " + entry.getKey().get(1)));
+                    flights.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            sessionCache.unpin();
+        }
+    }
+    
+    /**
+     * Claim the load of the given dn for the current call of
+     * {@link #readAll(Class, Collection, FetchPlan)}, unless another thread is
+     * loading it.
+     * 
+     * @return the load of another thread, or <tt>null</tt> if claimed
+     */
+    private Flight claim(Class<?> clazz, String dn, Map<List<Object>, Flight> claimed) {
+        List<Object> key = Arrays.<Object>asList(clazz, DnUtils.normalize(dn));
+        if (claimed.containsKey(key)) {
+            // a duplicated dn
+            return null;
+        }
+        Flight flight = new Flight();
+        Flight inFlight = flights.putIfAbsent(key, flight);
+        if (null == inFlight) {
+            claimed.put(key, flight);
+        }
+        return inFlight;
+    }
+    
+    private void land(Class<?> clazz, Map<List<Object>, Flight> claimed, List<String> dnList, List<?> retVal) {
+        for (int i = 0; i < dnList.size(); i++) {
+            String dn = dnList.get(i);
+            if (null != dn) {
+                Flight flight = claimed.get(Arrays.<Object>asList(clazz, DnUtils.normalize(dn)));
+                if (null != flight) {
+                    flight.land(retVal.get(i));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Fetch the entries of the given groups, and fill them into
+     * <tt>retVal</tt> at the positions of their dns.
+     */
+    private <T> void fetchBatchGroups(Class<T> clazz, Map<String, BatchGroup> groups, List<String> dnList, List<T> retVal) throws NamingException {
+        // canonical dn -> entity
+        Map<String, T> fetched = new HashMap<String, T>();
+        for (BatchGroup group : groups.values()) {
+            for (List<Object> rdnValues : CollectionUtils.slices(group.rdnValues, sessionFactory.getBatchSize())) {
+                readBatch(clazz, group.base, group.rdnType, rdnValues, fetched);
+            }
+        }
+        
+        for (int i = 0; i < dnList.size(); i++) {
+            String dn = dnList.get(i);
+            if (null == retVal.get(i) && null != dn) {
+                T entity = fetched.get(DnUtils.normalize(dn));
+                if (null != entity) {
+                    retVal.set(i, cache(clazz, dn, entity));
+                }
+            }
+        }
+    }
 
     @Override
     public Map<String, Object> read(Class<?> clazz, String dn, String[] returningAttrs) {
@@ -357,8 +636,8 @@ public class SessionImpl implements Session {
                 clazz.getName(), dn, Arrays.toString(returningAttrs)));
         
         // fetch the information from session cache first to decrease one possible lookup operation
-        if (sessionCache.containsKey(dn)) {
-            Object entity = sessionCache.get(dn);
+        Object entity = sessionCache.get(clazz, dn);
+        if (null != entity) {
             Map<String, Object> retVal = new HashMap<String, Object>();
             
             EntityMetaData metaData = EntityMetaData.get(clazz);
@@ -394,7 +673,7 @@ public class SessionImpl implements Session {
             
         } else {
             try {
-                return fromAttributesToMap(clazz, ctx.getAttributes(dn, returningAttrs));
+                return fromAttributesToMap(clazz, getAttributes(dn, returningAttrs));
             } catch (NamingException e) {
                 throw new SessionException(e.getMessage(), e);
             }
@@ -403,41 +682,38 @@ public class SessionImpl implements Session {
 
     @Override
     public <T> List<T> search(Class<T> clazz, String filter) {
+        return search(clazz, filter, FetchPlan.DEFAULT);
+    }
+    
+    @Override
+    public <T> List<T> search(Class<T> clazz, String filter, FetchPlan fetchPlan) {
         if (null == filter) {
             return null;
         }
         
         LogUtils.debug(LOG, "search " + clazz.getName() + " with filter=" + filter);
         
-        SearchControls ctrl = new SearchControls();
-        ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        ctrl.setReturningAttributes(EntityMetaData.getDefinedAttrNames(clazz));
-        
-        List<T> retVal = new ArrayList<T>();
+        // one instance per entry in the result, whatever the max entries is
+        sessionCache.pin();
         try {
-            NamingEnumeration<SearchResult> results = ctx.search(EntityMetaData.get(clazz).context(), filter, ctrl);
-            while (results.hasMore()) {
-                try {
-                    SearchResult result = results.next();
-                    T entity = null;
-                    if (sessionCache.containsKey(result.getNameInNamespace())) {
-                        // guarantee the reference integrity for one search result
-                        entity = (T) sessionCache.get(result.getNameInNamespace());
-                    } else {
-                        entity = fromAttributesToEntity(clazz, result.getAttributes());
-                        sessionCache.put(result.getNameInNamespace(), entity);
-                    }
-                    retVal.add(entity);
-                } catch (NamingException e) {
-                    LogUtils.error(LOG, "Unable to construct the entity", e);
-                }
-            }
-        } catch (NamingException e) {
-            throw new SessionException(e.getMessage(), e);
+            List<T> retVal = toList(entityIterator(clazz, filter, true, true));
+            loadEagerReferences(clazz, retVal, fetchPlan);
+            return retVal;
+        } finally {
+            sessionCache.unpin();
         }
-        return retVal;
     }
 
+    @Override
+    public <T> CloseableIterator<T> iterate(Class<T> clazz, String filter) {
+        if (null == filter) {
+            return null;
+        }
+        
+        LogUtils.debug(LOG, "iterate " + clazz.getName() + " with filter=" + filter);
+        return entityIterator(clazz, filter, false, false);
+    }
+    
     @Override
     public List<Map<String, Object>> search(Class<?> clazz, String filter, String[] returningAttrs) {
         if (null == filter) {
@@ -446,26 +722,18 @@ public class SessionImpl implements Session {
         
         LogUtils.debug(LOG, String.format("search %s with filter=%s, returningAttrs=%s",
                 clazz.getName(), filter, Arrays.toString(returningAttrs)));
-        
-        SearchControls ctrl = new SearchControls();
-        ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        ctrl.setReturningAttributes(returningAttrs);
-        
-        try {
-            List<Map<String, Object>> retVal = new ArrayList<Map<String,Object>>();
-            NamingEnumeration<SearchResult> results = ctx.search(EntityMetaData.get(clazz).context(), filter, ctrl);
-            while (results.hasMore()) {
-                try {
-                    SearchResult result = results.next();
-                    retVal.add(fromAttributesToMap(clazz, result.getAttributes()));
-                } catch (NamingException e) {
-                    LogUtils.error(LOG, "Unable to construct the map", e);
-                }
-            }
-            return retVal;
-        } catch (NamingException e) {
-            throw new SessionException(e.getMessage(), e);
+        return toList(mapIterator(clazz, filter, returningAttrs, true));
+    }
+    
+    @Override
+    public CloseableIterator<Map<String, Object>> iterate(Class<?> clazz, String filter, String[] returningAttrs) {
+        if (null == filter) {
+            return null;
         }
+        
+        LogUtils.debug(LOG, String.format("iterate %s with filter=%s, returningAttrs=%s",
+                clazz.getName(), filter, Arrays.toString(returningAttrs)));
+        return mapIterator(clazz, filter, returningAttrs, false);
     }
     
     @Override
@@ -476,26 +744,18 @@ public class SessionImpl implements Session {
     	
     	LogUtils.debug(LOG, String.format("search %s with filter=%s, returningAttrs=%s",
     			context, filter, Arrays.toString(returningAttrs)));
-    	
-    	SearchControls ctrl = new SearchControls();
-    	ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
-    	ctrl.setReturningAttributes(returningAttrs);
-    	    	
-    	try {
-    		List<Map<String, Object>> retVal = new ArrayList<Map<String,Object>>();
-    		NamingEnumeration<SearchResult> results = ctx.search(context, filter, ctrl);
-    		while (results.hasMore()) {
-    			try {
-    				SearchResult result = results.next();
-    				retVal.add(fromAttributesToMap(result.getAttributes()));
-    			} catch (NamingException e) {
-    				LogUtils.error(LOG, "Unable to construct the map", e);
-    			}
-    		}
-    		return retVal;
-    	} catch (NamingException e) {
-    		throw new SessionException(e.getMessage(), e);
+    	return toList(mapIterator(context, filter, returningAttrs, true));
+    }
+    
+    @Override
+    public CloseableIterator<Map<String, Object>> iterate(String context, String filter, String[] returningAttrs) {
+    	if (null == filter) {
+    		return null;
     	}
+    	
+    	LogUtils.debug(LOG, String.format("iterate %s with filter=%s, returningAttrs=%s",
+    			context, filter, Arrays.toString(returningAttrs)));
+    	return mapIterator(context, filter, returningAttrs, false);
     }
     
     public List<String> lookup(String context, String filter) {
@@ -505,21 +765,18 @@ public class SessionImpl implements Session {
     	
     	LogUtils.debug(LOG, String.format("search DNs with context=%s, filter=%s",
     		context, filter));
-    	
-    	SearchControls ctrl = new SearchControls();
-    	ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
-    	ctrl.setReturningAttributes(new String[] {});
-    	
-    	try {
-    		List<String> retVal = new ArrayList<String>();
-    		NamingEnumeration<SearchResult> results = ctx.search(context, filter, ctrl); 
-    		while (results.hasMore()) {
-    			retVal.add(results.next().getNameInNamespace());
-    		}
-    		return retVal;
-    	} catch (NamingException e) {
-    		throw new SessionException(e.getMessage(), e);
+    	return toList(dnIterator(context, filter, true));
+    }
+    
+    @Override
+    public CloseableIterator<String> iterateLookup(String context, String filter) {
+    	if (null == filter) {
+    		return null;
     	}
+    	
+    	LogUtils.debug(LOG, String.format("iterate DNs with context=%s, filter=%s",
+    		context, filter));
+    	return dnIterator(context, filter, false);
     }
 
     @Override
@@ -529,7 +786,115 @@ public class SessionImpl implements Session {
     	}
     	
     	LogUtils.debug(LOG, String.format("search %s with filter=%s", clazz.getName(), filter));
+    	return toList(indirectionsIterator(clazz, filter, true));
+    }
+    
+    @Override
+    public <T> CloseableIterator<T> iterateIndirections(Class<T> clazz, String filter) {
+    	if (null == filter) {
+    		return null;
+    	}
+    	
+    	LogUtils.debug(LOG, String.format("iterate %s with filter=%s", clazz.getName(), filter));
+    	return indirectionsIterator(clazz, filter, false);
+    }
+
+    /**
+     * @param cacheResults
+     *        whether to put the constructed entities into session cache or
+     *        not. Entities which are already cached will be reused anyway.
+     * @param coalesce
+     *        whether the results could be shared with identical searches, see
+     *        {@link #doSearch(String, String, SearchControls, int, boolean)}
+     */
+    private <T> CloseableIterator<T> entityIterator(final Class<T> clazz, String filter, final boolean cacheResults, boolean coalesce) {
+        SearchControls ctrl = new SearchControls();
+        ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctrl.setReturningAttributes(EntityMetaData.getDefinedAttrNames(clazz));
+        
+        final SecondLevelCache secondLevelCache = sessionFactory.getSecondLevelCache();
+        final long generation = null != secondLevelCache ? secondLevelCache.generation() : 0;
+        try {
+            NamingEnumeration<SearchResult> results = doSearch(EntityMetaData.get(clazz).context(), filter, ctrl, sessionFactory.pageSizeOf(clazz), coalesce);
+            return new SearchResultIterator<T>(results, "Unable to construct the entity") {
+                @SuppressWarnings("unchecked")
+                protected T map(SearchResult result) throws NamingException {
+                    String dn = result.getNameInNamespace();
+                    Attributes attributes = complete(dn, result.getAttributes());
+                    if (null != secondLevelCache) {
+                        // a search brings the latest attributes, unless the entry has been written since it started
+                        secondLevelCache.put(clazz, dn, attributes, generation);
+                    }
+                    T cached = (T) sessionCache.get(clazz, dn);
+                    if (null != cached) {
+                        // guarantee the reference integrity for one search result
+                        return cached;
+                    }
+                    T entity = fromAttributesToEntity(clazz, attributes);
+                    if (cacheResults) {
+                        return cache(clazz, dn, entity);
+                    }
+                    snapshot(clazz, dn, entity);
+                    return entity;
+                }
+            };
+        } catch (NamingException e) {
+            throw new SessionException(e.getMessage(), e);
+        }
+    }
+    
+    private CloseableIterator<Map<String, Object>> mapIterator(final Class<?> clazz, String filter, String[] returningAttrs, boolean coalesce) {
+        SearchControls ctrl = new SearchControls();
+        ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctrl.setReturningAttributes(returningAttrs);
+        
+        try {
+            NamingEnumeration<SearchResult> results = doSearch(EntityMetaData.get(clazz).context(), filter, ctrl, sessionFactory.pageSizeOf(clazz), coalesce);
+            return new SearchResultIterator<Map<String, Object>>(results, "Unable to construct the map") {
+                protected Map<String, Object> map(SearchResult result) throws NamingException {
+                    return fromAttributesToMap(clazz, complete(result.getNameInNamespace(), result.getAttributes()));
+                }
+            };
+        } catch (NamingException e) {
+            throw new SessionException(e.getMessage(), e);
+        }
+    }
+    
+    private CloseableIterator<Map<String, Object>> mapIterator(String context, String filter, String[] returningAttrs, boolean coalesce) {
+    	SearchControls ctrl = new SearchControls();
+    	ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    	ctrl.setReturningAttributes(returningAttrs);
+    	
+    	try {
+    		NamingEnumeration<SearchResult> results = doSearch(context, filter, ctrl, sessionFactory.getPageSize(), coalesce);
+    		return new SearchResultIterator<Map<String, Object>>(results, "Unable to construct the map") {
+    			protected Map<String, Object> map(SearchResult result) throws NamingException {
+    				return fromAttributesToMap(complete(result.getNameInNamespace(), result.getAttributes()));
+    			}
+    		};
+    	} catch (NamingException e) {
+    		throw new SessionException(e.getMessage(), e);
+    	}
+    }
+    
+    private CloseableIterator<String> dnIterator(String context, String filter, boolean coalesce) {
+    	SearchControls ctrl = new SearchControls();
+    	ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    	ctrl.setReturningAttributes(new String[] {});
     	
+    	try {
+    		NamingEnumeration<SearchResult> results = doSearch(context, filter, ctrl, sessionFactory.getPageSize(), coalesce);
+    		return new SearchResultIterator<String>(results, null) {
+    			protected String map(SearchResult result) throws NamingException {
+    				return result.getNameInNamespace();
+    			}
+    		};
+    	} catch (NamingException e) {
+    		throw new SessionException(e.getMessage(), e);
+    	}
+    }
+    
+    private <T> CloseableIterator<T> indirectionsIterator(final Class<T> clazz, String filter, boolean coalesce) {
     	OneMetaData oneMetaData = IndirectionsMetaData.get(clazz).getOne();
     	
     	SearchControls ctrl = new SearchControls();
@@ -537,17 +902,31 @@ public class SessionImpl implements Session {
     	ctrl.setReturningAttributes(new String[] { oneMetaData.getIdAttr(), oneMetaData.getIndirectionAttr() });
     	
     	try {
-    		List<T> retVal = new ArrayList<T>();
-    		NamingEnumeration<SearchResult> results = ctx.search(oneMetaData.getContext(), filter, ctrl);
-    		while (results.hasMore()) {
-				SearchResult result = results.next();
-				retVal.add(fromAttributesToIndirections(clazz, result.getAttributes()));
-    		}
-    		return retVal;
+    		NamingEnumeration<SearchResult> results = doSearch(oneMetaData.getContext(), filter, ctrl, sessionFactory.getPageSize(), coalesce);
+    		return new SearchResultIterator<T>(results, null) {
+    			protected T map(SearchResult result) throws NamingException {
+    				return fromAttributesToIndirections(clazz, complete(result.getNameInNamespace(), result.getAttributes()));
+    			}
+    		};
     	} catch (NamingException e) {
     		throw new SessionException(e.getMessage(), e);
     	}
     }
+    
+    /**
+     * Drain all the elements of the given iterator into a list.
+     */
+    private static <T> List<T> toList(CloseableIterator<T> iterator) {
+        List<T> retVal = new ArrayList<T>();
+        try {
+            while (iterator.hasNext()) {
+                retVal.add(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+        return retVal;
+    }
 
     @Override
     public <T> T uniqueSearch(Class<T> clazz, String filter) {
@@ -572,14 +951,391 @@ public class SessionImpl implements Session {
     }
     
     @Override
-    public void close() {
-        sessionCache.clear();
-        
-        // release the internal JNDI connection
+    public void evict(String dn) {
+        if (null != dn) {
+            sessionCache.remove(dn);
+        }
+    }
+    
+    @Override
+    public void clear() {
+        sessionCache.clear();
+    }
+    
+    @Override
+    public SessionCacheStats getCacheStats() {
+        SessionCacheStats stats = sessionCache.getStats();
+        return new SessionCacheStats(stats.getSize(), stats.getEstimatedBytes() + snapshots.getStats().getEstimatedBytes(),
+                stats.getEvictions(), stats.getCollections());
+    }
+    
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        
+        sessionCache.clear();
+        snapshots.clear();
+        
+        // give the internal JNDI connection back to the factory's pool
+        contexts.close();
+        if (null != ticket) {
+            ticket.close();
+        }
         if (bindToThreadLocal) {
-            sessionFactory.closeCurrentSession();
-        } else {
-            sessionFactory.closeLdapContext(ctx);
+            sessionFactory.unbindCurrentSession(this);
+        }
+    }
+    
+    boolean isClosed() {
+        return closed;
+    }
+    
+    /**
+     * Do a search which will be paged if <tt>pageSize</tt> is positive. The
+     * paging is transparent to the caller: the next page will be fetched
+     * automatically once the current one has been consumed. The context is
+     * held until the results are closed.
+     */
+    private NamingEnumeration<SearchResult> doSearch(String context, String filter, SearchControls ctrl, int pageSize) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            return contexts.hold(pageSize > 0
+                    ? new PagedSearchEnumeration(ctx, context, filter, ctrl, pageSize)
+                    : ctx.search(context, filter, ctrl));
+        } catch (NamingException e) {
+            contexts.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Like {@link #doSearch(String, String, SearchControls, int)}, but the
+     * results are read at once and shared with the identical searches in
+     * progress, if coalescing is enabled.
+     * 
+     * @param coalesce
+     *        whether the results are all read anyway
+     */
+    private NamingEnumeration<SearchResult> doSearch(final String context, final String filter, final SearchControls ctrl, final int pageSize,
+            boolean coalesce) throws NamingException {
+        ReadCoalescer coalescer = sessionFactory.readCoalescer();
+        if (!coalesce || null == coalescer) {
+            return doSearch(context, filter, ctrl, pageSize);
+        }
+        return ReadCoalescer.enumerate(coalescer.search(context, filter, ctrl, new ReadCoalescer.Operation<List<SearchResult>>() {
+            public List<SearchResult> run() throws NamingException {
+                return ReadCoalescer.drain(doSearch(context, filter, ctrl, pageSize));
+            }
+        }));
+    }
+    
+    private NamingEnumeration<SearchResult> search(String base, String filter, Object[] filterArgs, SearchControls ctrl) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            return contexts.hold(ctx.search(base, filter, filterArgs, ctrl));
+        } catch (NamingException e) {
+            contexts.release();
+            throw e;
+        }
+    }
+    
+    private Attributes getAttributes(final String dn, final String[] attrIds) throws NamingException {
+        ReadCoalescer coalescer = sessionFactory.readCoalescer();
+        if (null != coalescer) {
+            return coalescer.read(dn, attrIds, new ReadCoalescer.Operation<Attributes>() {
+                public Attributes run() throws NamingException {
+                    return fetchAttributes(dn, attrIds);
+                }
+            });
+        }
+        return fetchAttributes(dn, attrIds);
+    }
+    
+    private Attributes fetchAttributes(String dn, String[] attrIds) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            return RangeRetrieval.complete(ctx, dn, ctx.getAttributes(dn, attrIds));
+        } finally {
+            contexts.release();
+        }
+    }
+    
+    /**
+     * Fetch the remaining values of the attributes returned in ranges.
+     */
+    private Attributes complete(String dn, Attributes attributes) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            return RangeRetrieval.complete(ctx, dn, attributes);
+        } finally {
+            contexts.release();
+        }
+    }
+    
+    private void bind(String dn, Attributes attributes) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            ctx.bind(dn, null, attributes);
+        } finally {
+            contexts.release();
+        }
+        invalidateReads(dn);
+    }
+    
+    private void unbind(String dn) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            ctx.unbind(dn);
+        } finally {
+            contexts.release();
+        }
+        invalidateReads(dn);
+    }
+    
+    private void modifyAttributes(String dn, ModificationItem[] mods) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            ctx.modifyAttributes(dn, mods);
+        } finally {
+            contexts.release();
+        }
+        invalidateReads(dn);
+    }
+    
+    /**
+     * Make sure the reads from now on see the entry just written, rather than
+     * joining the reads in progress.
+     */
+    private void invalidateReads(String dn) {
+        ReadCoalescer coalescer = sessionFactory.readCoalescer();
+        if (null != coalescer) {
+            coalescer.invalidate(dn);
+        }
+    }
+    
+    /**
+     * Construct the entity via the attributes cached in second level cache.
+     * 
+     * @return the entity, or <tt>null</tt> if not cached
+     */
+    private <T> T fromSecondLevelCache(Class<T> clazz, String dn) throws NamingException {
+        SecondLevelCache secondLevelCache = sessionFactory.getSecondLevelCache();
+        if (null == secondLevelCache) {
+            return null;
+        }
+        Attributes cached = secondLevelCache.get(clazz, dn);
+        return null != cached ? fromAttributesToEntity(clazz, cached) : null;
+    }
+    
+    /**
+     * @return false if the dn could not be fetched in batch
+     */
+    private static boolean addToBatchGroup(Map<String, BatchGroup> groups, String dn) {
+        LdapName name;
+        try {
+            name = new LdapName(dn);
+        } catch (InvalidNameException e) {
+            return false;
+        }
+        if (name.isEmpty()) {
+            return false;
+        }
+        
+        Rdn rdn = name.getRdn(name.size() - 1);
+        if (rdn.size() != 1) {
+            return false;
+        }
+        
+        String base = name.getPrefix(name.size() - 1).toString();
+        String key = base.toLowerCase() + "|" + rdn.getType().toLowerCase();
+        BatchGroup group = groups.get(key);
+        if (null == group) {
+            group = new BatchGroup(base, rdn.getType());
+            groups.put(key, group);
+        }
+        group.rdnValues.add(rdn.getValue());
+        return true;
+    }
+    
+    /**
+     * Fetch the entries under <tt>base</tt> whose naming attribute is one of
+     * the given values, via one search with an OR filter.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void readBatch(Class<T> clazz, String base, String rdnType, List<Object> rdnValues, Map<String, T> fetched) throws NamingException {
+        StringBuilder filter = new StringBuilder("(|");
+        for (int i = 0; i < rdnValues.size(); i++) {
+            // values are passed as filter arguments, so that they are escaped by JNDI
+            filter.append('(').append(rdnType).append("={").append(i).append("})");
+        }
+        filter.append(')');
+        
+        LogUtils.debug(LOG, String.format("read %d entries under %s in batch", rdnValues.size(), base));
+        
+        SearchControls ctrl = new SearchControls();
+        ctrl.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        ctrl.setReturningAttributes(EntityMetaData.getDefinedAttrNames(clazz));
+        
+        SecondLevelCache secondLevelCache = sessionFactory.getSecondLevelCache();
+        long generation = null != secondLevelCache ? secondLevelCache.generation() : 0;
+        NamingEnumeration<SearchResult> results = search(base, filter.toString(), rdnValues.toArray(), ctrl);
+        try {
+            while (results.hasMore()) {
+                SearchResult result = results.next();
+                String dn = result.getNameInNamespace();
+                Attributes attributes = complete(dn, result.getAttributes());
+                if (null != secondLevelCache) {
+                    secondLevelCache.put(clazz, dn, attributes, generation);
+                }
+                
+                T entity = (T) sessionCache.get(clazz, dn);
+                if (null == entity) {
+                    entity = cache(clazz, dn, fromAttributesToEntity(clazz, attributes));
+                }
+                fetched.put(DnUtils.normalize(dn), entity);
+            }
+        } finally {
+            results.close();
+        }
+    }
+    
+    /**
+     * Read in bulk the entries referenced by the eager properties of the given
+     * entities, so that they are in session cache when the lazy loading
+     * proxies are touched.
+     */
+    private void loadEagerReferences(Class<?> clazz, Collection<?> entities, FetchPlan fetchPlan) {
+        List<EntityPropertyMetaData> eagerProps = eagerPropertiesOf(clazz, fetchPlan);
+        if (eagerProps.isEmpty()) {
+            return;
+        }
+        
+        Map<Class<?>, Set<String>> dnsByType = new LinkedHashMap<Class<?>, Set<String>>();
+        for (Object entity : entities) {
+            if (null == entity) {
+                continue;
+            }
+            for (EntityPropertyMetaData propMetaData : eagerProps) {
+                Object value = propMetaData.getter().get(entity);
+                if (null == value) {
+                    continue;
+                }
+                
+                Set<String> dns = dnsByType.get(propMetaData.getValueClass());
+                if (null == dns) {
+                    dns = new LinkedHashSet<String>();
+                    dnsByType.put(propMetaData.getValueClass(), dns);
+                }
+                if (value instanceof LazyReferenceList) {
+                    // avoid creating the proxies
+                    for (String dn : ((LazyReferenceList<?>) value).referenceDNs()) {
+                        addReferenceDN(dns, propMetaData.getValueClass(), dn);
+                    }
+                } else if (propMetaData.isMultiple()) {
+                    for (Object reference : (List<?>) value) {
+                        addReferenceDN(dns, propMetaData.getValueClass(), referenceDN(reference));
+                    }
+                } else {
+                    addReferenceDN(dns, propMetaData.getValueClass(), referenceDN(value));
+                }
+            }
+        }
+        
+        for (Map.Entry<Class<?>, Set<String>> entry : dnsByType.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                LogUtils.debug(LOG, String.format("load %d %s references eagerly", entry.getValue().size(), entry.getKey().getName()));
+                readAll(entry.getKey(), entry.getValue(), FetchPlan.NONE);
+            }
+        }
+        
+        if (SessionMode.SNAPSHOT == mode) {
+            resolveReferenceStubs(entities, eagerProps);
+        }
+    }
+    
+    /**
+     * @return dn of a lazy loading proxy or a reference stub, <tt>null</tt> if
+     *         the reference is loaded
+     */
+    private String referenceDN(Object reference) {
+        if (SessionMode.SNAPSHOT == mode) {
+            return null != reference && null == snapshotOf(reference) ? DnHelper.build(reference) : null;
+        }
+        return EntityProxyFactory.getReferenceDN(reference);
+    }
+    
+    /**
+     * Replace the reference stubs of the eager properties with the entities
+     * read, as plain entities are not loaded on access.
+     */
+    private void resolveReferenceStubs(Collection<?> entities, List<EntityPropertyMetaData> eagerProps) {
+        for (Object entity : entities) {
+            if (null == entity) {
+                continue;
+            }
+            for (EntityPropertyMetaData propMetaData : eagerProps) {
+                Object value = propMetaData.getter().get(entity);
+                if (null == value) {
+                    continue;
+                }
+                if (propMetaData.isMultiple()) {
+                    @SuppressWarnings("unchecked")
+                    List<Object> references = (List<Object>) value;
+                    for (int i = 0; i < references.size(); i++) {
+                        references.set(i, resolveReferenceStub(propMetaData.getValueClass(), references.get(i)));
+                    }
+                } else {
+                    propMetaData.setter().set(entity, resolveReferenceStub(propMetaData.getValueClass(), value));
+                }
+            }
+        }
+    }
+    
+    private Object resolveReferenceStub(Class<?> referenceType, Object reference) {
+        String dn = referenceDN(reference);
+        Object loaded = null != dn ? sessionCache.get(referenceType, dn) : null;
+        return null != loaded ? loaded : reference;
+    }
+    
+    private void addReferenceDN(Set<String> dns, Class<?> referenceType, String dn) {
+        if (null != dn && !sessionCache.contains(referenceType, dn)) {
+            dns.add(dn);
+        }
+    }
+    
+    private static List<EntityPropertyMetaData> eagerPropertiesOf(Class<?> clazz, FetchPlan fetchPlan) {
+        if (null == fetchPlan) {
+            fetchPlan = FetchPlan.DEFAULT;
+        }
+        
+        EntityMetaData metaData = EntityMetaData.get(clazz);
+        List<EntityPropertyMetaData> eagerProps = new ArrayList<EntityPropertyMetaData>();
+        if (fetchPlan.isAnnotatedIncluded()) {
+            for (EntityPropertyMetaData propMetaData : metaData) {
+                if (propMetaData.isReference() && propMetaData.isEager()) {
+                    eagerProps.add(propMetaData);
+                }
+            }
+        }
+        for (String propName : fetchPlan.getPropNames()) {
+            EntityPropertyMetaData propMetaData = metaData.getPropertyByJavaBeanPropName(propName);
+            if (null == propMetaData || !propMetaData.isReference()) {
+                throw new SessionException(String.format("%s is not a reference property of %s", propName, clazz.getName()));
+            }
+            if (!eagerProps.contains(propMetaData)) {
+                eagerProps.add(propMetaData);
+            }
+        }
+        return eagerProps;
+    }
+    
+    private void invalidateSecondLevelCache(String dn) {
+        SecondLevelCache secondLevelCache = sessionFactory.getSecondLevelCache();
+        if (null != secondLevelCache) {
+            secondLevelCache.invalidate(dn);
         }
     }
     
@@ -592,9 +1348,10 @@ public class SessionImpl implements Session {
     	LogUtils.debug(LOG, "connect " + oneDN + " and " + theOtherDNs);
     	
     	try {
-    		ctx.modifyAttributes(oneDN, new ModificationItem[] {
+    		modifyAttributes(oneDN, new ModificationItem[] {
     			ModUtils.add(metaData.getOne().getIndirectionAttr(), theOtherDNs)
     		});
+    		invalidateSecondLevelCache(oneDN);
     		LogUtils.debug(LOG, String.format("connected: %s -> %s", oneDN, theOtherDNs));
     		
     		for (String theOtherDN : theOtherDNs) {
@@ -604,9 +1361,10 @@ public class SessionImpl implements Session {
     				continue;
     			}
     			
-    			ctx.modifyAttributes(theOtherDN, new ModificationItem[] {
+    			modifyAttributes(theOtherDN, new ModificationItem[] {
     				ModUtils.add(indirectionAttr, oneDN)
     			});
+    			invalidateSecondLevelCache(theOtherDN);
     			LogUtils.debug(LOG, String.format("connected: %s -> %s", theOtherDN, oneDN));
     		}
     	} catch (NamingException e) {
@@ -623,9 +1381,10 @@ public class SessionImpl implements Session {
 		LogUtils.debug(LOG, "disconnect " + oneDN + " and " + theOtherDNs);
 
 		try {
-			ctx.modifyAttributes(oneDN, new ModificationItem[] {
+			modifyAttributes(oneDN, new ModificationItem[] {
 				ModUtils.remove(metaData.getOne().getIndirectionAttr(), theOtherDNs)
 			});
+			invalidateSecondLevelCache(oneDN);
 			LogUtils.debug(LOG, String.format("disconnected: %s -> %s", oneDN, theOtherDNs));
 			
 			for (String theOtherDN : theOtherDNs) {
@@ -635,9 +1394,10 @@ public class SessionImpl implements Session {
     				continue;
     			}
 				
-				ctx.modifyAttributes(theOtherDN, new ModificationItem[] {
+				modifyAttributes(theOtherDN, new ModificationItem[] {
 					ModUtils.remove(indirectionAttr, oneDN)
 				});
+				invalidateSecondLevelCache(theOtherDN);
 				LogUtils.debug(LOG, String.format("disconnected: %s -> %s", theOtherDN, oneDN));
 			}
 		} catch (NamingException e) {
@@ -646,89 +1406,69 @@ public class SessionImpl implements Session {
     }
     
     private static Attributes fromTransientToAttributes(Object obj) {
-        EntityMetaData metaData = EntityMetaData.get(ClassHelper.actualClass(obj));
+        WritePlan plan = WritePlan.get(ClassHelper.actualClass(obj));
         Attributes toSaves = new BasicAttributes();
-        for (EntityPropertyMetaData propMetaData : metaData) {
-        	Object propValue = propMetaData.getter().get(obj);
+        for (WritePlan.Slot slot : plan.slots()) {
+        	Object propValue = slot.propMetaData.getter().get(obj);
             if (propValue == null) {
                 continue;
             }
             
-            // ignore empty list when create
-            if (propMetaData.isMultiple() && ((List) propValue).isEmpty()) {
-                continue;
-            }
-            
-            Evaluator<String> evaluator = null;
-            if (propMetaData.isReference()) {
-                // reference property use dn as attribute value
-                final EntityMetaData metaDataOfReferenceProp = EntityMetaData.get(propMetaData.getValueClass());
-                evaluator = new Evaluator<String>() {
-                    public String eval(Object obj) {
-                        Object idValue = metaDataOfReferenceProp.getIdProperty().getter().get(obj);
-                        if (null == idValue) {
-                            return null;
-                        }
-                        return DnHelper.build((String)idValue, metaDataOfReferenceProp.getManagedClass());
-                    }
-                };
-            } else {
-            	evaluator = createPropEvaluator(propMetaData);
-            }
-            
-            if (!propMetaData.isMultiple()) {
-                AttrUtils.putIfNotNull(toSaves, AttrUtils.create(propMetaData.getLdapPropName(), propValue, evaluator));
-            } else {
-                AttrUtils.putIfNotNull(toSaves, AttrUtils.create(propMetaData.getLdapPropName(), (List)propValue, evaluator));
+            if (!slot.propMetaData.isMultiple()) {
+                AttrUtils.putIfNotNull(toSaves, AttrUtils.create(slot.ldapPropName, propValue, slot.encoder));
+            } else if (!((List) propValue).isEmpty()) {
+                // ignore empty list when create
+                AttrUtils.putIfNotNull(toSaves, AttrUtils.create(slot.ldapPropName, (List)propValue, slot.encoder));
             }
         }
         
-        toSaves.put(AttrUtils.create("objectclass", metaData.objectClasses()));
+        toSaves.put(plan.objectClassAttribute());
         return toSaves;
     }
     
     private static List<ModificationItem> fromEntityToModificationItems(Object entity) {
         List<ModificationItem> mods = new ArrayList<ModificationItem>();
         
-        EntityMetaData metaData = EntityMetaData.get(ClassHelper.actualClass(entity));
-        Set<String> modifiedJavaBeanPropNames = EntityProxyFactory.getModifiedPropNames(entity);
-        if (!CollectionUtils.isEmpty(modifiedJavaBeanPropNames)) {
-            LogUtils.debug(LOG, "found modified properties for " + DnHelper.build(entity) + ": " + modifiedJavaBeanPropNames);
+        WritePlan plan = WritePlan.get(ClassHelper.actualClass(entity));
+        DirtyInterceptor dirty = EntityProxyFactory.getDirtyInterceptor(entity);
+        if (null != dirty && dirty.isDirty()) {
+            if (LOG.isDebugEnabled()) {
+                List<String> modifiedJavaBeanPropNames = new ArrayList<String>();
+                for (int i = dirty.nextDirtySlot(0); i >= 0; i = dirty.nextDirtySlot(i + 1)) {
+                    modifiedJavaBeanPropNames.add(plan.slot(i).propMetaData.getJavaBeanPropName());
+                }
+                LogUtils.debug(LOG, "found modified properties for " + DnHelper.build(entity) + ": " + modifiedJavaBeanPropNames);
+            }
             
             // single valued properties
-            for (String javaBeanPropName : modifiedJavaBeanPropNames) {
-                EntityPropertyMetaData propMetaData = metaData.getPropertyByJavaBeanPropName(javaBeanPropName);
-                if (propMetaData.isReadonly() || propMetaData.isMultiple()) {
+            for (int i = dirty.nextDirtySlot(0); i >= 0; i = dirty.nextDirtySlot(i + 1)) {
+                WritePlan.Slot slot = plan.slot(i);
+                if (slot.propMetaData.isReadonly() || slot.propMetaData.isMultiple()) {
                     continue;
                 }
                 
-                Object propValue = propMetaData.getter().get(entity);
+                Object propValue = slot.propMetaData.getter().get(entity);
                 if (null == propValue) {
-                    mods.add(ModUtils.remove(propMetaData.getLdapPropName()));
+                    mods.add(ModUtils.remove(slot.ldapPropName));
                 } else {
-                    CollectionUtils.addIfNotNull(mods, ModUtils.replace(propMetaData.getLdapPropName(), propValue, createPropEvaluator(propMetaData)));
+                    CollectionUtils.addIfNotNull(mods, ModUtils.replace(slot.ldapPropName, propValue, slot.encoder));
                 }
             }
         }
         
         // multiple valued properties
-        for (EntityPropertyMetaData propMetaData : metaData) {
-            if (propMetaData.isReadonly() || !propMetaData.isMultiple()) {
-                continue;
-            }
-            
-            List propValues = (List) propMetaData.getter().get(entity);
+        for (WritePlan.Slot slot : plan.writableMultiValuedSlots()) {
+            List<?> propValues = (List<?>) slot.propMetaData.getter().get(entity);
             if (null == propValues) {
-                mods.add(ModUtils.remove(propMetaData.getLdapPropName()));
-            } else {
-                Evaluator<String> evaluator = createPropEvaluator(propMetaData);
-                if (propValues instanceof MoniteredList) {
-                    MoniteredList moniteredList = (MoniteredList) propValues;
-                    CollectionUtils.addIfNotNull(mods, ModUtils.add(propMetaData.getLdapPropName(), moniteredList.getAddedElements(), evaluator));
-                    CollectionUtils.addIfNotNull(mods, ModUtils.remove(propMetaData.getLdapPropName(), moniteredList.getRemovedElements(), evaluator));
-                } else {
-                    CollectionUtils.addIfNotNull(mods, ModUtils.replace(propMetaData.getLdapPropName(), propValues, evaluator));
+                mods.add(ModUtils.remove(slot.ldapPropName));
+            } else if (propValues instanceof ChangeTrackingList) {
+                ChangeTrackingList<?> trackingList = (ChangeTrackingList<?>) propValues;
+                if (trackingList.hasChanges()) {
+                    CollectionUtils.addIfNotNull(mods, ModUtils.add(slot.ldapPropName, trackingList.getAddedElements(), slot.encoder));
+                    CollectionUtils.addIfNotNull(mods, ModUtils.remove(slot.ldapPropName, trackingList.getRemovedElements(), slot.encoder));
                 }
+            } else {
+                CollectionUtils.addIfNotNull(mods, ModUtils.replace(slot.ldapPropName, propValues, slot.encoder));
             }
         }
         
@@ -737,78 +1477,33 @@ public class SessionImpl implements Session {
     
     private <T> T fromAttributesToEntity(Class<T> clazz, Attributes attributes) throws NamingException {
         try {
-            Map.Entry<Object, SetterInterceptor> pair = EntityProxyFactory.getProxiedEntity(clazz);
-            T entity = (T) pair.getKey();
+            Map.Entry<Object, DirtyInterceptor> pair = null;
+            T entity;
+            if (SessionMode.SNAPSHOT == mode) {
+                entity = newPlainEntity(clazz);
+            } else {
+                pair = EntityProxyFactory.getProxiedEntity(clazz);
+                @SuppressWarnings("unchecked")
+                T proxied = (T) pair.getKey();
+                entity = proxied;
+            }
             
             EntityMetaData metaData = EntityMetaData.get(clazz);
-            Set<String> multipleLdapAttrNames = new HashSet<String>();
-            for (EntityPropertyMetaData propMetaData : metaData) {
-                if (propMetaData.isMultiple()) {
-                    multipleLdapAttrNames.add(propMetaData.getLdapPropName());
-                }
+            @SuppressWarnings("unchecked")
+            EntityMapper<T> mapper = (EntityMapper<T>) metaData.getMapper();
+            if (null != mapper) {
+                mapper.map(entity, attributes, mappedValues);
+            } else {
+                mapByPlan(entity, metaData, attributes);
             }
             
-            for (NamingEnumeration<? extends Attribute> attrs = attributes.getAll(); attrs.hasMore();) {
-                Attribute attr = attrs.next();
-    
-                EntityPropertyMetaData propMetaData = metaData.getProperty(attr.getID());
-                if (null == propMetaData) {
-                    // current attribute exist in LDAP but not defined in our
-                    // POJO.
-                    continue;
-                }
-    
-                if (propMetaData.isId()) {
-                    propMetaData.setter().set(entity, attr.get());
-                    if (entity instanceof Distinguishable) {
-                        ((Distinguishable)entity).setDN(attr.getID() + "=" + attr.get().toString() + "," + metaData.context());
-                    }
-                    
-                } else {
-                    List<String> attrValues = new ArrayList<String>();
-                    for (NamingEnumeration<?> all = attr.getAll(); all.hasMore();) {
-                        attrValues.add(propMetaData.getSyntaxer().ldapStringToJavaString(all.next().toString()));
-                    }
-    
-                    if (!propMetaData.isReference()) {
-                        if (!propMetaData.isMultiple()) {
-                            propMetaData.setter().set(entity, attrValues.get(0));
-                        } else {
-                            propMetaData.setter().set(entity, new MoniteredList<String>(attrValues));
-                            multipleLdapAttrNames.remove(propMetaData.getLdapPropName());
-                        }
-    
-                    } else {
-                        final Class<?> referenceType = propMetaData.getValueClass();
-                        if (!propMetaData.isMultiple()) {
-                            propMetaData.setter().set(entity, EntityProxyFactory.getLazyLoadingProxiedEntity(this, referenceType, attrValues.get(0)));
-    
-                        } else {
-                            List references = new ArrayList();
-                            for (String dn : attrValues) {
-                                references.add(EntityProxyFactory.getLazyLoadingProxiedEntity(this, referenceType, dn));
-                            }
-                            propMetaData.setter().set(entity, new MoniteredList(references));
-                            multipleLdapAttrNames.remove(propMetaData.getLdapPropName());
-                        }
-                    }
-                }
-                
+            if (SessionMode.SNAPSHOT != mode) {
                 /*
-                 * The rest attribute names in multipleLdapAttrNames are those
-                 * not presented in LDAP side. In order to track what changes
-                 * occurred to these attributes, we need to use MoniteredList.
+                 * Once all the properties have been initialized, we should turn on
+                 * the switch of DirtyInterceptor to monitor changes.
                  */
-                for (String notPresentedMultipleLdapAttrName : multipleLdapAttrNames) {
-                    metaData.getProperty(notPresentedMultipleLdapAttrName).setter().set(entity, new MoniteredList());
-                }
+                pair.getValue().turnOn();
             }
-            
-            /*
-             * Once all the properties have been initialized, we should turn on
-             * the switch of SetterInterceptor to monitor changes.
-             */
-            pair.getValue().turnOn();
             return entity;
         
         } catch (NamingException e) {
@@ -817,6 +1512,200 @@ public class SessionImpl implements Session {
         }
     }
 
+    private void mapByPlan(Object entity, EntityMetaData metaData, Attributes attributes) throws NamingException {
+        ReadPlan plan = metaData.getReadPlan();
+        
+        /*
+         * Multi-valued slots which are not presented in LDAP side are left
+         * set. In order to track what changes occurred to these attributes,
+         * they are set to empty lists of the session.
+         */
+        BitSet notPresentedMultiValuedSlots = plan.multiValuedSlots();
+        
+        for (NamingEnumeration<? extends Attribute> attrs = attributes.getAll(); attrs.hasMore();) {
+            Attribute attr = attrs.next();
+            
+            int slot = plan.slotOf(attr.getID());
+            if (slot < 0) {
+                // current attribute exist in LDAP but not defined in our
+                // POJO.
+                continue;
+            }
+            
+            EntityPropertyMetaData propMetaData = plan.property(slot);
+            Syntaxer syntaxer = propMetaData.getSyntaxer();
+            switch (plan.kind(slot)) {
+            case ID:
+                propMetaData.setter().set(entity, attr.get());
+                if (entity instanceof Distinguishable) {
+                    ((Distinguishable)entity).setDN(attr.getID() + "=" + attr.get().toString() + "," + metaData.context());
+                }
+                break;
+                
+            case VALUE:
+                propMetaData.setter().set(entity, syntaxer.ldapStringToJavaString(attr.get().toString()));
+                break;
+                
+            case VALUES:
+                propMetaData.setter().set(entity, mappedValues.values(attr, syntaxer));
+                notPresentedMultiValuedSlots.clear(slot);
+                break;
+                
+            case REFERENCE:
+                propMetaData.setter().set(entity, mappedValues.reference(propMetaData.getValueClass(),
+                        syntaxer.ldapStringToJavaString(attr.get().toString())));
+                break;
+                
+            case REFERENCES:
+                propMetaData.setter().set(entity, mappedValues.references(propMetaData.getValueClass(), attr, syntaxer));
+                notPresentedMultiValuedSlots.clear(slot);
+                break;
+            }
+        }
+        
+        for (int slot = notPresentedMultiValuedSlots.nextSetBit(0); slot >= 0; slot = notPresentedMultiValuedSlots.nextSetBit(slot + 1)) {
+            plan.property(slot).setter().set(entity, mappedValues.noValues());
+        }
+    }
+    
+    /**
+     * Holds multi-valued properties and references of the entities as the
+     * mode of this session requires.
+     */
+    private class SessionValues implements EntityMapper.Values {
+        
+        public List<String> values(Attribute attr, Syntaxer syntaxer) throws NamingException {
+            if (SessionMode.SNAPSHOT == mode) {
+                return decodeAll(attr, syntaxer);
+            }
+            MoniteredList<String> values = new MoniteredList<String>(attr.size());
+            for (NamingEnumeration<?> all = attr.getAll(); all.hasMore();) {
+                values.load(syntaxer.ldapStringToJavaString(all.next().toString()));
+            }
+            return values;
+        }
+        
+        public List<Object> noValues() {
+            return SessionMode.SNAPSHOT == mode ? new ArrayList<Object>() : new MoniteredList<Object>();
+        }
+        
+        public Object reference(Class<?> referenceType, String dn) {
+            if (SessionMode.SNAPSHOT == mode) {
+                return referenceStub(referenceType, dn);
+            }
+            return EntityProxyFactory.getLazyLoadingProxiedEntity(loadingSession, referenceType, dn);
+        }
+        
+        public List<Object> references(Class<?> referenceType, Attribute attr, Syntaxer syntaxer) throws NamingException {
+            if (SessionMode.SNAPSHOT == mode) {
+                List<Object> stubs = new ArrayList<Object>(attr.size());
+                for (NamingEnumeration<?> all = attr.getAll(); all.hasMore();) {
+                    stubs.add(referenceStub(referenceType, syntaxer.ldapStringToJavaString(all.next().toString())));
+                }
+                return stubs;
+            }
+            return lazyReferenceList(referenceType, decodeAll(attr, syntaxer));
+        }
+        
+    }
+    
+    private static List<String> decodeAll(Attribute attr, Syntaxer syntaxer) throws NamingException {
+        List<String> values = new ArrayList<String>(attr.size());
+        for (NamingEnumeration<?> all = attr.getAll(); all.hasMore();) {
+            values.add(syntaxer.ldapStringToJavaString(all.next().toString()));
+        }
+        return values;
+    }
+    
+    /**
+     * A plain entity of the referenced entry with only its id, and dn if
+     * {@link Distinguishable}, set. It is not loaded on access, but replaced
+     * by the entity read when the reference is fetched eagerly.
+     */
+    private static Object referenceStub(Class<?> referenceType, String dn) {
+        Object stub = newPlainEntity(referenceType);
+        try {
+            LdapName name = new LdapName(dn);
+            EntityMetaData.get(referenceType).getIdProperty().setter().set(stub, name.getRdn(name.size() - 1).getValue());
+        } catch (InvalidNameException e) {
+            throw new SessionException("Invalid reference dn " + dn, e);
+        }
+        if (stub instanceof Distinguishable) {
+            ((Distinguishable) stub).setDN(dn);
+        }
+        return stub;
+    }
+    
+    private static <T> T newPlainEntity(Class<T> clazz) {
+        try {
+            return clazz.newInstance();
+        } catch (Exception e) {
+            throw new SessionException("Unable to instantiate " + clazz, e);
+        }
+    }
+    
+    /**
+     * Whether the given entity has been loaded, either as a proxy or, in
+     * SNAPSHOT mode, as a plain object by this session.
+     */
+    /* package */boolean isPersistent(Object entity) {
+        return entity instanceof Persistent || null != snapshotOf(entity);
+    }
+    
+    /**
+     * Put the given entity just loaded in session cache, unless another thread
+     * of a shared session has cached the same entry meanwhile.
+     * 
+     * @return the entity cached
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T cache(Class<T> clazz, String dn, T entity) {
+        T cached = (T) sessionCache.putIfAbsent(clazz, dn, entity);
+        if (null != cached) {
+            return cached;
+        }
+        snapshot(clazz, dn, entity);
+        return entity;
+    }
+    
+    /**
+     * Keep the loaded values of the given entity, so that they are compared
+     * against when updating, in SNAPSHOT mode.
+     */
+    private void snapshot(Class<?> clazz, String dn, Object entity) {
+        if (SessionMode.SNAPSHOT == mode) {
+            snapshots.put(clazz, dn, entity, new EntitySnapshot(entity, WritePlan.get(clazz)));
+        }
+    }
+    
+    /**
+     * @return the snapshot of the given entity, or <tt>null</tt> if it is not
+     *         a plain entity loaded by this session
+     */
+    private EntitySnapshot snapshotOf(Object entity) {
+        if (snapshots.isEmpty() || entity instanceof Persistent) {
+            return null;
+        }
+        String dn = DnHelper.build(entity);
+        return null != dn ? (EntitySnapshot) snapshots.attachmentOf(entity.getClass(), dn, entity) : null;
+    }
+    
+    private LazyReferenceList<Object> lazyReferenceList(final Class<?> referenceType, List<String> dns) {
+        // siblings are loaded together once any of them is touched
+        final ReferenceBatch batch = dns.size() > 1 && sessionFactory.getBatchSize() > 1
+                ? new ReferenceBatch(loadingSession, referenceType, dns, sessionFactory.getBatchSize())
+                : null;
+        
+        // proxies are created only when the elements are accessed
+        return new LazyReferenceList<Object>(referenceType, dns) {
+            protected Object createProxy(String dn) {
+                return null != batch
+                        ? EntityProxyFactory.getLazyLoadingProxiedEntity(batch, dn)
+                        : EntityProxyFactory.getLazyLoadingProxiedEntity(loadingSession, referenceType, dn);
+            }
+        };
+    }
+    
     private Map<String, Object> fromAttributesToMap(Attributes attributes) throws NamingException {
     	try {
     		Map<String, Object> map = new HashMap<String, Object>();
@@ -900,23 +1789,64 @@ public class SessionImpl implements Session {
     	}
     }
     
-    private static final Evaluator<String> DN_EVALUATOR = new Evaluator<String>() {
-        @Override
-        public String eval(Object obj) {
-            return DnHelper.build(obj);
+    /**
+     * Dns sharing the same parent and naming attribute, which could be
+     * fetched together.
+     */
+    private static class BatchGroup {
+        
+        final String base;
+        final String rdnType;
+        final List<Object> rdnValues = new ArrayList<Object>();
+        
+        BatchGroup(String base, String rdnType) {
+            this.base = base;
+            this.rdnType = rdnType;
         }
-    };
+        
+    }
     
-    private static Evaluator<String> createPropEvaluator(final EntityPropertyMetaData propMetaData) {
-    	if (propMetaData.isReference()) {
-    		return DN_EVALUATOR;
-    	} else {
-    		return new Evaluator<String>() {
-    			public String eval(Object obj) {
-    				return propMetaData.getSyntaxer().javaStringToLdapString(String.valueOf(obj));
-    			}
-    		};
-    	}
+    /**
+     * The load of one entry by a thread of a shared session, which the other
+     * threads reading the same entry wait for.
+     */
+    private static class Flight {
+        
+        private final CountDownLatch landed = new CountDownLatch(1);
+        private volatile Object entity;
+        private volatile RuntimeException failure;
+        
+        /**
+         * @param entity
+         *        the entity loaded, or <tt>null</tt> if not found
+         */
+        synchronized void land(Object entity) {
+            if (0 != landed.getCount()) {
+                this.entity = entity;
+                landed.countDown();
+            }
+        }
+        
+        synchronized void fail(RuntimeException failure) {
+            if (0 != landed.getCount()) {
+                this.failure = failure;
+                landed.countDown();
+            }
+        }
+        
+        Object await() {
+            try {
+                landed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SessionException("Interrupted while waiting for another thread to read the entry", e);
+            }
+            if (null != failure) {
+                throw new SessionException(failure.getMessage(), failure);
+            }
+            return entity;
+        }
+        
     }
     
     /**
@@ -930,100 +1860,297 @@ public class SessionImpl implements Session {
     /**
      * A list which provides additional features for monitoring element
      * additions and removals.
+     * <p/>
+     * 
+     * Changes are tracked as the net difference against the values the list
+     * was created (or last cleared) with: adding a removed value back, or
+     * removing an added one, cancels the former change. Occurrences of each
+     * value are counted in a hash map, which is built on the first change, so
+     * looking up a value is O(1) and loading a huge list costs nothing extra.
      */
-    @SuppressWarnings("serial")
-    private static class MoniteredList<E> extends ArrayList<E> {
+    private static class MoniteredList<E> extends AbstractList<E> implements ChangeTrackingList<E>, RandomAccess, Serializable {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final ArrayList<E> values;
+        
+        private final Set<E> added = new LinkedHashSet<E>();
+        private final Set<E> removed = new LinkedHashSet<E>();
         
-        private TreeSet<E> added = new TreeSet<E>();
-        private TreeSet<E> removed = new TreeSet<E>();
+        // value -> number of occurrences in this list, null until needed
+        private Map<E, Integer> counts;
+        
+        // value -> number of its first occurrences removed by remove(Object)
+        // but still in values, dropped by the next compact()
+        private Map<Object, Integer> pending;
+        private int pendingCount;
         
         public MoniteredList() {
-            super();
+            values = new ArrayList<E>();
         }
         
         public MoniteredList(Collection<? extends E> c) {
-            super(c);
+            values = new ArrayList<E>(c);
+        }
+        
+        MoniteredList(int initialCapacity) {
+            values = new ArrayList<E>(initialCapacity);
+        }
+        
+        /**
+         * Append a value the list is created with, which is not a change.
+         */
+        void load(E e) {
+            values.add(e);
+        }
+        
+        @Override
+        public int size() {
+            return values.size() - pendingCount;
+        }
+        
+        @Override
+        public E get(int index) {
+            compact();
+            return values.get(index);
         }
         
         @Override
         public boolean add(E e) {
-            boolean retVal = super.add(e);
-            if (retVal) {
-            	added.add(e);
-            }
-            return retVal;
+            // appending never changes which occurrences are pending
+            counts();
+            values.add(e);
+            increase(e);
+            modCount++;
+            return true;
         }
         
         @Override
         public void add(int index, E element) {
-            super.add(index, element);
-            added.add(element);
+            compact();
+            counts();
+            values.add(index, element);
+            increase(element);
+            modCount++;
         }
         
         @Override
         public boolean addAll(Collection<? extends E> c) {
-            boolean retVal = super.addAll(c);
-            if (retVal) { 
-            	added.addAll(c);
+            counts();
+            boolean retVal = values.addAll(c);
+            for (E e : c) {
+                increase(e);
             }
+            modCount++;
             return retVal;
         }
         
         @Override
         public boolean addAll(int index, Collection<? extends E> c) {
-            boolean retVal = super.addAll(index, c);
-            if (retVal) {
-            	added.addAll(c);
+            compact();
+            counts();
+            boolean retVal = values.addAll(index, c);
+            for (E e : c) {
+                increase(e);
             }
+            modCount++;
+            return retVal;
+        }
+        
+        @Override
+        public E set(int index, E element) {
+            compact();
+            counts();
+            E retVal = values.set(index, element);
+            decrease(retVal);
+            increase(element);
             return retVal;
         }
         
         @Override
         public E remove(int index) {
-            E retVal = super.remove(index);
-            removed.add(retVal);
+            compact();
+            counts();
+            E retVal = values.remove(index);
+            decrease(retVal);
+            modCount++;
             return retVal;
         }
         
-        @SuppressWarnings("unchecked")
+        /**
+         * The occurrence is only marked as removed, so that removing values one
+         * by one costs O(1) each instead of shifting the rest of the list. The
+         * marked occurrences are dropped in one pass once the list is accessed
+         * by index.
+         */
         @Override
         public boolean remove(Object o) {
-            boolean retVal = super.remove(o);
-            if (retVal) {
-            	removed.add((E) o);
+            if (!contains(o)) {
+                return false;
             }
-            return retVal;
+            if (null == pending) {
+                pending = new HashMap<Object, Integer>();
+            }
+            Integer count = pending.get(o);
+            pending.put(o, null == count ? 1 : count + 1);
+            pendingCount++;
+            decrease(o);
+            modCount++;
+            return true;
+        }
+        
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            compact();
+            counts();
+            List<E> range = values.subList(fromIndex, toIndex);
+            for (E e : range) {
+                decrease(e);
+            }
+            range.clear();
+            modCount++;
         }
         
-        @SuppressWarnings("unchecked")
         @Override
         public boolean removeAll(Collection<?> c) {
-            boolean retVal = super.removeAll(c);
-            if (retVal) {
-            	removed.addAll((Collection<? extends E>) c);
+            return batchRemove(c, true);
+        }
+        
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            return batchRemove(c, false);
+        }
+        
+        /**
+         * Remove the elements which are (or are not) in the given collection
+         * in one pass, with hash based lookups.
+         */
+        private boolean batchRemove(Collection<?> c, boolean removeContained) {
+            compact();
+            counts();
+            Set<?> lookup = c instanceof Set ? (Set<?>) c : new HashSet<Object>(c);
+            int kept = 0;
+            for (int i = 0; i < values.size(); i++) {
+                E e = values.get(i);
+                if (lookup.contains(e) == removeContained) {
+                    decrease(e);
+                } else {
+                    values.set(kept++, e);
+                }
             }
-            return retVal;
+            if (kept == values.size()) {
+                return false;
+            }
+            values.subList(kept, values.size()).clear();
+            modCount++;
+            return true;
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            return counts().containsKey(o);
         }
         
+        /**
+         * Drop the occurrences removed by {@link #remove(Object)} in one pass.
+         * Removing the first occurrence of values one after another is the
+         * same as removing the first n occurrences of each value at once.
+         */
+        private void compact() {
+            if (0 == pendingCount) {
+                return;
+            }
+            int kept = 0;
+            for (int i = 0; i < values.size(); i++) {
+                E e = values.get(i);
+                Integer count = pending.get(e);
+                if (null == count) {
+                    values.set(kept++, e);
+                } else if (count > 1) {
+                    pending.put(e, count - 1);
+                } else {
+                    pending.remove(e);
+                }
+            }
+            values.subList(kept, values.size()).clear();
+            pending = null;
+            pendingCount = 0;
+        }
+        
+        @Override
         public List<E> getAddedElements() {
             return new ArrayList<E>(added);
         }
         
+        @Override
         public List<E> getRemovedElements() {
             return new ArrayList<E>(removed);
         }
         
-        /**
-         * This method will be called once an entity has been updated
-         * successfully. The changes must be cleared because we want to reuse
-         * the entity this list belongs to. The reason is, if not cleared, the
-         * changes will be gathered the next time when updating.
-         */
+        @Override
+        public boolean hasChanges() {
+            return !added.isEmpty() || !removed.isEmpty();
+        }
+        
+        @Override
         public void clearChanges() {
             added.clear();
             removed.clear();
         }
         
+        /**
+         * Must be called before the list is modified, so that the counts
+         * reflect the values before the change. Nothing is pending before
+         * the counts are built, as remove(Object) builds them.
+         */
+        private Map<E, Integer> counts() {
+            if (null == counts) {
+                counts = new HashMap<E, Integer>(Math.max(16, (int) (values.size() / 0.75f) + 1));
+                for (E e : values) {
+                    Integer count = counts.get(e);
+                    counts.put(e, null == count ? 1 : count + 1);
+                }
+            }
+            return counts;
+        }
+        
+        /**
+         * Called after an occurrence of <tt>e</tt> has been added.
+         */
+        private void increase(E e) {
+            Map<E, Integer> counts = counts();
+            Integer count = counts.get(e);
+            if (null == count) {
+                // absent before, so remove(e) was tracked if it was ever there
+                counts.put(e, 1);
+                if (!removed.remove(e)) {
+                    added.add(e);
+                }
+            } else {
+                counts.put(e, count + 1);
+            }
+        }
+        
+        /**
+         * Called after an occurrence of <tt>o</tt> has been removed.
+         */
+        @SuppressWarnings("unchecked")
+        private void decrease(Object o) {
+            Map<E, Integer> counts = counts();
+            Integer count = counts.get(o);
+            if (null == count) {
+                return;
+            }
+            if (count > 1) {
+                counts.put((E) o, count - 1);
+            } else {
+                counts.remove(o);
+                if (!added.remove(o)) {
+                    removed.add((E) o);
+                }
+            }
+        }
+        
     }
     
 }
@@ -0,0 +1,196 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Keeps track of the sessions opened by a single session factory.
+ * <p/>
+ * 
+ * Besides counting the sessions, the tracker reports each session which stays
+ * open longer than the leak threshold, once, together with the stack trace of
+ * the thread which opened it. Since capturing a stack trace on each open is
+ * not free, leak detection is disabled unless the threshold is positive. Open
+ * sessions are checked whenever a session is opened or the statistics are
+ * requested, but no more than twice per threshold.
+ */
+public class SessionTracker {
+
+    private static final Log LOG = LogFactory.getLog(SessionTracker.class);
+
+    private final Set<Ticket> open = Collections.newSetFromMap(new ConcurrentHashMap<Ticket, Boolean>());
+
+    private volatile long leakThreshold;
+    private final AtomicLong nextCheck = new AtomicLong();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    SessionTracker() {
+    }
+
+    /**
+     * Milliseconds a session could stay open before being reported as
+     * leaked, 0 means leak detection is disabled.
+     */
+    public long getLeakThreshold() {
+        return leakThreshold;
+    }
+
+    void setLeakThreshold(long leakThreshold) {
+        this.leakThreshold = leakThreshold;
+        nextCheck.set(0);
+    }
+
+    /**
+     * Start tracking a new session.
+     * 
+     * @return the ticket to close once the session is closed
+     */
+    Ticket open() {
+        long threshold = leakThreshold;
+        Ticket ticket = new Ticket(opened.incrementAndGet(), threshold > 0 ? new Throwable("Session opened here") : null);
+        open.add(ticket);
+        checkLeaks(threshold);
+        return ticket;
+    }
+
+    /**
+     * Count a thread-bound session handed out again.
+     */
+    void reused() {
+        reused.incrementAndGet();
+    }
+
+    private void checkLeaks(long threshold) {
+        if (threshold <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long next = nextCheck.get();
+        if (now < next || !nextCheck.compareAndSet(next, now + Math.max(1, threshold / 2))) {
+            return;
+        }
+
+        for (Ticket each : open) {
+            if (null != each.openedAt && now - each.openedMillis > threshold && each.reported.compareAndSet(false, true)) {
+                leaked.incrementAndGet();
+                LogUtils.warn(LOG, String.format("Session #%d opened by thread %s is still open after %dms",
+                        each.id, each.thread, now - each.openedMillis), each.openedAt);
+            }
+        }
+    }
+
+    public Stats getStats() {
+        checkLeaks(leakThreshold);
+        return new Stats(open.size(), opened.get(), reused.get(), leaked.get());
+    }
+
+    /**
+     * A tracked session, which must be closed as the session is closed.
+     */
+    final class Ticket {
+
+        private final long id;
+        private final String thread = Thread.currentThread().getName();
+        private final long openedMillis = System.currentTimeMillis();
+        private final Throwable openedAt;
+
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        private Ticket(long id, Throwable openedAt) {
+            this.id = id;
+            this.openedAt = openedAt;
+        }
+
+        void close() {
+            if (open.remove(this) && reported.get()) {
+                LogUtils.info(LOG, String.format("Session #%d reported as leaked was closed after %dms",
+                        id, System.currentTimeMillis() - openedMillis));
+            }
+        }
+
+    }
+
+    /**
+     * A point-in-time snapshot of a tracker's counters.
+     */
+    public static class Stats {
+
+        private final int open;
+        private final long opened;
+        private final long reused;
+        private final long leaked;
+
+        Stats(int open, long opened, long reused, long leaked) {
+            this.open = open;
+            this.opened = opened;
+            this.reused = reused;
+            this.leaked = leaked;
+        }
+
+        /**
+         * Number of sessions currently open.
+         */
+        public int getOpen() {
+            return open;
+        }
+
+        /**
+         * Number of sessions opened so far.
+         */
+        public long getOpened() {
+            return opened;
+        }
+
+        /**
+         * Number of times the session bound to a thread was handed out again
+         * instead of opening a new one.
+         */
+        public long getReused() {
+            return reused;
+        }
+
+        /**
+         * Number of sessions reported as leaked so far, whether they were
+         * closed later or not.
+         */
+        public long getLeaked() {
+            return leaked;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("open=%d | opened=%d | reused=%d | leaked=%d", open, opened, reused, leaked);
+        }
+
+    }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.beans.ConstructorProperties;
+import java.lang.reflect.Constructor;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.InitialLdapContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.CloseableIterator;
+import org.swordess.ldap.SessionException;
+import org.swordess.ldap.StatelessSession;
+import org.swordess.ldap.odm.Distinguishable;
+import org.swordess.ldap.odm.annotation.Syntax.Syntaxer;
+import org.swordess.ldap.odm.metadata.entity.EntityMetaData;
+import org.swordess.ldap.odm.metadata.entity.EntityPropertyMetaData;
+import org.swordess.ldap.odm.metadata.entity.ReadPlan;
+import org.swordess.ldap.util.ComputeOnceMap;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * A {@link StatelessSession} which maps the attributes of each entry straight
+ * into a plain entity or a view, and forgets about it.
+ */
+class StatelessSessionImpl implements StatelessSession {
+
+    private static final Log LOG = LogFactory.getLog(StatelessSessionImpl.class);
+    
+    /**
+     * Property name of the dn in the constructor of a view.
+     */
+    private static final String DN = "DN";
+    
+    // [Entry class, view class] -> how to construct the view
+    private static final ComputeOnceMap<List<Class<?>>, ViewConstructor> viewConstructors = new ComputeOnceMap<List<Class<?>>, ViewConstructor>() {
+        protected ViewConstructor compute(List<Class<?>> key) {
+            return new ViewConstructor(key.get(0), key.get(1));
+        }
+    };
+    
+    private final AbstractThreadLocalSessionFactory sessionFactory;
+    private final ContextLease contexts;
+    private final SessionTracker.Ticket ticket;
+    
+    StatelessSessionImpl(AbstractThreadLocalSessionFactory sessionFactory, ContextLease contexts, SessionTracker.Ticket ticket) {
+        this.sessionFactory = sessionFactory;
+        this.contexts = contexts;
+        this.ticket = ticket;
+    }
+    
+    @Override
+    public <T> T read(Class<T> clazz, String dn) {
+        if (null == dn) {
+            return null;
+        }
+        
+        LogUtils.debug(LOG, "read " + clazz.getName() + " with dn=" + dn);
+        try {
+            return toEntity(clazz, getAttributes(dn, EntityMetaData.getDefinedAttrNames(clazz)));
+            
+        } catch (NameNotFoundException e) {
+            return null;
+            
+        } catch (NamingException e) {
+            throw new SessionException(e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public <T> List<T> search(Class<T> clazz, String filter) {
+        return toList(iterate(clazz, filter));
+    }
+    
+    @Override
+    public <T> CloseableIterator<T> iterate(final Class<T> clazz, String filter) {
+        if (null == filter) {
+            return null;
+        }
+        
+        LogUtils.debug(LOG, "iterate " + clazz.getName() + " with filter=" + filter);
+        return new SearchResultIterator<T>(doSearch(clazz, filter), "Unable to construct the entity") {
+            protected T map(SearchResult result) throws NamingException {
+                return toEntity(clazz, complete(result.getNameInNamespace(), result.getAttributes()));
+            }
+        };
+    }
+    
+    @Override
+    public <T> List<T> search(Class<?> clazz, String filter, Class<T> viewClass) {
+        return toList(iterate(clazz, filter, viewClass));
+    }
+    
+    @Override
+    public <T> CloseableIterator<T> iterate(Class<?> clazz, String filter, Class<T> viewClass) {
+        if (null == filter) {
+            return null;
+        }
+        
+        LogUtils.debug(LOG, "iterate " + clazz.getName() + " as " + viewClass.getName() + " with filter=" + filter);
+        @SuppressWarnings("unchecked")
+        final ViewConstructor constructor = viewConstructors.get(Arrays.<Class<?>>asList(clazz, viewClass));
+        return new SearchResultIterator<T>(doSearch(clazz, filter), "Unable to construct the view") {
+            @SuppressWarnings("unchecked")
+            protected T map(SearchResult result) throws NamingException {
+                String dn = result.getNameInNamespace();
+                return (T) constructor.newInstance(dn, complete(dn, result.getAttributes()));
+            }
+        };
+    }
+    
+    private Attributes getAttributes(final String dn, final String[] attrIds) throws NamingException {
+        ReadCoalescer coalescer = sessionFactory.readCoalescer();
+        if (null != coalescer) {
+            return coalescer.read(dn, attrIds, new ReadCoalescer.Operation<Attributes>() {
+                public Attributes run() throws NamingException {
+                    return fetchAttributes(dn, attrIds);
+                }
+            });
+        }
+        return fetchAttributes(dn, attrIds);
+    }
+    
+    private Attributes fetchAttributes(String dn, String[] attrIds) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            return RangeRetrieval.complete(ctx, dn, ctx.getAttributes(dn, attrIds));
+        } finally {
+            contexts.release();
+        }
+    }
+    
+    @Override
+    public void close() {
+        contexts.close();
+        ticket.close();
+    }
+    
+    private NamingEnumeration<SearchResult> doSearch(Class<?> clazz, String filter) {
+        SearchControls ctrl = new SearchControls();
+        ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctrl.setReturningAttributes(EntityMetaData.getDefinedAttrNames(clazz));
+        
+        String context = EntityMetaData.get(clazz).context();
+        int pageSize = sessionFactory.pageSizeOf(clazz);
+        try {
+            InitialLdapContext ctx = contexts.acquire();
+            try {
+                // the context is held until the results are closed
+                return contexts.hold(pageSize > 0
+                        ? new PagedSearchEnumeration(ctx, context, filter, ctrl, pageSize)
+                        : ctx.search(context, filter, ctrl));
+            } catch (NamingException e) {
+                contexts.release();
+                throw e;
+            }
+        } catch (NamingException e) {
+            throw new SessionException(e.getMessage(), e);
+        }
+    }
+    
+    private Attributes complete(String dn, Attributes attributes) throws NamingException {
+        InitialLdapContext ctx = contexts.acquire();
+        try {
+            return RangeRetrieval.complete(ctx, dn, attributes);
+        } finally {
+            contexts.release();
+        }
+    }
+    
+    private <T> T toEntity(Class<T> clazz, Attributes attributes) throws NamingException {
+        T entity;
+        try {
+            entity = clazz.newInstance();
+        } catch (Exception e) {
+            throw new SessionException("Unable to instantiate " + clazz, e);
+        }
+        
+        EntityMetaData metaData = EntityMetaData.get(clazz);
+        ReadPlan plan = metaData.getReadPlan();
+        for (NamingEnumeration<? extends Attribute> attrs = attributes.getAll(); attrs.hasMore();) {
+            Attribute attr = attrs.next();
+            int slot = plan.slotOf(attr.getID());
+            if (slot < 0) {
+                continue;
+            }
+            
+            EntityPropertyMetaData propMetaData = plan.property(slot);
+            Syntaxer syntaxer = propMetaData.getSyntaxer();
+            switch (plan.kind(slot)) {
+            case ID:
+                propMetaData.setter().set(entity, attr.get());
+                if (entity instanceof Distinguishable) {
+                    ((Distinguishable) entity).setDN(attr.getID() + "=" + attr.get().toString() + "," + metaData.context());
+                }
+                break;
+                
+            case VALUE:
+                propMetaData.setter().set(entity, syntaxer.ldapStringToJavaString(attr.get().toString()));
+                break;
+                
+            case VALUES:
+                propMetaData.setter().set(entity, decodeAll(attr, syntaxer));
+                break;
+                
+            case REFERENCE:
+                propMetaData.setter().set(entity, EntityProxyFactory.getLazyLoadingProxiedEntity(this, propMetaData.getValueClass(),
+                        syntaxer.ldapStringToJavaString(attr.get().toString())));
+                break;
+                
+            case REFERENCES:
+                propMetaData.setter().set(entity, new ReferenceList(propMetaData.getValueClass(), decodeAll(attr, syntaxer)));
+                break;
+            }
+        }
+        return entity;
+    }
+    
+    private static List<String> decodeAll(Attribute attr, Syntaxer syntaxer) throws NamingException {
+        List<String> values = new ArrayList<String>(attr.size());
+        for (NamingEnumeration<?> all = attr.getAll(); all.hasMore();) {
+            values.add(syntaxer.ldapStringToJavaString(all.next().toString()));
+        }
+        return values;
+    }
+    
+    private static <T> List<T> toList(CloseableIterator<T> iterator) {
+        if (null == iterator) {
+            return null;
+        }
+        List<T> retVal = new ArrayList<T>();
+        try {
+            while (iterator.hasNext()) {
+                retVal.add(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+        return retVal;
+    }
+    
+    /**
+     * A read only list of references, the lazy loading proxy of an element is
+     * created when it is accessed.
+     */
+    private class ReferenceList extends AbstractList<Object> implements RandomAccess {
+        
+        private final Class<?> referenceType;
+        private final List<String> dns;
+        private final Object[] elements;
+        
+        ReferenceList(Class<?> referenceType, List<String> dns) {
+            this.referenceType = referenceType;
+            this.dns = dns;
+            this.elements = new Object[dns.size()];
+        }
+        
+        @Override
+        public Object get(int index) {
+            if (null == elements[index]) {
+                elements[index] = EntityProxyFactory.getLazyLoadingProxiedEntity(StatelessSessionImpl.this, referenceType, dns.get(index));
+            }
+            return elements[index];
+        }
+        
+        @Override
+        public int size() {
+            return dns.size();
+        }
+        
+    }
+    
+    /**
+     * How the view of an Entry class is constructed: the constructor annotated
+     * with {@link ConstructorProperties}, and the slot of each of its
+     * parameters.
+     */
+    private static class ViewConstructor {
+        
+        // slot of the dn parameter
+        private static final int DN_SLOT = -1;
+        
+        private final ReadPlan plan;
+        private final Constructor<?> constructor;
+        private final int[] slots;
+        
+        ViewConstructor(Class<?> clazz, Class<?> viewClass) {
+            plan = EntityMetaData.get(clazz).getReadPlan();
+            
+            Constructor<?> annotated = null;
+            for (Constructor<?> each : viewClass.getConstructors()) {
+                if (each.isAnnotationPresent(ConstructorProperties.class)) {
+                    annotated = each;
+                    break;
+                }
+            }
+            if (null == annotated) {
+                throw new SessionException(String.format("%s must have a public constructor annotated with %s",
+                        viewClass, ConstructorProperties.class));
+            }
+            constructor = annotated;
+            
+            String[] names = constructor.getAnnotation(ConstructorProperties.class).value();
+            if (names.length != constructor.getParameterTypes().length) {
+                throw new SessionException(String.format("%s of %s must name each parameter", ConstructorProperties.class, constructor));
+            }
+            
+            EntityMetaData metaData = EntityMetaData.get(clazz);
+            slots = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                if (DN.equals(names[i])) {
+                    slots[i] = DN_SLOT;
+                    continue;
+                }
+                EntityPropertyMetaData propMetaData = metaData.getPropertyByJavaBeanPropName(names[i]);
+                if (null == propMetaData) {
+                    throw new SessionException(String.format("%s has no property %s, required by %s", clazz, names[i], constructor));
+                }
+                slots[i] = plan.slotOf(propMetaData.getLdapPropName());
+            }
+        }
+        
+        Object newInstance(String dn, Attributes attributes) throws NamingException {
+            Object[] args = new Object[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                int slot = slots[i];
+                if (DN_SLOT == slot) {
+                    args[i] = dn;
+                    continue;
+                }
+                
+                EntityPropertyMetaData propMetaData = plan.property(slot);
+                Attribute attr = attributes.get(propMetaData.getLdapPropName());
+                if (propMetaData.isMultiple()) {
+                    args[i] = null != attr
+                            ? Collections.unmodifiableList(decodeAll(attr, propMetaData.getSyntaxer()))
+                            : Collections.<String>emptyList();
+                } else if (null == attr) {
+                    args[i] = null;
+                } else if (propMetaData.isId()) {
+                    args[i] = attr.get();
+                } else {
+                    args[i] = propMetaData.getSyntaxer().ldapStringToJavaString(attr.get().toString());
+                }
+            }
+            
+            try {
+                return constructor.newInstance(args);
+            } catch (Exception e) {
+                throw new SessionException("Unable to construct " + constructor.getDeclaringClass(), e);
+            }
+        }
+        
+    }
+    
+}
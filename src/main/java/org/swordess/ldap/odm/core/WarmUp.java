@@ -0,0 +1,234 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool.
+ *
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ *
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.odm.ODMException;
+import org.swordess.ldap.odm.annotation.Entry;
+import org.swordess.ldap.odm.annotation.Indirections;
+import org.swordess.ldap.odm.metadata.entity.EntityMetaData;
+import org.swordess.ldap.odm.metadata.indirections.IndirectionsMetaData;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Build the metadata and the proxy classes of {@link Entry} and
+ * {@link Indirections} annotated classes ahead of time, typically when the
+ * application starts, so that the first sessions don't pay for reflection and
+ * class generation:
+ *
+ * <pre>
+ * WarmUp.packages(&quot;com.example.ldap.model&quot;);
+ * </pre>
+ *
+ * Classes are warmed up in parallel. Without warming up, everything is still
+ * built on first use.
+ */
+public final class WarmUp {
+
+    private static final Log LOG = LogFactory.getLog(WarmUp.class);
+
+    /**
+     * Warm up the given classes, classes which are neither {@link Entry} nor
+     * {@link Indirections} annotated are ignored.
+     *
+     * @param classes
+     * @return number of classes warmed up
+     * @throws ODMException
+     *         if the metadata or proxy class of any class could not be built
+     */
+    public static int classes(Class<?>... classes) {
+        return classes(Arrays.asList(classes));
+    }
+
+    public static int classes(Collection<Class<?>> classes) {
+        List<Class<?>> managed = new ArrayList<Class<?>>();
+        for (Class<?> clazz : classes) {
+            if (clazz.isAnnotationPresent(Entry.class) || clazz.isAnnotationPresent(Indirections.class)) {
+                managed.add(clazz);
+            }
+        }
+        if (managed.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        int threads = Math.min(managed.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "swordess-ldap-warmup-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(managed.size());
+            for (final Class<?> clazz : managed) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        warmUp(clazz);
+                        return null;
+                    }
+                }));
+            }
+
+            ODMException failure = null;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    if (null == failure) {
+                        failure = new ODMException("Unable to warm up " + managed.get(i).getName(), e.getCause());
+                    }
+                }
+            }
+            if (null != failure) {
+                throw failure;
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ODMException("Interrupted while warming up", e);
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LogUtils.info(LOG, String.format("warmed up %d classes in %dms", managed.size(), System.currentTimeMillis() - start));
+        return managed.size();
+    }
+
+    /**
+     * Warm up all the {@link Entry} and {@link Indirections} annotated classes
+     * found in the given packages (including their sub packages) under the
+     * class path of the context class loader.
+     *
+     * @param packageNames
+     * @return number of classes warmed up
+     * @throws ODMException
+     *         if the metadata or proxy class of any class could not be built
+     */
+    public static int packages(String... packageNames) {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (null == classLoader) {
+            classLoader = WarmUp.class.getClassLoader();
+        }
+
+        Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+        for (String packageName : packageNames) {
+            try {
+                for (String className : findClassNames(classLoader, packageName)) {
+                    try {
+                        classes.add(Class.forName(className, false, classLoader));
+                    } catch (Throwable t) {
+                        LogUtils.debug(LOG, "skip class " + className + " when warming up", t);
+                    }
+                }
+            } catch (IOException e) {
+                throw new ODMException("Unable to scan package " + packageName, e);
+            }
+        }
+        return classes(classes);
+    }
+
+    private static void warmUp(Class<?> clazz) {
+        if (clazz.isAnnotationPresent(Entry.class)) {
+            EntityMetaData.get(clazz);
+            EntityProxyFactory.warmUp(clazz);
+        }
+        if (clazz.isAnnotationPresent(Indirections.class)) {
+            IndirectionsMetaData.get(clazz);
+            IndirectionsProxyFactory.getFactory(clazz);
+        }
+    }
+
+    private static Set<String> findClassNames(ClassLoader classLoader, String packageName) throws IOException {
+        Set<String> classNames = new LinkedHashSet<String>();
+        String path = packageName.replace('.', '/');
+        for (Enumeration<URL> urls = classLoader.getResources(path); urls.hasMoreElements();) {
+            URL url = urls.nextElement();
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    collectClassNames(new File(url.toURI()), packageName, classNames);
+                } catch (URISyntaxException e) {
+                    throw new IOException("Invalid url " + url + ": " + e.getMessage());
+                }
+
+            } else {
+                URLConnection conn = url.openConnection();
+                if (conn instanceof JarURLConnection) {
+                    JarFile jar = ((JarURLConnection) conn).getJarFile();
+                    for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+                        String name = entries.nextElement().getName();
+                        if (name.startsWith(path + "/") && name.endsWith(".class")) {
+                            classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                        }
+                    }
+                } else {
+                    LogUtils.warn(LOG, "unable to scan " + url + " when warming up");
+                }
+            }
+        }
+        return classNames;
+    }
+
+    private static void collectClassNames(File dir, String packageName, Set<String> classNames) {
+        File[] files = dir.listFiles();
+        if (null == files) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                collectClassNames(file, packageName + "." + name, classNames);
+            } else if (name.endsWith(".class")) {
+                classNames.add(packageName + "." + name.substring(0, name.length() - ".class".length()));
+            }
+        }
+    }
+
+    private WarmUp() {
+    }
+
+}
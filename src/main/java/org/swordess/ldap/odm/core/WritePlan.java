@@ -0,0 +1,205 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+
+import org.swordess.ldap.odm.metadata.entity.EntityMetaData;
+import org.swordess.ldap.odm.metadata.entity.EntityPropertyMetaData;
+import org.swordess.ldap.util.ComputeOnceMap;
+import org.swordess.ldap.util.Evaluator;
+
+/**
+ * How an entity of a class is turned into attributes when created and into
+ * modifications when updated, compiled once per class. The encoder of each
+ * property and the objectclass attribute are built ahead, so that writing
+ * an entity allocates nothing but the attributes and modifications
+ * themselves.
+ */
+class WritePlan {
+
+    private static final ComputeOnceMap<Class<?>, WritePlan> plans = new ComputeOnceMap<Class<?>, WritePlan>() {
+        protected WritePlan compute(Class<?> clazz) {
+            return new WritePlan(EntityMetaData.get(clazz));
+        }
+    };
+    
+    /**
+     * Reference properties use the dn as attribute value, the dn of a lazy
+     * loading proxy is taken without loading it.
+     */
+    private static final Evaluator<String> DN_ENCODER = new Evaluator<String>() {
+        public String eval(Object obj) {
+            return DnHelper.build(obj);
+        }
+    };
+    
+    private final EntityMetaData metaData;
+    
+    private final Slot[] slots;
+    private final Map<String, Slot> javaBeanPropNameToSlot = new HashMap<String, Slot>();
+    
+    // multi-valued properties which are not read only
+    private final Slot[] writableMultiValuedSlots;
+    
+    private final Attribute objectClassAttribute;
+    
+    private WritePlan(EntityMetaData metaData) {
+        this.metaData = metaData;
+        
+        List<Slot> allSlots = new ArrayList<Slot>();
+        List<Slot> multiValuedSlots = new ArrayList<Slot>();
+        for (EntityPropertyMetaData propMetaData : metaData) {
+            Slot slot = new Slot(allSlots.size(), propMetaData, encoderOf(propMetaData));
+            allSlots.add(slot);
+            javaBeanPropNameToSlot.put(propMetaData.getJavaBeanPropName(), slot);
+            if (propMetaData.isMultiple() && !propMetaData.isReadonly()) {
+                multiValuedSlots.add(slot);
+            }
+        }
+        slots = allSlots.toArray(new Slot[allSlots.size()]);
+        writableMultiValuedSlots = multiValuedSlots.toArray(new Slot[multiValuedSlots.size()]);
+        
+        objectClassAttribute = new ReadOnlyAttribute("objectclass", metaData.objectClasses());
+    }
+    
+    private static Evaluator<String> encoderOf(final EntityPropertyMetaData propMetaData) {
+        if (propMetaData.isReference()) {
+            return DN_ENCODER;
+        }
+        return new Evaluator<String>() {
+            public String eval(Object obj) {
+                return propMetaData.getSyntaxer().javaStringToLdapString(String.valueOf(obj));
+            }
+        };
+    }
+    
+    static WritePlan get(Class<?> clazz) {
+        return plans.get(clazz);
+    }
+    
+    EntityMetaData getMetaData() {
+        return metaData;
+    }
+    
+    Slot[] slots() {
+        return slots;
+    }
+    
+    Slot slot(int index) {
+        return slots[index];
+    }
+    
+    /**
+     * @param javaBeanPropName
+     * @return the slot of the given property, or <tt>null</tt> if not managed
+     */
+    Slot slot(String javaBeanPropName) {
+        return javaBeanPropNameToSlot.get(javaBeanPropName);
+    }
+    
+    Slot[] writableMultiValuedSlots() {
+        return writableMultiValuedSlots;
+    }
+    
+    /**
+     * The objectclass attribute, which is shared and must not be modified.
+     */
+    Attribute objectClassAttribute() {
+        return objectClassAttribute;
+    }
+    
+    static class Slot {
+        
+        final int index;
+        final EntityPropertyMetaData propMetaData;
+        final String ldapPropName;
+        final Evaluator<String> encoder;
+        
+        Slot(int index, EntityPropertyMetaData propMetaData, Evaluator<String> encoder) {
+            this.index = index;
+            this.propMetaData = propMetaData;
+            this.ldapPropName = propMetaData.getLdapPropName();
+            this.encoder = encoder;
+        }
+        
+    }
+    
+    /**
+     * An attribute whose values could not be changed once constructed. Its
+     * clones are ordinary modifiable attributes.
+     */
+    @SuppressWarnings("serial")
+    private static class ReadOnlyAttribute extends BasicAttribute {
+        
+        ReadOnlyAttribute(String id, Object[] values) {
+            super(id);
+            for (Object value : values) {
+                super.add(value);
+            }
+        }
+        
+        @Override
+        public boolean add(Object attrVal) {
+            throw new UnsupportedOperationException("read only attribute " + getID());
+        }
+        
+        @Override
+        public void add(int ix, Object attrVal) {
+            throw new UnsupportedOperationException("read only attribute " + getID());
+        }
+        
+        @Override
+        public Object set(int ix, Object attrVal) {
+            throw new UnsupportedOperationException("read only attribute " + getID());
+        }
+        
+        @Override
+        public boolean remove(Object attrval) {
+            throw new UnsupportedOperationException("read only attribute " + getID());
+        }
+        
+        @Override
+        public Object remove(int ix) {
+            throw new UnsupportedOperationException("read only attribute " + getID());
+        }
+        
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException("read only attribute " + getID());
+        }
+        
+        @Override
+        public Object clone() {
+            BasicAttribute copy = new BasicAttribute(getID(), isOrdered());
+            for (Object value : values) {
+                copy.add(value);
+            }
+            return copy;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,76 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.metadata;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Base class of the metadata generated at compile time by
+ * <tt>org.swordess.ldap.odm.apt.MetaDataProcessor</tt>. The metadata of class
+ * <tt>com.example.User</tt> is generated as
+ * <tt>com.example.User_MetaData</tt>, which builds the metadata with direct
+ * calls to the getters, setters and syntaxers, so that no reflection is needed
+ * at runtime.
+ * 
+ * @param <M>
+ *        type of the metadata
+ */
+public abstract class GeneratedMetaData<M> {
+
+    private static final Log LOG = LogFactory.getLog(GeneratedMetaData.class);
+    
+    public static final String SUFFIX = "_MetaData";
+    
+    /**
+     * Build the metadata.
+     * 
+     * @return
+     */
+    public abstract M create();
+    
+    /**
+     * Build the metadata of the given class via its generated metadata, if
+     * any.
+     * 
+     * @param clazz
+     *        an annotated class
+     * @param metaDataType
+     *        type of the metadata
+     * @return the metadata, or <tt>null</tt> if not generated
+     */
+    public static <M> M load(Class<?> clazz, Class<M> metaDataType) {
+        Class<?> generatedClass;
+        try {
+            generatedClass = Class.forName(clazz.getName() + SUFFIX, true, clazz.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        
+        try {
+            Object metaData = ((GeneratedMetaData<?>) generatedClass.newInstance()).create();
+            LogUtils.debug(LOG, "Loaded generated metadata of " + clazz);
+            return metaDataType.cast(metaData);
+        } catch (Exception e) {
+            throw new MetaDataException("Unable to load the generated metadata of " + clazz, e);
+        }
+    }
+    
+}
@@ -20,7 +20,7 @@ public class RawPropertyMetaData implements RawPropertyMetaDataInterface {
 
 	protected Log log = LogFactory.getLog(getClass());
 	
-	private Getter getter;
+	private Getter<?> getter;
     private Setter setter;
     
     private String javaBeanPropName;
@@ -38,6 +38,19 @@ public class RawPropertyMetaData implements RawPropertyMetaDataInterface {
         isReference = valueClass.isAnnotationPresent(Entry.class);
     }
     
+    /**
+     * Construct with the values which have already been extracted, e.g. by the
+     * metadata generated at compile time.
+     */
+    public RawPropertyMetaData(String javaBeanPropName, Class<?> valueClass, boolean isMultiple, Getter<?> getter, Setter setter) {
+        this.javaBeanPropName = javaBeanPropName;
+        this.valueClass = valueClass;
+        this.isMultiple = isMultiple;
+        this.getter = getter;
+        this.setter = setter;
+        this.isReference = valueClass.isAnnotationPresent(Entry.class);
+    }
+    
 	private void determineJavaBeanPropName(Method getterMethod) {
 		if (Specification.isGetter(getterMethod)) {
             javaBeanPropName = Specification.getPropertyName(getterMethod);
@@ -45,7 +58,7 @@ public class RawPropertyMetaData implements RawPropertyMetaDataInterface {
             throw new ODMException(getterMethod + " is not a getter");
         }
         
-        this.getter = new Getter(getterMethod);
+        this.getter = new Getter<Object>(getterMethod);
         Method setter = Specification.getSetter(getterMethod.getDeclaringClass(), javaBeanPropName, getterMethod.getReturnType());
         if (null != setter) {
             this.setter = new Setter(setter);
@@ -98,7 +111,7 @@ public class RawPropertyMetaData implements RawPropertyMetaDataInterface {
 	 * @see org.swordess.ldap.odm.metadata.RawPropertyMetaDataInterface#getter()
 	 */
     @Override
-	public Getter getter() {
+	public Getter<?> getter() {
         return getter;
     }
     
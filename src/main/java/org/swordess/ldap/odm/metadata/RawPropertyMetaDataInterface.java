@@ -5,7 +5,7 @@ import org.swordess.ldap.bean.Setter;
 
 public interface RawPropertyMetaDataInterface {
 
-	public abstract Getter getter();
+	public abstract Getter<?> getter();
 
 	public abstract Setter setter();
 
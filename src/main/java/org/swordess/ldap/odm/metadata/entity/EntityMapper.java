@@ -0,0 +1,114 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.metadata.entity;
+
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.swordess.ldap.odm.annotation.Syntax.Syntaxer;
+import org.swordess.ldap.odm.metadata.MetaDataException;
+import org.swordess.ldap.util.LogUtils;
+
+/**
+ * Maps the attributes of an entry to an entity, generated at compile time by
+ * <tt>org.swordess.ldap.odm.apt.MetaDataProcessor</tt> along with the
+ * metadata. The mapper of class <tt>com.example.User</tt> is generated as
+ * <tt>com.example.User_Mapper</tt>, which matches the attributes and calls the
+ * setters and syntaxers directly. Without a generated mapper, attributes are
+ * mapped via the {@link ReadPlan} of the class.
+ * 
+ * @param <T>
+ *        type of the entity
+ */
+public abstract class EntityMapper<T> {
+
+    private static final Log LOG = LogFactory.getLog(EntityMapper.class);
+    
+    public static final String SUFFIX = "_Mapper";
+    
+    /**
+     * How multi-valued properties and references are held, which is up to the
+     * session.
+     */
+    public static interface Values {
+        
+        /**
+         * @return values of the attribute decoded by the syntaxer
+         */
+        public List<String> values(Attribute attr, Syntaxer syntaxer) throws NamingException;
+        
+        /**
+         * @return value of a multi-valued property whose attribute is absent
+         */
+        public List<Object> noValues();
+        
+        /**
+         * @return the entity of the given dn, loaded on demand
+         */
+        public Object reference(Class<?> referenceType, String dn);
+        
+        /**
+         * @return the entities of the dns in the attribute, loaded on demand
+         */
+        public List<Object> references(Class<?> referenceType, Attribute attr, Syntaxer syntaxer) throws NamingException;
+        
+    }
+    
+    /**
+     * Set the properties of the entity from the attributes. The multi-valued
+     * properties whose attributes are absent are set via
+     * {@link Values#noValues()}.
+     * 
+     * @param entity
+     * @param attributes
+     * @param values
+     * @throws NamingException
+     */
+    public abstract void map(T entity, Attributes attributes, Values values) throws NamingException;
+    
+    /**
+     * Instantiate the generated mapper of the given class, if any.
+     * 
+     * @param clazz
+     *        an {@link org.swordess.ldap.odm.annotation.Entry} class
+     * @return the mapper, or <tt>null</tt> if not generated
+     */
+    public static EntityMapper<?> load(Class<?> clazz) {
+        Class<?> generatedClass;
+        try {
+            generatedClass = Class.forName(clazz.getName() + SUFFIX, true, clazz.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        
+        try {
+            EntityMapper<?> mapper = (EntityMapper<?>) generatedClass.newInstance();
+            LogUtils.debug(LOG, "Loaded generated mapper of " + clazz);
+            return mapper;
+        } catch (Exception e) {
+            throw new MetaDataException("Unable to load the generated mapper of " + clazz, e);
+        }
+    }
+    
+}
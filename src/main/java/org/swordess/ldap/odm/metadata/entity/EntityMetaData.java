@@ -33,7 +33,9 @@ import org.swordess.ldap.odm.annotation.Attribute;
 import org.swordess.ldap.odm.annotation.Entry;
 import org.swordess.ldap.odm.annotation.Id;
 import org.swordess.ldap.odm.annotation.Transient;
+import org.swordess.ldap.odm.metadata.GeneratedMetaData;
 import org.swordess.ldap.odm.metadata.MetaDataException;
+import org.swordess.ldap.util.ComputeOnceMap;
 import org.swordess.ldap.util.LogUtils;
 
 
@@ -42,7 +44,17 @@ public class EntityMetaData implements Iterable<EntityPropertyMetaData> {
 
     private static final Log LOG = LogFactory.getLog(EntityMetaData.class);
 
-    private static Map<Class<?>, EntityMetaData> metaDataMap = new HashMap<Class<?>, EntityMetaData>();
+    private static final ComputeOnceMap<Class<?>, EntityMetaData> metaDataMap = new ComputeOnceMap<Class<?>, EntityMetaData>() {
+        protected EntityMetaData compute(Class<?> clazz) {
+            // prefer the metadata generated at compile time to reflection
+            EntityMetaData generated = GeneratedMetaData.load(clazz, EntityMetaData.class);
+            if (null != generated) {
+                generated.mapper = EntityMapper.load(clazz);
+                return generated;
+            }
+            return new EntityMetaData(clazz);
+        }
+    };
     
     private final Class<?> managedClass;
     
@@ -56,6 +68,11 @@ public class EntityMetaData implements Iterable<EntityPropertyMetaData> {
      */
     private String[] objectClasses;
     
+    /**
+     * Page size when searching, 0 means using the session factory's one.
+     */
+    private int pageSize;
+    
     private EntityPropertyMetaData idProperty;
     
     private Map<String, EntityPropertyMetaData> ldapPropNameToMetaData = new HashMap<String, EntityPropertyMetaData>();
@@ -64,6 +81,11 @@ public class EntityMetaData implements Iterable<EntityPropertyMetaData> {
     // cache all defined attribute names in order not to create the same array
     private String[] allDefinedAttrNames;
     
+    private ReadPlan readPlan;
+    
+    // generated at compile time along with the metadata, null if absent
+    private EntityMapper<?> mapper;
+    
     private EntityMetaData(Class<?> clazz) {
         this.managedClass = clazz;
         
@@ -76,6 +98,7 @@ public class EntityMetaData implements Iterable<EntityPropertyMetaData> {
         
         context = entry.context();
         objectClasses = entry.objectClasses();
+        pageSize = entry.pageSize();
         
         Set<String> allDefinedAttrNameSet = new HashSet<String>();
         for (Method m : clazz.getDeclaredMethods()) {
@@ -109,9 +132,38 @@ public class EntityMetaData implements Iterable<EntityPropertyMetaData> {
             throw new MetaDataException(String.format("All Entry classes must define a property with the %s annotation, error in class %s",
                     Id.class, clazz));
         }
+        readPlan = new ReadPlan(ldapPropNameToMetaData.values());
         
         LogUtils.debug(LOG, String.format("Extracted metadata from %s as %s", clazz, this));
     }
+    
+    /**
+     * Construct with the values which have already been extracted, e.g. by the
+     * metadata generated at compile time.
+     */
+    public EntityMetaData(Class<?> clazz, String context, String[] objectClasses, int pageSize, EntityPropertyMetaData... properties) {
+        this.managedClass = clazz;
+        this.context = context;
+        this.objectClasses = objectClasses;
+        this.pageSize = pageSize;
+        
+        allDefinedAttrNames = new String[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            EntityPropertyMetaData property = properties[i];
+            if (property.isId()) {
+                idProperty = property;
+            }
+            ldapPropNameToMetaData.put(property.getLdapPropName(), property);
+            javaBeanPropNameToMetaData.put(property.getJavaBeanPropName(), property);
+            allDefinedAttrNames[i] = property.getLdapPropName();
+        }
+        
+        if (null == idProperty) {
+            throw new MetaDataException(String.format("All Entry classes must define a property with the %s annotation, error in class %s",
+                    Id.class, clazz));
+        }
+        readPlan = new ReadPlan(ldapPropNameToMetaData.values());
+    }
 
     @Override
     public Iterator<EntityPropertyMetaData> iterator() {
@@ -130,6 +182,10 @@ public class EntityMetaData implements Iterable<EntityPropertyMetaData> {
         return objectClasses;
     }
     
+    public int pageSize() {
+        return pageSize;
+    }
+    
     public EntityPropertyMetaData getIdProperty() {
         return idProperty;
     }
@@ -138,6 +194,18 @@ public class EntityMetaData implements Iterable<EntityPropertyMetaData> {
         return ldapPropNameToMetaData.get(ldapPropName);
     }
     
+    public ReadPlan getReadPlan() {
+        return readPlan;
+    }
+    
+    /**
+     * @return the mapper generated at compile time, or <tt>null</tt> if
+     *         attributes should be mapped via the {@link #getReadPlan() plan}
+     */
+    public EntityMapper<?> getMapper() {
+        return mapper;
+    }
+    
     public EntityPropertyMetaData getPropertyByJavaBeanPropName(String javaBeanPropName) {
         return javaBeanPropNameToMetaData.get(javaBeanPropName);
     }
@@ -155,12 +223,7 @@ public class EntityMetaData implements Iterable<EntityPropertyMetaData> {
     }
  
     public static EntityMetaData get(Class<?> clazz) {
-        EntityMetaData metaData = metaDataMap.get(clazz);
-        if (null == metaData) {
-            metaData = new EntityMetaData(clazz);
-            metaDataMap.put(clazz, metaData);
-        }
-        return metaData;
+        return metaDataMap.get(clazz);
     }
     
     public static String[] getDefinedAttrNames(Class<?> clazz) {
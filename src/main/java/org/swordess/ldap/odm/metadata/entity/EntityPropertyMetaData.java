@@ -20,6 +20,8 @@ package org.swordess.ldap.odm.metadata.entity;
 
 import java.lang.reflect.Method;
 
+import org.swordess.ldap.bean.Getter;
+import org.swordess.ldap.bean.Setter;
 import org.swordess.ldap.odm.annotation.Attribute;
 import org.swordess.ldap.odm.annotation.Id;
 import org.swordess.ldap.odm.annotation.Syntax;
@@ -35,6 +37,7 @@ public class EntityPropertyMetaData extends RawPropertyMetaData {
 	private Syntaxer syntaxer;
     private boolean isId;
     private boolean isReadonly;
+    private boolean isEager;
     
     public EntityPropertyMetaData(Method getterMethod) {
         super(getterMethod);
@@ -48,9 +51,24 @@ public class EntityPropertyMetaData extends RawPropertyMetaData {
         isId = getterMethod.isAnnotationPresent(Id.class);
         if (getterMethod.isAnnotationPresent(Attribute.class)) {
             isReadonly = getterMethod.getAnnotation(Attribute.class).readonly();
+            isEager = getterMethod.getAnnotation(Attribute.class).eager();
         }
     }
 
+    /**
+     * Construct with the values which have already been extracted, e.g. by the
+     * metadata generated at compile time.
+     */
+    public EntityPropertyMetaData(String javaBeanPropName, Class<?> valueClass, boolean isMultiple, Getter<?> getter, Setter setter,
+            String ldapPropName, Syntaxer syntaxer, boolean isId, boolean isReadonly, boolean isEager) {
+        super(javaBeanPropName, valueClass, isMultiple, getter, setter);
+        this.ldapPropName = ldapPropName;
+        this.syntaxer = syntaxer;
+        this.isId = isId;
+        this.isReadonly = isReadonly;
+        this.isEager = isEager;
+    }
+
 	private void determineSyntaxer(Method getterMethod) {
 		Syntax syntax = getterMethod.getAnnotation(Syntax.class);
 		if (null != syntax) {
@@ -103,10 +121,14 @@ public class EntityPropertyMetaData extends RawPropertyMetaData {
         return isReadonly;
     }
     
+    public boolean isEager() {
+        return isEager;
+    }
+    
     @Override
     public String toString() {
-        return String.format("ldapPropName=%s | javaBeanPropName=%s | valueClass=%s | syntaxer=%s | isId=%s | isMultiple=%s | isReference=%s | isReadonly=%s",
-                getLdapPropName(), getJavaBeanPropName(), getValueClass(), syntaxer.getName(), isId(), isMultiple(), isReference(), isReadonly());
+        return String.format("ldapPropName=%s | javaBeanPropName=%s | valueClass=%s | syntaxer=%s | isId=%s | isMultiple=%s | isReference=%s | isReadonly=%s | isEager=%s",
+                getLdapPropName(), getJavaBeanPropName(), getValueClass(), syntaxer.getName(), isId(), isMultiple(), isReference(), isReadonly(), isEager());
     }
     
 }
\ No newline at end of file
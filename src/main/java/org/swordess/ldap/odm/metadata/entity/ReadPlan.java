@@ -0,0 +1,122 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.odm.metadata.entity;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How the attributes of an entry are mapped to an entity of a class, compiled
+ * once from its {@link EntityMetaData}. Each property is assigned a slot, so
+ * that mapping a search result needs no per entry bookkeeping apart from a
+ * copy of the multi-valued slots bitmap.
+ * <p/>
+ * 
+ * Attribute names are matched case insensitively, as LDAP does. A plan is
+ * immutable and could be shared among threads.
+ */
+public class ReadPlan {
+
+    /**
+     * How the values of a slot are turned into its property.
+     */
+    public enum Kind {
+        /** the id, set as is */
+        ID,
+        /** a single value decoded by its syntaxer */
+        VALUE,
+        /** a list of values decoded by its syntaxer */
+        VALUES,
+        /** a single reference */
+        REFERENCE,
+        /** a list of references */
+        REFERENCES
+    }
+    
+    private final EntityPropertyMetaData[] properties;
+    private final Kind[] kinds;
+    
+    // both the ldap names and their lower case forms -> slot
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+    
+    private final BitSet multiValuedSlots = new BitSet();
+    
+    ReadPlan(Collection<EntityPropertyMetaData> propMetaDatas) {
+        properties = propMetaDatas.toArray(new EntityPropertyMetaData[propMetaDatas.size()]);
+        kinds = new Kind[properties.length];
+        for (int slot = 0; slot < properties.length; slot++) {
+            EntityPropertyMetaData propMetaData = properties[slot];
+            kinds[slot] = kindOf(propMetaData);
+            if (propMetaData.isMultiple()) {
+                multiValuedSlots.set(slot);
+            }
+            slots.put(propMetaData.getLdapPropName(), slot);
+            slots.put(propMetaData.getLdapPropName().toLowerCase(), slot);
+        }
+    }
+    
+    private static Kind kindOf(EntityPropertyMetaData propMetaData) {
+        if (propMetaData.isId()) {
+            return Kind.ID;
+        } else if (propMetaData.isReference()) {
+            return propMetaData.isMultiple() ? Kind.REFERENCES : Kind.REFERENCE;
+        } else {
+            return propMetaData.isMultiple() ? Kind.VALUES : Kind.VALUE;
+        }
+    }
+    
+    /**
+     * @param attrId
+     *        name of an attribute returned by the LDAP server
+     * @return slot of the attribute, or -1 if not defined in the class
+     */
+    public int slotOf(String attrId) {
+        Integer slot = slots.get(attrId);
+        if (null == slot) {
+            slot = slots.get(attrId.toLowerCase());
+        }
+        return null != slot ? slot : -1;
+    }
+    
+    public int size() {
+        return properties.length;
+    }
+    
+    public EntityPropertyMetaData property(int slot) {
+        return properties[slot];
+    }
+    
+    public Kind kind(int slot) {
+        return kinds[slot];
+    }
+    
+    /**
+     * Return a new bitmap of the multi-valued slots, which the caller could
+     * clear while filling the slots. Those left set are to be filled with
+     * empty lists.
+     * 
+     * @return
+     */
+    public BitSet multiValuedSlots() {
+        return (BitSet) multiValuedSlots.clone();
+    }
+    
+}
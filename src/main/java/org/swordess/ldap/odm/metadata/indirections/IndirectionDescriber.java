@@ -11,19 +11,23 @@ public class IndirectionDescriber {
 	private final String indirectionAttr;
 
 	IndirectionDescriber(Indirection indirection) {
-		if (StringUtils.isEmpty(indirection.context())) {
+		this(indirection.context(), indirection.id(), indirection.attr());
+	}
+	
+	public IndirectionDescriber(String context, String idAttr, String indirectionAttr) {
+		if (StringUtils.isEmpty(context)) {
 			throw new MetaDataException("context mustn't be empty string!");
 		}
-		if (StringUtils.isEmpty(indirection.id())) {
+		if (StringUtils.isEmpty(idAttr)) {
 			throw new MetaDataException("id mustn't be empty string!");
 		}
-		if (StringUtils.isEmpty(indirection.attr())) {
+		if (StringUtils.isEmpty(indirectionAttr)) {
 			throw new MetaDataException("attr mustn't be empty string!");
 		}
 		
-		this.context = indirection.context();
-		this.idAttr = indirection.id();
-		this.indirectionAttr = indirection.attr();
+		this.context = context;
+		this.idAttr = idAttr;
+		this.indirectionAttr = indirectionAttr;
 	}
 
 	public String getContext() {
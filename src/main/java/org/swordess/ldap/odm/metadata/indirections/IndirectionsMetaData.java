@@ -2,8 +2,6 @@ package org.swordess.ldap.odm.metadata.indirections;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,14 +9,22 @@ import org.swordess.ldap.odm.annotation.Indirections;
 import org.swordess.ldap.odm.annotation.Indirections.One;
 import org.swordess.ldap.odm.annotation.Indirections.TheOther;
 import org.swordess.ldap.odm.annotation.Transient;
+import org.swordess.ldap.odm.metadata.GeneratedMetaData;
 import org.swordess.ldap.odm.metadata.MetaDataException;
+import org.swordess.ldap.util.ComputeOnceMap;
 import org.swordess.ldap.util.LogUtils;
 
 public class IndirectionsMetaData {
 
 	private static final Log LOG = LogFactory.getLog(IndirectionsMetaData.class);
 	
-	private static Map<Class<?>, IndirectionsMetaData> metaDataMap = new HashMap<Class<?>, IndirectionsMetaData>();
+	private static final ComputeOnceMap<Class<?>, IndirectionsMetaData> metaDataMap = new ComputeOnceMap<Class<?>, IndirectionsMetaData>() {
+		protected IndirectionsMetaData compute(Class<?> clazz) {
+			// prefer the metadata generated at compile time to reflection
+			IndirectionsMetaData generated = GeneratedMetaData.load(clazz, IndirectionsMetaData.class);
+			return null != generated ? generated : new IndirectionsMetaData(clazz);
+		}
+	};
 	
 	private final Class<?> managedClass;
 	
@@ -69,6 +75,16 @@ public class IndirectionsMetaData {
 		LogUtils.debug(LOG, String.format("Extracted metadata from %s as %s", clazz, this));
 	}
 	
+	/**
+	 * Construct with the values which have already been extracted, e.g. by the
+	 * metadata generated at compile time.
+	 */
+	public IndirectionsMetaData(Class<?> clazz, OneMetaData one, TheOtherMetaData theOther) {
+		this.managedClass = clazz;
+		this.one = one;
+		this.theOther = theOther;
+	}
+	
 	public Class<?> getManagedClass() {
 		return managedClass;
 	}
@@ -87,12 +103,7 @@ public class IndirectionsMetaData {
 	}
 	
 	public static IndirectionsMetaData get(Class<?> clazz) {
-		IndirectionsMetaData metaData = metaDataMap.get(clazz);
-		if (null == metaData) {
-			metaData = new IndirectionsMetaData(clazz);
-			metaDataMap.put(clazz, metaData);
-		}
-		return metaData;
+		return metaDataMap.get(clazz);
 	}
 	
 }
@@ -23,10 +23,19 @@ public class OneMetaData implements RawPropertyMetaDataInterface {
 		describer = new IndirectionDescriber(getterMethod.getAnnotation(One.class).value());
 	}
 	
+	/**
+	 * Construct with the values which have already been extracted, e.g. by the
+	 * metadata generated at compile time.
+	 */
+	public OneMetaData(RawPropertyMetaDataInterface delegation, IndirectionDescriber describer) {
+		this.delegation = delegation;
+		this.describer = describer;
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public Getter<String> getter() {
-		return delegation.getter();
+		return (Getter<String>) delegation.getter();
 	}
 
 	@Override
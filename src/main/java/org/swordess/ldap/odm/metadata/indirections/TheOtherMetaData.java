@@ -30,10 +30,21 @@ public class TheOtherMetaData implements RawPropertyMetaDataInterface, Iterable<
 		}
 	}
 
+	/**
+	 * Construct with the values which have already been extracted, e.g. by the
+	 * metadata generated at compile time.
+	 */
+	public TheOtherMetaData(RawPropertyMetaDataInterface delegation, IndirectionDescriber... describers) {
+		this.delegation = delegation;
+		for (IndirectionDescriber describer : describers) {
+			this.describers.add(describer);
+		}
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public Getter<List<String>> getter() {
-		return delegation.getter();
+		return (Getter<List<String>>) delegation.getter();
 	}
 
 	@Override
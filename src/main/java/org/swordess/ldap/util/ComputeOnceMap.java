@@ -0,0 +1,96 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.swordess.ldap.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A thread safe registry whose value of each key is computed at most once,
+ * even if the key is asked for by several threads at the same time: the first
+ * thread computes the value while the others wait for it. Lookups of computed
+ * values never lock.
+ * <p/>
+ * 
+ * A failed computation is not remembered, the next lookup of the key tries
+ * again.
+ * 
+ * @param <K>
+ * @param <V>
+ */
+public abstract class ComputeOnceMap<K, V> {
+
+    private final ConcurrentMap<K, Future<V>> values = new ConcurrentHashMap<K, Future<V>>();
+    
+    /**
+     * Compute the value of the given key. Must not ask this map for the same
+     * key, otherwise it waits for itself forever.
+     * 
+     * @param key
+     * @return
+     */
+    protected abstract V compute(K key);
+    
+    public V get(final K key) {
+        Future<V> value = values.get(key);
+        if (null == value) {
+            FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+                public V call() throws Exception {
+                    return compute(key);
+                }
+            });
+            value = values.putIfAbsent(key, task);
+            if (null == value) {
+                value = task;
+                task.run();
+            }
+        }
+        
+        try {
+            return value.get();
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the value of " + key, e);
+            
+        } catch (ExecutionException e) {
+            values.remove(key, value);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Unable to compute the value of " + key, cause);
+        }
+    }
+    
+    public boolean containsKey(K key) {
+        return values.containsKey(key);
+    }
+    
+    public int size() {
+        return values.size();
+    }
+    
+}
@@ -18,6 +18,12 @@
  */
 package org.swordess.ldap.util;
 
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
 /**
  * This class provide several convenient methods for getting a sub dn or selecting a token for the given dn.
  * <p/>
@@ -123,6 +129,276 @@ public class DnUtils {
         return builder.toString();
     }
 
+    /**
+     * Return the canonical form of the given dn, so that two dns naming the
+     * same entry are equal strings: attribute types and values are in lower
+     * case, spaces around the separators are removed, escaped characters are
+     * unescaped and only the special ones escaped again, and the values of a
+     * multi-valued rdn are sorted.
+     * <p/>
+     * 
+     * A dn which is already canonical, e.g. one returned by this method, is
+     * returned as is without any allocation. A malformed dn is only lower
+     * cased.
+     * 
+     * @param dn
+     * @return
+     */
+    public static String normalize(String dn) {
+        if (null == dn || isCanonical(dn)) {
+            return dn;
+        }
+        try {
+            return new DnParser(dn).canonicalize();
+        } catch (IllegalArgumentException e) {
+            return dn.toLowerCase(Locale.ENGLISH);
+        }
+    }
+    
+    /**
+     * A quick check which may turn down a canonical dn, e.g. one having
+     * escapes, but never accepts one which is not.
+     */
+    private static boolean isCanonical(String dn) {
+        int length = dn.length();
+        for (int i = 0; i < length; i++) {
+            char c = dn.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                continue;
+            }
+            if ((c >= 'A' && c <= 'Z') || c >= 0x80) {
+                return false;
+            }
+            switch (c) {
+            case '\\':
+            case '"':
+            case ';':
+            case '+':
+            case '<':
+            case '>':
+            case '#':
+                return false;
+            case ' ':
+                if (0 == i || length - 1 == i || isSpaceAround(dn.charAt(i - 1)) || isSpaceAround(dn.charAt(i + 1))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    private static boolean isSpaceAround(char c) {
+        return ',' == c || '=' == c || ' ' == c;
+    }
+    
+    /**
+     * Parser of a dn string as specified by RFC 4514, which also accepts the
+     * quoted values and semicolons of RFC 1779.
+     */
+    private static class DnParser {
+        
+        private final String dn;
+        private final int length;
+        private int pos;
+        
+        DnParser(String dn) {
+            this.dn = dn;
+            this.length = dn.length();
+        }
+        
+        String canonicalize() {
+            skipSpaces();
+            if (pos == length) {
+                return "";
+            }
+            
+            StringBuilder retVal = new StringBuilder(length);
+            List<String> avas = new ArrayList<String>(1);
+            while (true) {
+                avas.clear();
+                avas.add(ava());
+                while (pos < length && '+' == dn.charAt(pos)) {
+                    pos++;
+                    avas.add(ava());
+                }
+                if (avas.size() > 1) {
+                    Collections.sort(avas);
+                }
+                for (int i = 0; i < avas.size(); i++) {
+                    if (i > 0) {
+                        retVal.append('+');
+                    }
+                    retVal.append(avas.get(i));
+                }
+                
+                if (pos == length) {
+                    return retVal.toString();
+                }
+                char separator = dn.charAt(pos++);
+                if (',' != separator && ';' != separator) {
+                    throw new IllegalArgumentException(dn);
+                }
+                retVal.append(',');
+            }
+        }
+        
+        /**
+         * Parse one attribute type and value pair, stopping at the separator
+         * following it.
+         */
+        private String ava() {
+            skipSpaces();
+            int typeStart = pos;
+            while (pos < length && '=' != dn.charAt(pos)) {
+                if (isSeparator(dn.charAt(pos)) || '\\' == dn.charAt(pos)) {
+                    throw new IllegalArgumentException(dn);
+                }
+                pos++;
+            }
+            String type = dn.substring(typeStart, pos).trim();
+            if (pos == length || type.isEmpty()) {
+                throw new IllegalArgumentException(dn);
+            }
+            pos++;
+            
+            StringBuilder ava = new StringBuilder(length - typeStart);
+            ava.append(type.toLowerCase(Locale.ENGLISH)).append('=');
+            
+            skipSpaces();
+            if (pos < length && '#' == dn.charAt(pos)) {
+                // hex string of a BER encoded value
+                int valueStart = pos;
+                while (pos < length && !isSeparator(dn.charAt(pos))) {
+                    pos++;
+                }
+                return ava.append(dn.substring(valueStart, pos).trim().toLowerCase(Locale.ENGLISH)).toString();
+            }
+            
+            String value = '"' == (pos < length ? dn.charAt(pos) : 0) ? quotedValue() : value();
+            appendEscaped(ava, value.toLowerCase(Locale.ENGLISH));
+            return ava.toString();
+        }
+        
+        private String value() {
+            StringBuilder value = new StringBuilder();
+            // length of the value without its trailing spaces which are not escaped
+            int trimmedLength = 0;
+            while (pos < length && !isSeparator(dn.charAt(pos))) {
+                char c = dn.charAt(pos);
+                if ('\\' == c) {
+                    unescape(value);
+                    trimmedLength = value.length();
+                } else {
+                    value.append(c);
+                    pos++;
+                    if (' ' != c) {
+                        trimmedLength = value.length();
+                    }
+                }
+            }
+            value.setLength(trimmedLength);
+            return value.toString();
+        }
+        
+        private String quotedValue() {
+            pos++;
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (pos == length) {
+                    throw new IllegalArgumentException(dn);
+                }
+                char c = dn.charAt(pos);
+                if ('"' == c) {
+                    pos++;
+                    break;
+                }
+                if ('\\' == c) {
+                    unescape(value);
+                } else {
+                    value.append(c);
+                    pos++;
+                }
+            }
+            skipSpaces();
+            return value.toString();
+        }
+        
+        /**
+         * Unescape either a special character or a run of hex pairs, which
+         * are the UTF-8 bytes of one or more characters.
+         */
+        private void unescape(StringBuilder value) {
+            byte[] bytes = null;
+            int byteCount = 0;
+            while (pos + 2 < length && '\\' == dn.charAt(pos) && isHexPair(pos + 1)) {
+                if (null == bytes) {
+                    bytes = new byte[(length - pos) / 3];
+                }
+                bytes[byteCount++] = (byte) Integer.parseInt(dn.substring(pos + 1, pos + 3), 16);
+                pos += 3;
+            }
+            if (byteCount > 0) {
+                try {
+                    value.append(new String(bytes, 0, byteCount, "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+                return;
+            }
+            
+            if (pos + 1 == length) {
+                throw new IllegalArgumentException(dn);
+            }
+            value.append(dn.charAt(pos + 1));
+            pos += 2;
+        }
+        
+        private boolean isHexPair(int at) {
+            return Character.digit(dn.charAt(at), 16) >= 0 && Character.digit(dn.charAt(at + 1), 16) >= 0;
+        }
+        
+        private void skipSpaces() {
+            while (pos < length && ' ' == dn.charAt(pos)) {
+                pos++;
+            }
+        }
+        
+        private static boolean isSeparator(char c) {
+            return ',' == c || ';' == c || '+' == c;
+        }
+        
+        private static void appendEscaped(StringBuilder ava, String value) {
+            int last = value.length() - 1;
+            for (int i = 0; i <= last; i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                case ',':
+                case '+':
+                case '"':
+                case '\\':
+                case '<':
+                case '>':
+                case ';':
+                    ava.append('\\').append(c);
+                    break;
+                case '#':
+                case ' ':
+                    if (0 == i || (' ' == c && last == i)) {
+                        ava.append('\\');
+                    }
+                    ava.append(c);
+                    break;
+                case 0:
+                    ava.append("\\00");
+                    break;
+                default:
+                    ava.append(c);
+                }
+            }
+        }
+        
+    }
+    
     private DnUtils() {
     }
 
@@ -20,6 +20,7 @@ import java.util.Map;
 
 import junit.framework.TestCase;
 
+import org.swordess.ldap.CloseableIterator;
 import org.swordess.ldap.Session;
 import org.swordess.ldap.SessionFactory;
 import org.swordess.ldap.odm.core.ClassPathPropertiesSessionFactory;
@@ -112,4 +113,35 @@ public class SessionDemo extends TestCase {
 		}
 	}
 	
+	/**
+	 * Demonstrate how to go through a large result without holding all the
+	 * entities in memory.
+	 */
+	public void testIterate() {
+		SessionFactory sessionFactory = ClassPathPropertiesSessionFactory.getInstance();
+		Session session = null;
+		try {
+			session = sessionFactory.openSession();
+			
+			/*
+			 * Each entity is constructed only when next() is called. The
+			 * iterator closes itself at the end of the results, and closing it
+			 * earlier abandons the search.
+			 */
+			CloseableIterator<GroupDemo> groups = session.iterate(GroupDemo.class, "(cn=*)");
+			try {
+				while (groups.hasNext()) {
+					assertNotNull(groups.next().getDN());
+				}
+			} finally {
+				groups.close();
+			}
+			
+		} finally {
+			if (null != session) {
+				session.close();
+			}
+		}
+	}
+	
 }
@@ -0,0 +1,190 @@
+/*
+ * Swordess-ldap, an Object-Directory Mapping tool. 
+ * 
+ * Copyright (c) 2013, 2013 Liu Xingyu.
+ * 
+ * Swordess-ldap is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Swordess-ldap is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Swordess-ldap. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.InitialLdapContext;
+
+import org.swordess.ldap.Session;
+import org.swordess.ldap.SessionMode;
+import org.swordess.ldap.odm.core.DnHelper;
+import org.swordess.ldap.odm.core.RawContextWrapperSessionFactory;
+import org.swordess.ldap.odm.core.RawContextWrapperSessionFactory.ContextProvider;
+
+
+/**
+ * Compare the session modes without an LDAP server: the same search results
+ * are mapped into {@link GroupDemo} entities in each mode, whose getters are
+ * then called over and over. For each mode, it reports the time of the first
+ * search (which generates the proxy class in PROXY mode), and then per entity
+ * the time and the bytes allocated to map it, and the time of a getter call.
+ * <p/>
+ * 
+ * It is a plain program rather than a test, run it with the test classpath:
+ * 
+ * <pre>
+ * java -cp ... SessionModeBenchmark [entries] [rounds]
+ * </pre>
+ */
+public class SessionModeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		
+		List<SearchResult> results = new ArrayList<SearchResult>(entries);
+		for (int i = 0; i < entries; i++) {
+			BasicAttributes attrs = new BasicAttributes(true);
+			attrs.put("cn", "group" + i);
+			attrs.put("longName", "Group " + i);
+			SearchResult result = new SearchResult("cn=group" + i, null, attrs);
+			result.setNameInNamespace(DnHelper.build("group" + i, GroupDemo.class));
+			results.add(result);
+		}
+		
+		System.out.println(String.format("%d entries, %d rounds", entries, rounds));
+		for (SessionMode mode : SessionMode.values()) {
+			run(mode, results, rounds);
+		}
+	}
+	
+	private static void run(SessionMode mode, final List<SearchResult> results, int rounds) throws Exception {
+		RawContextWrapperSessionFactory sessionFactory = RawContextWrapperSessionFactory.getInstance(new ContextProvider() {
+			public InitialLdapContext getContext() throws NamingException {
+				return new FakeContext(results);
+			}
+		});
+		sessionFactory.setSessionMode(mode);
+		
+		try {
+			long start = System.nanoTime();
+			List<GroupDemo> groups = search(sessionFactory.openSession());
+			long firstSearch = System.nanoTime() - start;
+			
+			// warm up before measuring
+			for (int i = 0; i < rounds; i++) {
+				search(sessionFactory.openSession());
+			}
+			
+			long bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				groups = search(sessionFactory.openSession());
+			}
+			long mapping = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			
+			int checksum = 0;
+			for (int i = 0; i < rounds; i++) {
+				checksum += callGetters(groups);
+			}
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++) {
+				checksum += callGetters(groups);
+			}
+			long getters = System.nanoTime() - start;
+			
+			long mapped = (long) rounds * results.size();
+			System.out.println(String.format("%-8s first search=%dms | map=%dns/entity | allocated=%s | getter=%.1fns/call | checksum=%d",
+					mode, firstSearch / 1000000, mapping / mapped, bytes < 0 ? "n/a" : (bytes / mapped) + "B/entity",
+					getters / (mapped * 2.0), checksum));
+		} finally {
+			sessionFactory.close();
+		}
+	}
+	
+	private static List<GroupDemo> search(Session session) {
+		try {
+			return session.search(GroupDemo.class, "(cn=*)");
+		} finally {
+			session.close();
+		}
+	}
+	
+	private static int callGetters(List<GroupDemo> groups) {
+		int checksum = 0;
+		for (GroupDemo group : groups) {
+			checksum += group.getCn().length() + group.getName().length();
+		}
+		return checksum;
+	}
+	
+	/**
+	 * @return bytes allocated by the current thread so far, or -1 if the JVM
+	 *         could not tell
+	 */
+	private static long allocatedBytes() {
+		Object threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+	
+	/**
+	 * A context which answers any search with the given results.
+	 */
+	private static class FakeContext extends InitialLdapContext {
+		
+		private final List<SearchResult> results;
+		
+		FakeContext(List<SearchResult> results) throws NamingException {
+			super();
+			this.results = results;
+		}
+		
+		@Override
+		public NamingEnumeration<SearchResult> search(String name, String filter, SearchControls cons) {
+			final Iterator<SearchResult> iter = results.iterator();
+			return new NamingEnumeration<SearchResult>() {
+				public boolean hasMore() {
+					return iter.hasNext();
+				}
+				
+				public SearchResult next() {
+					return iter.next();
+				}
+				
+				public boolean hasMoreElements() {
+					return iter.hasNext();
+				}
+				
+				public SearchResult nextElement() {
+					return iter.next();
+				}
+				
+				public void close() {
+				}
+			};
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+	}
+	
+}